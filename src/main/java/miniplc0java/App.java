@@ -25,19 +25,32 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 
 import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.out;
 import miniplc0java.error.CompileError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.runner.BatchRunner;
 import miniplc0java.tokenizer.StringIter;
 import miniplc0java.tokenizer.Token;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.AotCompiler;
+import miniplc0java.vm.Loader;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.Module;
+import miniplc0java.vm.Profiler;
+import miniplc0java.vm.Sampler;
 
 import net.sourceforge.argparse4j.*;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -60,6 +73,14 @@ public class App {
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("output");
 
+        if (result.getBoolean("batch")) {
+            // 输入是测试用例目录，报告写到输出文件
+            Long fuel = result.getLong("fuel");
+            System.exit(runBatch(inputFileName, outputFileName, result.getBoolean("jit"),
+                    fuel == null ? MiniVm.UNLIMITED : fuel));
+            return;
+        }
+
         InputStream input;
         if (inputFileName.equals("-")) {
             input = System.in;
@@ -75,11 +96,14 @@ public class App {
         }
 
         PrintStream output;
+        // 输出到文件时 --compile 直接用它的 FileChannel 写
+        FileOutputStream outputFile = null;
         if (outputFileName.equals("-")) {
             output = System.out;
         } else {
             try {
-                output = new PrintStream(new FileOutputStream(outputFileName));
+                outputFile = new FileOutputStream(outputFileName);
+                output = new PrintStream(outputFile);
             } catch (FileNotFoundException e) {
                 System.err.println("Cannot open output file.");
                 e.printStackTrace();
@@ -132,17 +156,215 @@ public class App {
             for (Instruction instruction : instructions) {
                 output.println(instruction.toString());
             }
+        } else if (result.getBoolean("compile")) {
+            // 编译成 o0 文件，之后可以用 --run 直接执行
+            var analyzer = new Analyser(tokenizer);
+            try {
+                analyzer.analyseProgram();
+            } catch (CompileError e) {
+                System.err.println(e);
+                System.exit(-1);
+                return;
+            }
+            try {
+                WritableByteChannel channel = outputFile == null ? Channels.newChannel(output) : outputFile.getChannel();
+                out.Out(channel, analyzer.getGlobalVariable(), analyzer.getFnLists());
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+                return;
+            }
+            output.close();
+        } else if (result.getBoolean("run")) {
+            // 编译后直接在进程内执行，.o0 文件直接加载
+            boolean profile = result.getBoolean("profile") || result.getBoolean("profile_json");
+            Module module;
+            if (inputFileName.endsWith(".o0")) {
+                try {
+                    module = profile ? Loader.decode(Path.of(inputFileName)) : Loader.load(Path.of(inputFileName));
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(2);
+                    return;
+                }
+            } else {
+                var analyzer = new Analyser(tokenizer);
+                try {
+                    analyzer.analyseProgram();
+                } catch (CompileError e) {
+                    System.err.println(e);
+                    System.exit(-1);
+                    return;
+                }
+                module = profile ? Loader.decode(analyzer.getGlobalVariable(), analyzer.getFnLists())
+                        : Loader.load(analyzer.getGlobalVariable(), analyzer.getFnLists());
+            }
+            if (profile) {
+                // 用单独的带统计的解释器执行，报告输出到 stderr
+                var profiler = new Profiler(module, System.in, output);
+                profiler.Run();
+                if (result.getBoolean("profile_json")) {
+                    profiler.reportJson(System.err);
+                } else {
+                    profiler.report(System.err);
+                }
+                return;
+            }
+            var vm = new MiniVm(module, System.in, output);
+            if (result.getBoolean("jit")) {
+                // 编译不了的函数仍然解释执行
+                vm.compileAll();
+            }
+            if (result.getBoolean("tos")) {
+                vm.setTopOfStackCaching(true);
+            }
+            if (result.getBoolean("closures")) {
+                vm.setClosureCompilation(true);
+            }
+            if (result.getBoolean("registers")) {
+                // 翻译不了的函数仍由栈式解释器执行
+                vm.setRegisterForm(true);
+            }
+            if (result.getBoolean("heap_stats")) {
+                vm.setHeapStats(System.err);
+            }
+            if (result.getLong("fuel") != null) {
+                vm.setFuel(result.getLong("fuel"));
+            }
+            if (result.getInt("tier") != null) {
+                vm.setTierThreshold(result.getInt("tier"));
+            }
+            if (result.getInt("trace") != null) {
+                vm.setTracing(result.getInt("trace"));
+            }
+            if (result.getString("snapshot") != null) {
+                // 快照不存在时先生成，之后的运行都跳过全局变量初始化
+                var snapshot = Path.of(result.getString("snapshot"));
+                try {
+                    if (!Files.exists(snapshot)) {
+                        vm.saveSnapshot(snapshot);
+                    }
+                    vm.useSnapshot(snapshot);
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(2);
+                    return;
+                }
+            }
+            if (result.getString("sample") != null) {
+                // 采样结果写成 folded stack 格式，供 flamegraph.pl 使用
+                PrintStream sampleOut;
+                try {
+                    sampleOut = new PrintStream(new FileOutputStream(result.getString("sample")));
+                } catch (FileNotFoundException e) {
+                    System.err.println("Cannot open sample output file.");
+                    System.exit(2);
+                    return;
+                }
+                Integer interval = result.getInt("sample_interval");
+                var sampler = new Sampler(vm, interval == null ? 1000 : interval);
+                sampler.start();
+                try {
+                    vm.Run();
+                } finally {
+                    sampler.stop();
+                    sampler.writeFolded(sampleOut);
+                    sampleOut.close();
+                }
+                return;
+            }
+            vm.Run();
+        } else if (result.getBoolean("aot")) {
+            // 编译成可以用 java -jar 运行的 JAR，写到输出文件
+            var analyzer = new Analyser(tokenizer);
+            try {
+                analyzer.analyseProgram();
+            } catch (CompileError e) {
+                System.err.println(e);
+                System.exit(-1);
+                return;
+            }
+            try {
+                AotCompiler.compile(Loader.load(analyzer.getGlobalVariable(), analyzer.getFnLists()), output);
+            } catch (IOException | Error e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+                return;
+            }
+            output.close();
         } else {
-            System.err.println("Please specify either '--analyse' or '--tokenize'.");
+            System.err.println("Please specify either '--analyse', '--tokenize', '--compile', '--run', '--aot' or '--batch'.");
             System.exit(3);
         }
     }
 
+    private static int runBatch(String directory, String outputFileName, boolean jit, long fuel) {
+        PrintStream report;
+        if (outputFileName.equals("-")) {
+            report = System.out;
+        } else {
+            try {
+                report = new PrintStream(new FileOutputStream(outputFileName));
+            } catch (FileNotFoundException e) {
+                System.err.println("Cannot open output file.");
+                return 2;
+            }
+        }
+        var runner = new BatchRunner(new File(directory), Runtime.getRuntime().availableProcessors(), jit,
+                fuel);
+        try {
+            return runner.run(report) ? 0 : 1;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        } finally {
+            report.flush();
+        }
+    }
+
     private static ArgumentParser buildArgparse() {
         var builder = ArgumentParsers.newFor("miniplc0-java");
         var parser = builder.build();
         parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
         parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
+        parser.addArgument("-c", "--compile").help("Compile the input into an o0 file written to the output file")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-r", "--run").help("Compile and run the input on the VM, or run a precompiled .o0 file")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--aot").help("Compile the input into a JAR that runs with java -jar, written to the output file")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-b", "--batch")
+                .help("Treat the input as a directory of *.c0 cases with .in/.out files, run them all and report")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-j", "--jit").help("With --run, compile functions to JVM bytecode before running")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--tier").type(Integer.class).metavar("N").dest("tier")
+                .help("With --run, compile a function after it is called or loops N times");
+        parser.addArgument("--trace").type(Integer.class).metavar("N").dest("trace")
+                .help("With --run, record and compile the path through a loop after it runs N times");
+        parser.addArgument("--tos").help("With --run, interpret with the top of the operand stack cached in a local")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--closures").dest("closures")
+                .help("With --run, compile functions into trees of Java closures instead of interpreting them")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--registers").dest("registers")
+                .help("With --run, translate functions to a register form before interpreting them")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--fuel").type(Long.class).metavar("N").dest("fuel")
+                .help("With --run or --batch, stop a program after it executes N instructions");
+        parser.addArgument("--snapshot").metavar("FILE").dest("snapshot")
+                .help("With --run, start from the global state saved in FILE, creating it first if missing");
+        parser.addArgument("--heap-stats").dest("heap_stats")
+                .help("With --run, print heap usage and fragmentation to stderr at exit")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--profile").help("With --run, count executed instructions and print a report to stderr")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--profile-json").dest("profile_json").help("Like --profile, but print the report as JSON")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--sample").metavar("FILE").dest("sample")
+                .help("With --run, sample the c0 call stack and write folded stacks to FILE");
+        parser.addArgument("--sample-interval").type(Integer.class).metavar("US").dest("sample_interval")
+                .help("Sampling interval in microseconds, default 1000");
         parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
                 .action(Arguments.store());
         parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
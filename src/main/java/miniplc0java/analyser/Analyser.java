@@ -7,6 +7,7 @@ import miniplc0java.error.ExpectedTokenError;
 import miniplc0java.error.TokenizeError;
 import miniplc0java.instruction.FnInstruction;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
 import miniplc0java.instruction.Operation;
 import miniplc0java.tokenizer.Token;
 import miniplc0java.tokenizer.TokenType;
@@ -14,6 +15,7 @@ import miniplc0java.tokenizer.Tokenizer;
 import miniplc0java.util.Pos;
 
 import java.io.PrintStream;
+import java.nio.channels.Channels;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.function.ToDoubleBiFunction;
@@ -30,7 +32,7 @@ public final class Analyser {
 
     ArrayList<String> GlobalVariable=new ArrayList<>();
     ArrayList<FnInstruction> fnLists = new ArrayList<>();
-    ArrayList<Instruction> CurrentFnInstruction;
+    InstructionBuffer CurrentFnInstruction;
 
     boolean hasMain = false;
     int fnPos = 0;
@@ -503,9 +505,7 @@ public final class Analyser {
 //            else if(nextIsDeclStmt())
 //                analyseDeclStmt();
 //        }
-        analyseMain();
-
-        expect(TokenType.EOF);
+        analyseProgram();
         System.out.println();
         for (String s : GlobalVariable) {
             System.out.println(s);
@@ -514,7 +514,7 @@ public final class Analyser {
             System.out.println(fnList.toString());
         }
 
-        out.Out(output, GlobalVariable, fnLists);
+        out.Out(Channels.newChannel(output), GlobalVariable, fnLists);
 
 //        while(true){
 //            if(nextIf(TokenType.EOF) != null)
@@ -529,19 +529,39 @@ public final class Analyser {
 
     }
 
+    /**
+     * 只做分析，不输出，分析结果通过 getGlobalVariable / getFnLists 取得
+     *
+     * @throws CompileError
+     */
+    public void analyseProgram() throws CompileError {
+        analyseMain();
+
+        expect(TokenType.EOF);
+    }
+
+    public ArrayList<String> getGlobalVariable() {
+        return GlobalVariable;
+    }
+
+    public ArrayList<FnInstruction> getFnLists() {
+        return fnLists;
+    }
+
     private void analyseMain() throws CompileError {
         FnInstruction startFn = new FnInstruction();
         GlobalVariable.add("_start");
         globalOffset++;
         fnLists.add(startFn);
+        fnOffset++;
         while (true) {
             if (check(TokenType.CONST_KW) || check(TokenType.LET_KW)) {
                 if (check(TokenType.CONST_KW)) {
-                    CurrentFnInstruction = startFn.getBodyItem();
+                    CurrentFnInstruction = startFn.getBody();
                     analyseConstDeclStmt(true);
                 }
                 else if (check(TokenType.LET_KW)) {
-                    CurrentFnInstruction = startFn.getBodyItem();
+                    CurrentFnInstruction = startFn.getBody();
                     analyseLetDeclStmt(true);
                 }
             }
@@ -560,16 +580,16 @@ public final class Analyser {
         startFn.setLoc_slots(0);
         if(hasMain){
             if(!maintype){
-                startFn.getBodyItem().add(new Instruction(Operation.stackalloc, 0));
+                startFn.getBody().add(Operation.stackalloc, 0);
             }else{
-                startFn.getBodyItem().add(new Instruction(Operation.stackalloc, 1));
+                startFn.getBody().add(Operation.stackalloc, 1);
             }
-            startFn.getBodyItem().add(new Instruction(Operation.call, fnPos));
+            startFn.getBody().add(Operation.call, fnPos);
             if(maintype){
-                startFn.getBodyItem().add(new Instruction(Operation.popn,1));
+                startFn.getBody().add(Operation.popn, 1);
             }
         }
-        startFn.setBodyCount(startFn.getBodyItem().size());
+        startFn.setBodyCount(startFn.getBody().size());
 
     }
 
@@ -587,7 +607,7 @@ public final class Analyser {
     private void analyseFunction() throws CompileError {
         FnInstruction fnInstruction = new FnInstruction();
         fnLists.add(fnInstruction);
-        CurrentFnInstruction = fnInstruction.getBodyItem();
+        CurrentFnInstruction = fnInstruction.getBody();
         boolean hasReturn = false;
 
         expect(TokenType.FN_KW);
@@ -650,7 +670,7 @@ public final class Analyser {
             throw new AnalyzeError(ErrorCode.NotDeclared, returnType.getStartPos());
         }
 
-        fnInstruction.setParam_slots(argsOffset);
+        fnInstruction.setParam_slots(argsOffset - fnInstruction.getRet_slots()); //返回值槽不计入参数
 
         currentSymbol.setType(returnType.getTokenType());
 
@@ -662,10 +682,10 @@ public final class Analyser {
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, new Pos(0,0));
         }
         else if(returnType.getTokenType() == TokenType.VOID && !hasReturn){
-            CurrentFnInstruction.add(new Instruction(Operation.ret));
+            CurrentFnInstruction.add(Operation.ret);
         }
 
-        fnInstruction.setBodyCount(fnInstruction.getBodyItem().size());
+        fnInstruction.setBodyCount(fnInstruction.getBody().size());
 
 
 
@@ -770,7 +790,7 @@ public final class Analyser {
                         throw new AnalyzeError(ErrorCode.DuplicateDeclaration, new Pos(2,0));
                     }
                     analyseBreakStmt();
-                    CurrentFnInstruction.add(new Instruction(Operation.br));
+                    CurrentFnInstruction.add(Operation.br);
                     int breakPos = CurrentFnInstruction.size()-1;
                     breakEndPos.add(breakPos);
                     break;
@@ -779,7 +799,7 @@ public final class Analyser {
                         throw new AnalyzeError(ErrorCode.DuplicateDeclaration, new Pos(2,0));
                     }
                     analyseContinueStmt();
-                    CurrentFnInstruction.add(new Instruction(Operation.br,continuePos-CurrentFnInstruction.size()));
+                    CurrentFnInstruction.add(Operation.br, continuePos-CurrentFnInstruction.size());
                     break;
                 case RETURN_KW://ok
                     analyseReturnStmt(tyTokenType);
@@ -812,7 +832,7 @@ public final class Analyser {
             t = analyseExpression(true);
         }
         if(t != TokenType.VOID){
-            CurrentFnInstruction.add(new Instruction(Operation.popn, 1));
+            CurrentFnInstruction.add(Operation.popn, 1);
         }
 
         expect(TokenType.SEMICOLON);
@@ -839,36 +859,40 @@ public final class Analyser {
         if(ifExpr == TokenType.VOID)
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, new Pos(1,0));
 
-        CurrentFnInstruction.add(new Instruction(Operation.brtrue, 1));
-        CurrentFnInstruction.add(new Instruction(Operation.br));
-        int currentPos = CurrentFnInstruction.size()-1;
+        CurrentFnInstruction.add(Operation.brtrue, 1);
+        CurrentFnInstruction.add(Operation.br);
+        int currentPos = CurrentFnInstruction.size()-1; //条件不成立时的跳转，等下一个分支开始时回填
 
         hasReturn = analyseBlockStmt(false, tyTokenType, isWhile, breakEndPos, continuePos); //if 第一个block块
-        CurrentFnInstruction.add(new Instruction(Operation.br));
-        int endPos = CurrentFnInstruction.size()-1;
+        CurrentFnInstruction.add(Operation.br);
 
-        ArrayList<Integer> Pos = new ArrayList<>();
+        ArrayList<Integer> Pos = new ArrayList<>(); //各分支结束后跳到整个 if 之后
+        Pos.add(CurrentFnInstruction.size()-1);
         while (nextIf(TokenType.ELSE_KW) != null) {
+            CurrentFnInstruction.patch(currentPos, CurrentFnInstruction.size()-1 - currentPos);
+            currentPos = -1;
             if (nextIf(TokenType.IF_KW) != null) {
-                CurrentFnInstruction.get(currentPos).setValue(CurrentFnInstruction.size()-1 - currentPos);
                 ifExpr = analyseExpression(true);
                 if(ifExpr == TokenType.VOID){
                     throw new AnalyzeError(ErrorCode.DuplicateDeclaration, new Pos(1,0));
                 }
+                CurrentFnInstruction.add(Operation.brtrue, 1);
+                CurrentFnInstruction.add(Operation.br);
+                currentPos = CurrentFnInstruction.size()-1;
                 hasReturn &= analyseBlockStmt(false, tyTokenType, isWhile, breakEndPos, continuePos);
-                CurrentFnInstruction.add(new Instruction(Operation.br));
+                CurrentFnInstruction.add(Operation.br);
                 Pos.add(CurrentFnInstruction.size()-1);
-            } else if (check(TokenType.L_BRACE)) {
-                CurrentFnInstruction.get(currentPos).setValue(CurrentFnInstruction.size()-1 - currentPos);
+            } else {
                 hasReturn &= analyseBlockStmt(false, tyTokenType, isWhile, breakEndPos, continuePos);
                 hasElse = true;
                 break;
             }
-            CurrentFnInstruction.get(currentPos).setValue(CurrentFnInstruction.size()-1 - currentPos);
         }
-        CurrentFnInstruction.get(endPos).setValue(CurrentFnInstruction.size()-1-endPos);
+        if (currentPos != -1) {
+            CurrentFnInstruction.patch(currentPos, CurrentFnInstruction.size()-1 - currentPos);
+        }
         for (Integer po : Pos) {
-            CurrentFnInstruction.get(po).setValue(CurrentFnInstruction.size() - 1 - po);
+            CurrentFnInstruction.patch(po, CurrentFnInstruction.size() - 1 - po);
         }
         if(!hasElse){
             return false;
@@ -883,9 +907,9 @@ public final class Analyser {
         String name = (String)ident.getValue();
 
         if(!isGlobal){
-            CurrentFnInstruction.add(new Instruction(Operation.loca, localOffset));
+            CurrentFnInstruction.add(Operation.loca, localOffset);
         }else{
-            CurrentFnInstruction.add(new Instruction(Operation.globa, globalOffset));
+            CurrentFnInstruction.add(Operation.globa, globalOffset);
         }
 
         expect(TokenType.COLON);
@@ -907,7 +931,7 @@ public final class Analyser {
         if(type.getTokenType() != result){
             throw new AnalyzeError(ErrorCode.NotDeclared, type.getStartPos());
         }
-        CurrentFnInstruction.add(new Instruction(Operation.store64));
+        CurrentFnInstruction.add(Operation.store64);
 
         expect(TokenType.SEMICOLON);
 
@@ -939,15 +963,15 @@ public final class Analyser {
         TokenType result = null;
         if(nextIf(TokenType.ASSIGN) != null){
             if(isGlobal){
-                CurrentFnInstruction.add(new Instruction(Operation.globa, globalOffset));
+                CurrentFnInstruction.add(Operation.globa, globalOffset);
             }else{
-                CurrentFnInstruction.add(new Instruction(Operation.loca, localOffset));
+                CurrentFnInstruction.add(Operation.loca, localOffset);
             }
             result = analyseExpression(true);
             if(type.getTokenType() != result)
                 throw new AnalyzeError(ErrorCode.MismatchedAssignmentType,type.getStartPos());
             else
-                CurrentFnInstruction.add(new Instruction(Operation.store64));
+                CurrentFnInstruction.add(Operation.store64);
         }
 
         expect(TokenType.SEMICOLON);
@@ -969,19 +993,19 @@ public final class Analyser {
 
         ArrayList<Integer> breakEndPos = new ArrayList<>();
 
-        CurrentFnInstruction.add(new Instruction(Operation.brtrue, 1));
+        CurrentFnInstruction.add(Operation.brtrue, 1);
 
-        CurrentFnInstruction.add(new Instruction(Operation.br));
+        CurrentFnInstruction.add(Operation.br);
         int currentPos = CurrentFnInstruction.size()-1;
 
         if(whileExpr == TokenType.VOID){
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, new Pos(1,0));
         }
         analyseBlockStmt(false, tyTokenType, true, breakEndPos, InitPos);
-        CurrentFnInstruction.add(new Instruction(Operation.br, InitPos-CurrentFnInstruction.size()+1));
-        CurrentFnInstruction.get(currentPos).setValue(CurrentFnInstruction.size()-1 - currentPos);
+        CurrentFnInstruction.add(Operation.br, InitPos-CurrentFnInstruction.size());
+        CurrentFnInstruction.patch(currentPos, CurrentFnInstruction.size()-1 - currentPos);
         for (Integer breakEndPo : breakEndPos) {
-            CurrentFnInstruction.get(breakEndPo).setValue(CurrentFnInstruction.size() - 1 - breakEndPo);
+            CurrentFnInstruction.patch(breakEndPo, CurrentFnInstruction.size() - 1 - breakEndPo);
         }
     }
 
@@ -989,7 +1013,7 @@ public final class Analyser {
         expect(TokenType.RETURN_KW);
 
         if(tyTokenType == TokenType.INT || tyTokenType == TokenType.DOUBLE){
-            CurrentFnInstruction.add(new Instruction(Operation.arga, 0));
+            CurrentFnInstruction.add(Operation.arga, 0);
         }
         if (nextIsExpr()) {
             TokenType exprType = analyseExpression(true);
@@ -1000,9 +1024,9 @@ public final class Analyser {
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, new Pos(1,0));
         }
         if(tyTokenType == TokenType.INT || tyTokenType == TokenType.DOUBLE){
-            CurrentFnInstruction.add(new Instruction(Operation.store64));
+            CurrentFnInstruction.add(Operation.store64);
         }
-        CurrentFnInstruction.add(new Instruction(Operation.ret));
+        CurrentFnInstruction.add(Operation.ret);
         expect(TokenType.SEMICOLON);
     }
 
@@ -1108,9 +1132,9 @@ public final class Analyser {
         if (check(TokenType.MINUS)) {
             type = analyseNegateExpression();
             if (type == TokenType.INT)
-                CurrentFnInstruction.add(new Instruction(Operation.negi));
+                CurrentFnInstruction.add(Operation.negi);
             else if (type == TokenType.DOUBLE)
-                CurrentFnInstruction.add(new Instruction(Operation.negf));
+                CurrentFnInstruction.add(Operation.negf);
             else
                 throw new AnalyzeError(ErrorCode.NotDeclared, new Pos(0, 0));
         }
@@ -1131,11 +1155,11 @@ public final class Analyser {
                 }
 
                 if(symbolTable.get(index).getSymbolType() == SymbolType.local){
-                    CurrentFnInstruction.add(new Instruction(Operation.loca, symbolTable.get(index).getOffset()));
+                    CurrentFnInstruction.add(Operation.loca, symbolTable.get(index).getOffset());
                 }else if(symbolTable.get(index).getSymbolType() == SymbolType.global){
-                    CurrentFnInstruction.add(new Instruction(Operation.globa, symbolTable.get(index).getOffset()));
+                    CurrentFnInstruction.add(Operation.globa, symbolTable.get(index).getOffset());
                 }else{
-                    CurrentFnInstruction.add(new Instruction(Operation.arga, symbolTable.get(index).getOffset()));
+                    CurrentFnInstruction.add(Operation.arga, symbolTable.get(index).getOffset());
                 }
 
                 TokenType l_type = symbolTable.get(index).getType();
@@ -1145,7 +1169,7 @@ public final class Analyser {
                     throw new AnalyzeError(ErrorCode.NotDeclared, nameToken.getStartPos());
                 }
 
-                CurrentFnInstruction.add(new Instruction(Operation.store64));
+                CurrentFnInstruction.add(Operation.store64);
                 type = TokenType.VOID;
             }
             else if (nextIf(TokenType.L_PAREN) != null) { //call
@@ -1205,9 +1229,9 @@ public final class Analyser {
                 }
 
                 if(return_type == TokenType.INT || return_type == TokenType.DOUBLE){
-                    CurrentFnInstruction.add(new Instruction(Operation.stackalloc, 1));
+                    CurrentFnInstruction.add(Operation.stackalloc, 1);
                 }else if(return_type == TokenType.VOID){
-                    CurrentFnInstruction.add(new Instruction(Operation.stackalloc, 0));
+                    CurrentFnInstruction.add(Operation.stackalloc, 0);
                 }
 
                 if (nextIf(TokenType.R_PAREN) != null) {
@@ -1236,9 +1260,9 @@ public final class Analyser {
                     type = return_type;
                 }
                 if(index != null){
-                    CurrentFnInstruction.add(new Instruction(Operation.call, symbolTable.get(index).getFnoffset()));
+                    CurrentFnInstruction.add(Operation.call, symbolTable.get(index).getFnoffset());
                 }else{
-                    CurrentFnInstruction.add(new Instruction(Operation.callname, currentGlobal));
+                    CurrentFnInstruction.add(Operation.callname, currentGlobal);
                 }
             } else {
                 if (index == null) {
@@ -1247,14 +1271,14 @@ public final class Analyser {
                 Symbol symbol = symbolTable.get(index);
 
                 if(symbol.getSymbolType() == SymbolType.global){ //取地址
-                    CurrentFnInstruction.add(new Instruction(Operation.globa, symbol.getOffset()));
+                    CurrentFnInstruction.add(Operation.globa, symbol.getOffset());
                 }else if(symbol.getSymbolType() == SymbolType.local){
-                    CurrentFnInstruction.add(new Instruction(Operation.loca, symbol.getOffset()));
+                    CurrentFnInstruction.add(Operation.loca, symbol.getOffset());
                 }else{
-                    CurrentFnInstruction.add(new Instruction(Operation.arga, symbol.getOffset()));
+                    CurrentFnInstruction.add(Operation.arga, symbol.getOffset());
                 }
 
-                CurrentFnInstruction.add(new Instruction(Operation.load64)); //取值
+                CurrentFnInstruction.add(Operation.load64); //取值
 
                 type = symbolTable.get(index).getType();
             }
@@ -1263,21 +1287,21 @@ public final class Analyser {
         else if (peek().getTokenType() == TokenType.UINT_LITERAL || peek().getTokenType() == TokenType.STRING_LITERAL || peek().getTokenType() == TokenType.DOUBLE_LITERAL || peek().getTokenType() == TokenType.CHAR_LITERAL) {
             if (peek().getTokenType() == TokenType.UINT_LITERAL) {
                 type = TokenType.INT;
-                CurrentFnInstruction.add(new Instruction(Operation.push, peek().getValue()));
+                CurrentFnInstruction.add(Operation.push, (long) peek().getValue());
                 next();
             } else if (peek().getTokenType() == TokenType.STRING_LITERAL) {
                 GlobalVariable.add(peek().getValue().toString());
                 globalOffset++;
                 type = TokenType.INT;
-                CurrentFnInstruction.add(new Instruction(Operation.push, (long)globalOffset-1));
+                CurrentFnInstruction.add(Operation.push, (long)globalOffset-1);
                 next();
             } else if (peek().getTokenType() == TokenType.DOUBLE_LITERAL) {
                 type = TokenType.DOUBLE;
-                CurrentFnInstruction.add(new Instruction(Operation.push, Double.doubleToRawLongBits((double)peek().getValue())));
+                CurrentFnInstruction.add(Operation.push, Double.doubleToRawLongBits((double)peek().getValue()));
                 next();
             } else if (peek().getTokenType() == TokenType.CHAR_LITERAL) {
                 type = TokenType.INT;
-                CurrentFnInstruction.add(new Instruction(Operation.push, (long)(char)peek().getValue()));
+                CurrentFnInstruction.add(Operation.push, (long)(char)peek().getValue());
                 next();
             }
         }
@@ -1341,13 +1365,13 @@ public final class Analyser {
                 if (pop2 == TokenType.DOUBLE) {
                     push = TokenType.DOUBLE;
                     if(pop1 == TokenType.INT){
-                        CurrentFnInstruction.add(new Instruction(Operation.itof));
+                        CurrentFnInstruction.add(Operation.itof);
                     }
                 }
                 if (pop2 == TokenType.INT) {
                     push = TokenType.INT;
                     if(pop1 == TokenType.DOUBLE){
-                        CurrentFnInstruction.add(new Instruction(Operation.ftoi));
+                        CurrentFnInstruction.add(Operation.ftoi);
                     }
                 }
             } else {
@@ -1361,105 +1385,105 @@ public final class Analyser {
                 case PLUS:
                     if(pop1 == TokenType.INT){
                         push = TokenType.INT;
-                        CurrentFnInstruction.add(new Instruction(Operation.addi));
+                        CurrentFnInstruction.add(Operation.addi);
                     }else{
                         push = TokenType.DOUBLE;
-                        CurrentFnInstruction.add(new Instruction(Operation.addf));
+                        CurrentFnInstruction.add(Operation.addf);
                     }
                     break;
                 case MINUS:
                     if(pop1 == TokenType.INT){
                         push = TokenType.INT;
-                        CurrentFnInstruction.add(new Instruction(Operation.subi));
+                        CurrentFnInstruction.add(Operation.subi);
                     }else{
                         push = TokenType.DOUBLE;
-                        CurrentFnInstruction.add(new Instruction(Operation.subf));
+                        CurrentFnInstruction.add(Operation.subf);
                     }
                     break;
                 case MUL:
                     if(pop1 == TokenType.INT){
                         push = TokenType.INT;
-                        CurrentFnInstruction.add(new Instruction(Operation.muli));
+                        CurrentFnInstruction.add(Operation.muli);
                     }else{
                         push = TokenType.DOUBLE;
-                        CurrentFnInstruction.add(new Instruction(Operation.mulf));
+                        CurrentFnInstruction.add(Operation.mulf);
                     }
                     break;
                 case DIV:
                     if(pop1 == TokenType.INT){
                         push = TokenType.INT;
-                        CurrentFnInstruction.add(new Instruction(Operation.divi));
+                        CurrentFnInstruction.add(Operation.divi);
                     }else{
                         push = TokenType.DOUBLE;
-                        CurrentFnInstruction.add(new Instruction(Operation.divf));
+                        CurrentFnInstruction.add(Operation.divf);
                     }
                     break;
                 case EQ:
                     if(pop1 == TokenType.INT){
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpi));
-                        CurrentFnInstruction.add(new Instruction(Operation.not));
+                        CurrentFnInstruction.add(Operation.cmpi);
+                        CurrentFnInstruction.add(Operation.not);
                     }else{
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpf));
-                        CurrentFnInstruction.add(new Instruction(Operation.not));
+                        CurrentFnInstruction.add(Operation.cmpf);
+                        CurrentFnInstruction.add(Operation.not);
                     }
                     break;
                 case NEQ:
                     if(pop1 == TokenType.INT){
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpi));
+                        CurrentFnInstruction.add(Operation.cmpi);
                     }else{
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpf));
+                        CurrentFnInstruction.add(Operation.cmpf);
                     }
                     break;
                 case LT:
                     if(pop1 == TokenType.INT){
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpi));
-                        CurrentFnInstruction.add(new Instruction(Operation.setlt));
+                        CurrentFnInstruction.add(Operation.cmpi);
+                        CurrentFnInstruction.add(Operation.setlt);
                     }else{
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpf));
-                        CurrentFnInstruction.add(new Instruction(Operation.setlt));
+                        CurrentFnInstruction.add(Operation.cmpf);
+                        CurrentFnInstruction.add(Operation.setlt);
                     }
                     break;
                 case GT:
                     if(pop1 == TokenType.INT){
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpi));
-                        CurrentFnInstruction.add(new Instruction(Operation.setgt));
+                        CurrentFnInstruction.add(Operation.cmpi);
+                        CurrentFnInstruction.add(Operation.setgt);
                     }else{
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpf));
-                        CurrentFnInstruction.add(new Instruction(Operation.setgt));
+                        CurrentFnInstruction.add(Operation.cmpf);
+                        CurrentFnInstruction.add(Operation.setgt);
                     }
                     break;
                 case LE:
                     if(pop1 == TokenType.INT){
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpi));
-                        CurrentFnInstruction.add(new Instruction(Operation.setgt));
-                        CurrentFnInstruction.add(new Instruction(Operation.not));
+                        CurrentFnInstruction.add(Operation.cmpi);
+                        CurrentFnInstruction.add(Operation.setgt);
+                        CurrentFnInstruction.add(Operation.not);
                     }else{
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpf));
-                        CurrentFnInstruction.add(new Instruction(Operation.setgt));
-                        CurrentFnInstruction.add(new Instruction(Operation.not));
+                        CurrentFnInstruction.add(Operation.cmpf);
+                        CurrentFnInstruction.add(Operation.setgt);
+                        CurrentFnInstruction.add(Operation.not);
                     }
                     break;
                 case GE:
                     if(pop1 == TokenType.INT){
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpi));
-                        CurrentFnInstruction.add(new Instruction(Operation.setlt));
-                        CurrentFnInstruction.add(new Instruction(Operation.not));
+                        CurrentFnInstruction.add(Operation.cmpi);
+                        CurrentFnInstruction.add(Operation.setlt);
+                        CurrentFnInstruction.add(Operation.not);
                     }else{
                         push = TokenType.BOOL;
-                        CurrentFnInstruction.add(new Instruction(Operation.cmpf));
-                        CurrentFnInstruction.add(new Instruction(Operation.setlt));
-                        CurrentFnInstruction.add(new Instruction(Operation.not));
+                        CurrentFnInstruction.add(Operation.cmpf);
+                        CurrentFnInstruction.add(Operation.setlt);
+                        CurrentFnInstruction.add(Operation.not);
                     }
                     break;
                 default:
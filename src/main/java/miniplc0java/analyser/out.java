@@ -2,80 +2,94 @@ package miniplc0java.analyser;
 
 
 import miniplc0java.instruction.FnInstruction;
-import miniplc0java.instruction.Instruction;
-import miniplc0java.instruction.Operation;
+import miniplc0java.instruction.InstructionBuffer;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 public class out {
-    public static void Out(PrintStream output, ArrayList<String> globalV, ArrayList<FnInstruction> fnList) throws Exception{
-        output.write(intToByte(0x72303b3e));
-        output.write(intToByte(0x1));
+    /**
+     * 把整个 o0 文件写到 output。output 是 FileChannel 时只有一次 write；不关闭 output
+     */
+    public static void Out(WritableByteChannel output, ArrayList<String> globalV, ArrayList<FnInstruction> fnList)
+            throws IOException {
+        ByteBuffer buffer = encode(globalV, fnList);
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+    }
+
+    /**
+     * 先算出整个 o0 文件的长度，再按大端序填进一个 ByteBuffer
+     *
+     * @return 从头到尾正好是 o0 文件内容的 buffer
+     */
+    public static ByteBuffer encode(ArrayList<String> globalV, ArrayList<FnInstruction> fnList) {
+        byte[][] names = new byte[globalV.size()][];
+        int size = 4 + 4 + 4 + 4; // magic、version、globals.count、functions.count
+        for (int i = 0; i < names.length; i++) {
+            String s = globalV.get(i);
+            if (!s.equals("1") && !s.equals("0")) { //函数名、字符串
+                names[i] = s.getBytes(StandardCharsets.UTF_8);
+            }
+            size += 1 + 4 + (names[i] == null ? 8 : names[i].length);
+        }
+        for (FnInstruction fnInstruction : fnList) {
+            InstructionBuffer body = fnInstruction.getBody();
+            size += 5 * 4;
+            for (int i = 0; i < body.size(); i++) {
+                size += 1 + InstructionBuffer.operandSize(body.opcode(i));
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(0x72303b3e);
+        buffer.putInt(0x1);
 
-        output.write(intToByte(globalV.size()));
+        buffer.putInt(globalV.size());
 
-        for (String s : globalV) { //全局
-            if (s.equals("1")) {
-                output.write(0);
-                output.write(intToByte(8));
-                output.write(longToByte(0L));
-            } else if (s.equals("0")) {
-                output.write(1);
-                output.write(intToByte(8));
-                output.write(longToByte(0L));
-            } else { //函数名、字符串
-                output.write(1);
-                output.write(s.length());
-                output.write(s.getBytes());
+        for (int i = 0; i < names.length; i++) { //全局
+            if (names[i] == null) {
+                buffer.put((byte) (globalV.get(i).equals("1") ? 0 : 1));
+                buffer.putInt(8);
+                buffer.putLong(0L);
+            } else {
+                buffer.put((byte) 1);
+                buffer.putInt(names[i].length);
+                buffer.put(names[i]);
             }
         }
 
-        output.write(intToByte(fnList.size()));// functions.count
+        buffer.putInt(fnList.size());// functions.count
 
         for (FnInstruction fnInstruction : fnList) { //function
-            output.write(intToByte(fnInstruction.getName()));
-            output.write(intToByte(fnInstruction.getRet_slots()));
-            output.write(intToByte(fnInstruction.getParam_slots()));
-            output.write(intToByte(fnInstruction.getLoc_slots()));
-            output.write(intToByte(fnInstruction.getBodyCount()));
+            buffer.putInt(fnInstruction.getName());
+            buffer.putInt(fnInstruction.getRet_slots());
+            buffer.putInt(fnInstruction.getParam_slots());
+            buffer.putInt(fnInstruction.getLoc_slots());
+            buffer.putInt(fnInstruction.getBodyCount());
 
-            ArrayList<Instruction> fnInstructions = fnInstruction.getBodyItem();
+            InstructionBuffer body = fnInstruction.getBody();
 
-            for (Instruction instruction : fnInstructions) {
-                output.write(instruction.getOpt().getI());
-                if (instruction.getValue() != null) {
-                    if (instruction.getOpt() == Operation.push) {
-                        output.write(longToByte((long) instruction.getValue()));
-                    } else {
-                        output.write(intToByte((int) instruction.getValue()));
-                    }
+            for (int i = 0; i < body.size(); i++) {
+                int op = body.opcode(i);
+                buffer.put((byte) op);
+                // 操作数宽度由操作码决定
+                switch (InstructionBuffer.operandSize(op)) {
+                    case 8:
+                        buffer.putLong(body.operand(i));
+                        break;
+                    case 4:
+                        buffer.putInt((int) body.operand(i));
+                        break;
+                    default:
+                        break;
                 }
             }
         }
-    }
-
-    public static byte[] longToByte(long val) {
-        byte[] b = new byte[8];
-        b[7] = (byte) (val & 0xff);
-        b[6] = (byte) ((val >> 8) & 0xff);
-        b[5] = (byte) ((val >> 16) & 0xff);
-        b[4] = (byte) ((val >> 24) & 0xff);
-        b[3] = (byte) ((val >> 32) & 0xff);
-        b[2] = (byte) ((val >> 40) & 0xff);
-        b[1] = (byte) ((val >> 48) & 0xff);
-        b[0] = (byte) ((val >> 56) & 0xff);
-        return b;
-    }
-
-    public static byte[] intToByte(int val) {
-        byte[] b = new byte[4];
-        b[3] = (byte) (val & 0xff);
-        b[2] = (byte) ((val >> 8) & 0xff);
-        b[1] = (byte) ((val >> 16) & 0xff);
-        b[0] = (byte) ((val >> 24) & 0xff);
-        return b;
+        return buffer.flip();
     }
 }
@@ -1,14 +1,12 @@
 package miniplc0java.instruction;
 
-import java.util.ArrayList;
-
 public class FnInstruction {
     private int name;
     private int ret_slots;
     private int param_slots;
     private int loc_slots;
     private int bodyCount;
-    private ArrayList<Instruction> bodyItem;
+    private InstructionBuffer body;
 
     @Override
     public String toString() {
@@ -18,14 +16,14 @@ public class FnInstruction {
                         ", param_slots=" + param_slots +
                         ", loc_slots=" + loc_slots +
                         ", bodyCount=" + bodyCount + "\n");
-        for (Instruction instruction : bodyItem) {
-            out.append(instruction.toString()).append("\n");
+        for (int i = 0; i < body.size(); i++) {
+            out.append(body.toString(i)).append("\n");
         }
         return out.toString();
     }
 
     public FnInstruction() {
-        this.bodyItem = new ArrayList<Instruction>();
+        this.body = new InstructionBuffer();
     }
 
     public int getName() {
@@ -68,11 +66,7 @@ public class FnInstruction {
         this.bodyCount = bodyCount;
     }
 
-    public ArrayList<Instruction> getBodyItem() {
-        return bodyItem;
-    }
-
-    public void setBodyItem(ArrayList<Instruction> bodyItem) {
-        this.bodyItem = bodyItem;
+    public InstructionBuffer getBody() {
+        return body;
     }
 }
@@ -0,0 +1,92 @@
+package miniplc0java.instruction;
+
+import java.util.Arrays;
+
+/**
+ * 一个函数体的指令序列，操作码和操作数分别存在 byte[] 和 long[] 里，追加和回填指令都不创建对象
+ *
+ * 没有操作数的指令对应的操作数位置为 0；需要操作数但还没有回填的跳转也是 0
+ */
+public class InstructionBuffer {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[] opcodes = new byte[INITIAL_CAPACITY];
+    private long[] operands = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 追加一条指令，需要操作数时操作数先为 0，之后用 patch 回填
+     *
+     * @return 新指令的下标
+     */
+    public int add(Operation opt) {
+        return add(opt, 0);
+    }
+
+    /**
+     * @return 新指令的下标
+     */
+    public int add(Operation opt, long x) {
+        if (size == opcodes.length) {
+            opcodes = Arrays.copyOf(opcodes, size * 2);
+            operands = Arrays.copyOf(operands, size * 2);
+        }
+        opcodes[size] = (byte) opt.getI();
+        operands[size] = x;
+        return size++;
+    }
+
+    /**
+     * 回填第 index 条指令的操作数
+     */
+    public void patch(int index, long x) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("instruction " + index + " of " + size);
+        }
+        operands[index] = x;
+    }
+
+    /**
+     * @return 第 index 条指令的操作码，即 Operation.getI()
+     */
+    public int opcode(int index) {
+        return opcodes[index] & 0xff;
+    }
+
+    public long operand(int index) {
+        return operands[index];
+    }
+
+    /**
+     * 按 o0 格式，操作码为 op 的指令后面跟着的操作数字节数：push 为 8，带操作数的其他指令为 4，其余为 0
+     */
+    public static int operandSize(int op) {
+        if (op == Operation.push.getI()) {
+            return 8;
+        } else if (op == Operation.popn.getI() || op == Operation.loca.getI() || op == Operation.arga.getI()
+                || op == Operation.globa.getI() || op == Operation.stackalloc.getI() || op == Operation.br.getI()
+                || op == Operation.brfalse.getI() || op == Operation.brtrue.getI() || op == Operation.call.getI()
+                || op == Operation.callname.getI()) {
+            return 4;
+        }
+        return 0;
+    }
+
+    /**
+     * 第 index 条指令，格式与 Instruction.toString 相同
+     */
+    public String toString(int index) {
+        int op = opcode(index);
+        String operand = operandSize(op) == 0 ? "null" : Long.toString(operands[index]);
+        for (Operation operation : Operation.values()) {
+            if (operation.getI() == op) {
+                return operation + "(" + operand + ")";
+            }
+        }
+        return op + "(" + operand + ")";
+    }
+}
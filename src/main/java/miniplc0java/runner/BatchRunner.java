@@ -0,0 +1,220 @@
+package miniplc0java.runner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.FuelExhaustedError;
+import miniplc0java.vm.MiniVm;
+
+/**
+ * 在一个 JVM 里批量编译运行测试用例，比较输出
+ *
+ * 目录下每个 name.c0 是一个用例，name.in 是它的输入（可以没有），name.out 是期望的输出（没有时只检查能否
+ * 正常运行）。比较输出时忽略行尾空白和末尾的空行。每个用例使用独立的 Analyser 和 MiniVm，在虚拟线程上
+ * 并发执行；JDK 21 之前没有虚拟线程，退回到固定大小的线程池。同时执行的用例数不超过 parallelism：
+ * 用例都是计算密集的，多于处理器个数并不会更快；而且 MiniVm 的栈从 512 KiB 开始按需增长，深递归的
+ * 用例最多可以用到 128 MiB，再加上各自的堆，不限制并发数时几个这样的用例同时运行就可能耗尽 Java 堆。
+ */
+public class BatchRunner {
+    enum Status {
+        PASS, WRONG_ANSWER, COMPILE_ERROR, RUNTIME_ERROR, OUT_OF_FUEL
+    }
+
+    static class Result {
+        final String name;
+        final Status status;
+        final long nanos;
+        final String message;
+
+        Result(String name, Status status, long nanos, String message) {
+            this.name = name;
+            this.status = status;
+            this.nanos = nanos;
+            this.message = message;
+        }
+    }
+
+    private final File directory;
+    private final int parallelism;
+    private final boolean jit;
+    private final long fuel;
+
+    /**
+     * @param parallelism 同时执行的用例数上限
+     * @param jit 运行前是否把函数编译成 JVM 字节码
+     * @param fuel 每个用例最多执行的指令数，MiniVm.UNLIMITED 表示不限制
+     */
+    public BatchRunner(File directory, int parallelism, boolean jit, long fuel) {
+        this.directory = directory;
+        this.parallelism = parallelism;
+        this.jit = jit;
+        this.fuel = fuel;
+    }
+
+    /**
+     * 运行所有用例并把报告写到 report
+     *
+     * @return 全部通过时为 true
+     */
+    public boolean run(PrintStream report) throws IOException {
+        File[] sources = directory.listFiles((dir, name) -> name.endsWith(".c0"));
+        if (sources == null) {
+            throw new IOException("cannot list directory " + directory);
+        }
+        Arrays.sort(sources);
+
+        Semaphore permits = new Semaphore(parallelism);
+        List<Future<Result>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        ExecutorService executor = newExecutor(parallelism);
+        try {
+            for (File source : sources) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return runCase(source);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new Error("runner task failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted", e);
+                }
+            }
+            long wall = System.nanoTime() - start;
+            return report(results, wall, report);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * JDK 21 起用 Executors.newVirtualThreadPerTaskExecutor，之前的版本用固定大小的线程池
+     */
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    private Result runCase(File source) throws IOException {
+        String name = source.getName().substring(0, source.getName().length() - ".c0".length());
+        File inputFile = new File(directory, name + ".in");
+        File expectedFile = new File(directory, name + ".out");
+        String program = Files.readString(source.toPath());
+        byte[] input = inputFile.exists() ? Files.readAllBytes(inputFile.toPath()) : new byte[0];
+        String expected = expectedFile.exists() ? Files.readString(expectedFile.toPath()) : null;
+
+        long start = System.nanoTime();
+        var analyser = new Analyser(new Tokenizer(new StringIter(new Scanner(program))));
+        try {
+            analyser.analyseProgram();
+        } catch (CompileError | RuntimeException e) {
+            return new Result(name, Status.COMPILE_ERROR, System.nanoTime() - start, e.toString());
+        }
+        var output = new ByteArrayOutputStream();
+        try {
+            var vm = new MiniVm(analyser.getGlobalVariable(), analyser.getFnLists(),
+                    new ByteArrayInputStream(input), new PrintStream(output));
+            if (jit) {
+                vm.compileAll();
+            }
+            vm.setFuel(fuel);
+            vm.Run();
+        } catch (FuelExhaustedError e) {
+            return new Result(name, Status.OUT_OF_FUEL, System.nanoTime() - start, e.getMessage());
+        } catch (Error | RuntimeException e) {
+            return new Result(name, Status.RUNTIME_ERROR, System.nanoTime() - start, e.getMessage());
+        }
+        long nanos = System.nanoTime() - start;
+        String actual = output.toString(StandardCharsets.UTF_8);
+        if (expected != null && !normalize(actual).equals(normalize(expected))) {
+            return new Result(name, Status.WRONG_ANSWER, nanos, null);
+        }
+        return new Result(name, Status.PASS, nanos, null);
+    }
+
+    /**
+     * 去掉行尾空白和末尾的空行
+     */
+    private static String normalize(String s) {
+        String[] lines = s.split("\r?\n", -1);
+        int end = lines.length;
+        while (end > 0 && lines[end - 1].isBlank()) {
+            end--;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < end; i++) {
+            sb.append(lines[i].stripTrailing()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * 最近秩法求百分位数，sorted 已升序排好
+     */
+    private static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static boolean report(List<Result> results, long wall, PrintStream out) {
+        int passed = 0;
+        long[] latencies = new long[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            latencies[i] = r.nanos;
+            if (r.status == Status.PASS) {
+                passed++;
+            }
+            out.printf("%-30s %-14s %10.2f ms%s%n", r.name, r.status, millis(r.nanos),
+                    r.message == null ? "" : "  " + r.message);
+        }
+        out.println();
+        out.printf("cases: %d, passed: %d, failed: %d%n", results.size(), passed, results.size() - passed);
+        out.printf("wall time: %.2f ms, throughput: %.1f cases/s%n", millis(wall),
+                wall == 0 ? 0.0 : results.size() / (wall / 1e9));
+        if (latencies.length > 0) {
+            Arrays.sort(latencies);
+            out.printf("latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    millis(percentile(latencies, 50)), millis(percentile(latencies, 90)),
+                    millis(percentile(latencies, 99)), millis(latencies[latencies.length - 1]));
+        }
+        out.flush();
+        return passed == results.size();
+    }
+}
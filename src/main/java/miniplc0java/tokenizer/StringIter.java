@@ -43,7 +43,6 @@ public class StringIter {
         while (scanner.hasNext()) {
             String line = scanner.nextLine();
             linesBuffer.add(line + '\n');
-            System.out.println(line);
         }
         // todo:check read \n?
         initialized = true;
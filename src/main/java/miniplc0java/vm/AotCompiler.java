@@ -0,0 +1,76 @@
+package miniplc0java.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import miniplc0java.vm.ClassWriter.Bail;
+
+/**
+ * 预先把整个程序编译成可以直接用 java -jar 运行的 JAR
+ *
+ * 每个函数编译成 AotProgram 中的一个静态方法，和 Jit 生成的代码相同，但函数之间全部直接调用，
+ * 运行时只需要 AotRuntime、Memory 和 Builtins。程序中有 Jit 不能编译的函数时不能生成 JAR。
+ */
+public final class AotCompiler {
+    /** 从编译器自己的类路径复制到 JAR 中的运行时类 */
+    private static final Class<?>[] RUNTIME = {AotRuntime.class, Memory.class, Builtins.class};
+
+    private AotCompiler() {
+    }
+
+    /**
+     * @throws Error 有函数不能编译时
+     */
+    public static void compile(Module module, OutputStream out) throws IOException {
+        byte[] program;
+        try {
+            program = Jit.compileClass(module, AotRuntime.PROGRAM, AotRuntime.class.getName().replace('.', '/'));
+        } catch (Bail e) {
+            throw new Error("cannot compile function " + e.getMessage());
+        }
+
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, AotRuntime.class.getName());
+        var jar = new JarOutputStream(out, manifest);
+        write(jar, AotRuntime.PROGRAM + ".class", program);
+        for (Class<?> c : RUNTIME) {
+            String name = c.getName().replace('.', '/') + ".class";
+            try (InputStream in = c.getClassLoader().getResourceAsStream(name)) {
+                if (in == null) {
+                    throw new IOException("cannot find " + name);
+                }
+                write(jar, name, in.readAllBytes());
+            }
+        }
+        write(jar, AotRuntime.GLOBALS, globals(module.globals));
+        jar.finish();
+        out.flush();
+    }
+
+    private static byte[] globals(String[] globals) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeInt(globals.length);
+        for (String global : globals) {
+            byte[] utf8 = global.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write(JarOutputStream jar, String name, byte[] content) throws IOException {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(content);
+        jar.closeEntry();
+    }
+}
@@ -0,0 +1,84 @@
+package miniplc0java.vm;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * AotCompiler 生成的 JAR 的入口
+ *
+ * JAR 里只有这个类、Memory、Builtins、编译出的 AotProgram 和全局变量表，没有解释器和编译器。
+ * AotProgram 中的方法把这个类的对象当作 MiniVm 使用，只访问 memory 和 builtins 两个字段。
+ */
+public final class AotRuntime {
+    /** 编译出的类，内部形式 */
+    static final String PROGRAM = "miniplc0java/vm/AotProgram";
+    /** JAR 中全局变量表的资源名：u32 个数，之后每项是 u32 字节数和 UTF-8 内容 */
+    static final String GLOBALS = "c0-globals";
+
+    final Memory memory;
+    final Builtins builtins;
+
+    private AotRuntime(String[] globals) {
+        this.memory = new Memory(globals.length, new long[0]);
+        this.builtins = new Builtins(globals, System.in, System.out);
+    }
+
+    public static void main(String[] args) throws Throwable {
+        var runtime = new AotRuntime(readGlobals());
+        MethodHandle start = MethodHandles.lookup().findStatic(Class.forName(PROGRAM.replace('/', '.')), "f0",
+                MethodType.methodType(void.class, AotRuntime.class));
+        Throwable[] failure = new Throwable[1];
+        // 编译出的代码递归占用 Java 栈，和 MiniVm 一样在大栈的线程中执行，见 MiniVm.JAVA_STACK_BYTES
+        Thread thread = new Thread(null, () -> failure[0] = run(runtime, start), "c0-run",
+                16L * Memory.MAX_STACK_SLOTS);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * @return 执行中抛出的错误，正常结束时为 null
+     */
+    private static Throwable run(AotRuntime runtime, MethodHandle start) {
+        Throwable failure = null;
+        try {
+            start.invokeExact(runtime);
+        } catch (ArithmeticException e) {
+            failure = new Error("division by zero", e);
+        } catch (StackOverflowError e) {
+            failure = new Error("stack overflow", e);
+        } catch (Throwable e) {
+            failure = e;
+        }
+        try {
+            // 出错结束时也输出已经缓冲的内容
+            runtime.builtins.finish(failure);
+        } catch (Error e) {
+            return e;
+        }
+        return failure;
+    }
+
+    private static String[] readGlobals() throws IOException {
+        try (InputStream resource = AotRuntime.class.getClassLoader().getResourceAsStream(GLOBALS)) {
+            if (resource == null) {
+                throw new IOException("missing " + GLOBALS);
+            }
+            var in = new DataInputStream(resource);
+            String[] globals = new String[in.readInt()];
+            for (int i = 0; i < globals.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                globals[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return globals;
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package miniplc0java.vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * callname 调用的标准库函数，解释器和编译后的代码共用
+ *
+ * 输入输出都直接在字节缓冲区上进行：输出攒在一个大缓冲区里，满了、读输入前或程序结束时才写出；
+ * 输入按字节手工解析，不经过 Scanner。除 putdouble 的一般情况和超长的小数输入外不分配对象。
+ */
+class Builtins {
+    // callname 的操作数在加载时换算成这些编号，执行时不再按名字查找
+    static final int GETINT = 0;
+    static final int GETDOUBLE = 1;
+    static final int GETCHAR = 2;
+    static final int PUTINT = 3;
+    static final int PUTDOUBLE = 4;
+    static final int PUTCHAR = 5;
+    static final int PUTSTR = 6;
+    static final int PUTLN = 7;
+    /** 按编号排列的函数名，也是生成代码时调用的方法名 */
+    static final String[] NAMES = {"getint", "getdouble", "getchar", "putint", "putdouble", "putchar", "putstr", "putln"};
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String[] globals;
+    /** putstr 用到的字符串编码后的字节，第一次输出时生成 */
+    private final byte[][] strings;
+
+    private final InputStream in;
+    private final byte[] inBuf = new byte[BUFFER_SIZE];
+    private int inPos;
+    private int inEnd;
+
+    private final OutputStream out;
+    private final byte[] outBuf = new byte[BUFFER_SIZE];
+    private int outPos;
+
+    /** 是否读过输入或写出过输出 */
+    private boolean used;
+
+    /** 解析 long 范围外的小数时暂存字符 */
+    private final StringBuilder token = new StringBuilder();
+
+    Builtins(String[] globals, InputStream in, OutputStream out) {
+        this.globals = globals;
+        this.strings = new byte[globals.length][];
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * @return 名为 name 的函数的编号，没有时为 -1
+     */
+    static int index(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 输入
+
+    /**
+     * @return 下一个字节，输入结束时为 -1
+     */
+    private int read() {
+        if (inPos == inEnd) {
+            used = true;
+            // 交互使用时先让提示输出
+            flush();
+            try {
+                inEnd = in.read(inBuf, 0, inBuf.length);
+            } catch (IOException e) {
+                throw new Error("failed to read input", e);
+            }
+            inPos = 0;
+            if (inEnd <= 0) {
+                inEnd = 0;
+                return -1;
+            }
+        }
+        return inBuf[inPos++] & 0xff;
+    }
+
+    private int peek() {
+        int c = read();
+        if (c >= 0) {
+            inPos--;
+        }
+        return c;
+    }
+
+    private int skipSpaces() {
+        int c = read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f') {
+            c = read();
+        }
+        if (c < 0) {
+            throw new Error("unexpected end of input");
+        }
+        return c;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    long getint() {
+        int c = skipSpaces();
+        boolean negative = c == '-';
+        if (c == '-' || c == '+') {
+            c = read();
+        }
+        if (!isDigit(c)) {
+            throw new Error("invalid integer input");
+        }
+        // 用负数累加，这样 Long.MIN_VALUE 也不会溢出
+        long x = 0;
+        while (isDigit(c)) {
+            int d = c - '0';
+            if (x < (Long.MIN_VALUE + d) / 10) {
+                throw new Error("integer input out of range");
+            }
+            x = x * 10 - d;
+            c = read();
+        }
+        if (c >= 0) {
+            inPos--;
+        }
+        if (!negative) {
+            if (x == Long.MIN_VALUE) {
+                throw new Error("integer input out of range");
+            }
+            x = -x;
+        }
+        return x;
+    }
+
+    /** 10 的 0 到 22 次方都能用 double 精确表示 */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    /**
+     * 有效数字不超过 15 位且指数绝对值不超过 22 时直接算出精确舍入的结果，其余交给 Double.parseDouble
+     */
+    long getdouble() {
+        int c = skipSpaces();
+        token.setLength(0);
+        boolean negative = c == '-';
+        if (c == '-' || c == '+') {
+            token.append((char) c);
+            c = read();
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        while (isDigit(c)) {
+            any = true;
+            token.append((char) c);
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+            c = read();
+        }
+        if (c == '.') {
+            token.append('.');
+            c = read();
+            while (isDigit(c)) {
+                any = true;
+                token.append((char) c);
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+                c = read();
+            }
+        }
+        if (!any) {
+            throw new Error("invalid double input");
+        }
+        if (c == 'e' || c == 'E') {
+            token.append((char) c);
+            c = read();
+            boolean negativeExp = c == '-';
+            if (c == '-' || c == '+') {
+                token.append((char) c);
+                c = read();
+            }
+            if (!isDigit(c)) {
+                throw new Error("invalid double input");
+            }
+            int e = 0;
+            while (isDigit(c)) {
+                token.append((char) c);
+                e = Math.min(e * 10 + (c - '0'), 100000);
+                c = read();
+            }
+            exponent += negativeExp ? -e : e;
+        }
+        if (c >= 0) {
+            inPos--;
+        }
+        double value;
+        if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+            value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            if (negative) {
+                value = -value;
+            }
+        } else {
+            value = Double.parseDouble(token.toString());
+        }
+        return Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * 读入一个 UTF-8 字符，输入结束时返回 -1
+     */
+    long getchar() {
+        int c = read();
+        if (c < 0x80) {
+            return c;
+        }
+        int extra = c >= 0xf0 ? 3 : c >= 0xe0 ? 2 : 1;
+        int code = c & (0x3f >> extra);
+        for (int i = 0; i < extra; i++) {
+            int next = peek();
+            if ((next & 0xc0) != 0x80) {
+                break;
+            }
+            code = (code << 6) | (read() & 0x3f);
+        }
+        return code;
+    }
+
+    // 输出
+
+    private void ensure(int n) {
+        if (outBuf.length - outPos < n) {
+            flush();
+        }
+    }
+
+    void putint(long x) {
+        ensure(20);
+        if (x == 0) {
+            outBuf[outPos++] = '0';
+            return;
+        }
+        if (x < 0) {
+            outBuf[outPos++] = '-';
+        } else {
+            x = -x;
+        }
+        // x 为负数，逐位取出后倒序
+        int start = outPos;
+        while (x != 0) {
+            outBuf[outPos++] = (byte) ('0' - x % 10);
+            x /= 10;
+        }
+        for (int i = start, j = outPos - 1; i < j; i++, j--) {
+            byte t = outBuf[i];
+            outBuf[i] = outBuf[j];
+            outBuf[j] = t;
+        }
+    }
+
+    /**
+     * 输出和 Double.toString 相同，整数值走不分配对象的快速路径
+     */
+    void putdouble(long x) {
+        double d = Double.longBitsToDouble(x);
+        if (d == (long) d && Math.abs(d) < 1e7 && (d != 0 || x == 0)) {
+            putint((long) d);
+            ensure(2);
+            outBuf[outPos++] = '.';
+            outBuf[outPos++] = '0';
+        } else {
+            putAscii(Double.toString(d));
+        }
+    }
+
+    private void putAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            outBuf[outPos++] = (byte) s.charAt(i);
+        }
+    }
+
+    void putchar(long x) {
+        int c = (int) x;
+        ensure(4);
+        if (c < 0x80) {
+            outBuf[outPos++] = (byte) c;
+        } else if (c < 0x800) {
+            outBuf[outPos++] = (byte) (0xc0 | (c >> 6));
+            outBuf[outPos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (c < 0x10000) {
+            outBuf[outPos++] = (byte) (0xe0 | (c >> 12));
+            outBuf[outPos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            outBuf[outPos++] = (byte) (0x80 | (c & 0x3f));
+        } else {
+            outBuf[outPos++] = (byte) (0xf0 | ((c >> 18) & 0x07));
+            outBuf[outPos++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+            outBuf[outPos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            outBuf[outPos++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * @param x 字符串字面量在全局变量表中的下标
+     */
+    void putstr(long x) {
+        byte[] s = strings[(int) x];
+        if (s == null) {
+            s = strings[(int) x] = globals[(int) x].getBytes(StandardCharsets.UTF_8);
+        }
+        if (s.length > outBuf.length) {
+            flush();
+            write(s, s.length);
+            return;
+        }
+        ensure(s.length);
+        System.arraycopy(s, 0, outBuf, outPos, s.length);
+        outPos += s.length;
+    }
+
+    void putln() {
+        ensure(1);
+        outBuf[outPos++] = '\n';
+    }
+
+    void flush() {
+        write(outBuf, outPos);
+        outPos = 0;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new Error("failed to write output", e);
+        }
+    }
+
+    /**
+     * 程序结束时调用，正常结束和出错结束都要输出已经缓冲的内容
+     *
+     * @param failure 程序出错结束时的异常，正常结束时为 null；这时写输出失败的异常附加在它上面，不替换它
+     */
+    void finish(Throwable failure) {
+        try {
+            flush();
+        } catch (Error e) {
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        }
+    }
+
+    private void write(byte[] bytes, int length) {
+        if (length == 0) {
+            return;
+        }
+        used = true;
+        try {
+            out.write(bytes, 0, length);
+        } catch (IOException e) {
+            throw new Error("failed to write output", e);
+        }
+    }
+
+    /**
+     * 是否有过输入输出，输出还在缓冲区里时也算
+     */
+    boolean used() {
+        return used || outPos > 0;
+    }
+
+    /**
+     * 解释器用的入口，参数和返回值槽都在栈上
+     *
+     * @param builtin Loader 换算出的编号，见 NAMES
+     * @return 新的栈顶
+     */
+    int call(int builtin, long[] stack, int sp) {
+        switch (builtin) {
+            case GETINT:
+                stack[sp - 1] = getint();
+                break;
+            case GETDOUBLE:
+                stack[sp - 1] = getdouble();
+                break;
+            case GETCHAR:
+                stack[sp - 1] = getchar();
+                break;
+            case PUTINT:
+                putint(stack[--sp]);
+                break;
+            case PUTDOUBLE:
+                putdouble(stack[--sp]);
+                break;
+            case PUTCHAR:
+                putchar(stack[--sp]);
+                break;
+            case PUTSTR:
+                putstr(stack[--sp]);
+                break;
+            case PUTLN:
+                putln();
+                break;
+            default:
+                throw new Error("unknown function " + builtin);
+        }
+        return sp;
+    }
+}
@@ -0,0 +1,270 @@
+package miniplc0java.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 最小的 class 文件生成器，只支持 Jit 用到的常量和方法
+ *
+ * 生成 50 版本（Java 6）的 class 文件，这样不需要 StackMapTable，由 JVM 的类型推导校验器校验。
+ */
+class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 50;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final ArrayList<Integer> interfaces = new ArrayList<>();
+    private final ArrayList<byte[]> methods = new ArrayList<>();
+    private final int codeName;
+
+    ClassWriter(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        codeName = utf8("Code");
+    }
+
+    void addInterface(String name) {
+        interfaces.add(classRef(name));
+    }
+
+    int utf8(String s) {
+        return constant("U" + s, 1, out -> out.writeUTF(s), 1);
+    }
+
+    int classRef(String name) {
+        int n = utf8(name);
+        return constant("C" + name, 7, out -> out.writeShort(n), 1);
+    }
+
+    int longConst(long x) {
+        return constant("J" + x, 5, out -> out.writeLong(x), 2);
+    }
+
+    int intConst(int x) {
+        return constant("I" + x, 3, out -> out.writeInt(x), 1);
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+        return memberRef(9, owner, name, desc);
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return memberRef(10, owner, name, desc);
+    }
+
+    private int memberRef(int tag, String owner, String name, String desc) {
+        int c = classRef(owner);
+        int n = utf8(name);
+        int d = utf8(desc);
+        int nt = constant("N" + name + " " + desc, 12, out -> {
+            out.writeShort(n);
+            out.writeShort(d);
+        }, 1);
+        return constant(tag + owner + "." + name + desc, tag, out -> {
+            out.writeShort(c);
+            out.writeShort(nt);
+        }, 1);
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int tag, Body body, int size) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(tag);
+            body.write(poolOut);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xffff) {
+            throw new Bail("constant pool too large");
+        }
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    void addMethod(int access, String name, String desc, Code code) {
+        int n = utf8(name);
+        int d = utf8(desc);
+        byte[] bytes = code.toByteArray();
+        var bo = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bo);
+        try {
+            out.writeShort(access);
+            out.writeShort(n);
+            out.writeShort(d);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + bytes.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        methods.add(bo.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        var bo = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bo);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] m : methods) {
+                out.write(m);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        return bo.toByteArray();
+    }
+
+    /**
+     * 一个方法的字节码，跳转用 Label 回填
+     */
+    static class Code {
+        private byte[] buf = new byte[256];
+        private int length;
+        int maxStack;
+        int maxLocals;
+
+        int position() {
+            return length;
+        }
+
+        void u1(int x) {
+            if (length == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[length++] = (byte) x;
+        }
+
+        void u2(int x) {
+            u1(x >> 8);
+            u1(x);
+        }
+
+        void u4(int x) {
+            u2(x >> 16);
+            u2(x);
+        }
+
+        void patch4(int at, int x) {
+            buf[at] = (byte) (x >> 24);
+            buf[at + 1] = (byte) (x >> 16);
+            buf[at + 2] = (byte) (x >> 8);
+            buf[at + 3] = (byte) x;
+        }
+
+        void op(int opcode, int u2) {
+            u1(opcode);
+            u2(u2);
+        }
+
+        /**
+         * 带局部变量下标的指令，超过 255 时加 wide 前缀
+         */
+        void local(int opcode, int index) {
+            if (index > 255) {
+                u1(0xc4);
+                u1(opcode);
+                u2(index);
+            } else {
+                u1(opcode);
+                u1(index);
+            }
+        }
+
+        /**
+         * 16 位偏移的跳转，目标位置之后由 bind 决定
+         */
+        void jump(int opcode, Label label) {
+            int at = length;
+            u1(opcode);
+            if (label.position >= 0) {
+                u2(offset(label.position - at));
+            } else {
+                label.pending.add(at);
+                u2(0);
+            }
+        }
+
+        void bind(Label label) {
+            label.position = length;
+            for (int at : label.pending) {
+                int d = offset(length - at);
+                buf[at + 1] = (byte) (d >> 8);
+                buf[at + 2] = (byte) d;
+            }
+            label.pending.clear();
+        }
+
+        private static int offset(int d) {
+            if (d < Short.MIN_VALUE || d > Short.MAX_VALUE) {
+                throw new Bail("method too large");
+            }
+            return d;
+        }
+
+        byte[] toByteArray() {
+            if (length > 0xffff) {
+                throw new Bail("method too large");
+            }
+            return Arrays.copyOf(buf, length);
+        }
+    }
+
+    static class Label {
+        int position = -1;
+        final ArrayList<Integer> pending = new ArrayList<>();
+    }
+
+    /**
+     * 无法编译时抛出，调用方回退到解释执行
+     */
+    static class Bail extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Bail(String reason) {
+            super(reason, null, false, false);
+        }
+    }
+}
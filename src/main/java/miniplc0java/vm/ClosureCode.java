@@ -0,0 +1,664 @@
+package miniplc0java.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 闭包编译：把函数体变成预先绑定好操作数的 Java 对象树，不生成字节码，第一次调用就能以较快的速度执行
+ *
+ * 每个基本块翻译成一串语句和一个出口。按 Verifier 算出的栈高度模拟操作数栈，栈上放的是表达式树，
+ * 一个表达式语句（如 x = a * b + c）的各条指令合成一棵树，树的叶子直接是栈帧中的槽、全局变量或常量。
+ * 栈帧布局与解释器相同，局部变量从 fp 开始，操作数栈第 h 层的值在需要时写到 fp + locSlots + h，
+ * 这发生在基本块结束、调用和可能改写变量的 store 之前，保证求值顺序与栈式代码一致。
+ *
+ * 编译结果实现 CompiledCode，放在 MiniVm.compiled 中，和 Jit 编译的代码一样被调用。基本块之间的跳转
+ * 是 Function.invoke 里的循环，函数调用是 Java 的递归调用。每层 c0 调用占 Function.invoke、Stmt.exec、
+ * Expr.eval 等几个 Java 栈帧，共几百字节，MiniVm.Run 在栈足够大的线程中执行，见 MiniVm.JAVA_STACK_BYTES。
+ */
+final class ClosureCode {
+    private ClosureCode() {
+    }
+
+    interface Expr {
+        long eval(long[] stack, int fp, MiniVm vm);
+    }
+
+    interface Stmt {
+        void exec(long[] stack, int fp, MiniVm vm);
+    }
+
+    /** 基本块的出口，返回下一个基本块的编号，函数返回时为 -1 */
+    interface Exit {
+        int next(long[] stack, int fp, MiniVm vm);
+    }
+
+    private static final Stmt[] EMPTY = new Stmt[0];
+
+    static final class Function implements CompiledCode {
+        private final int argSlots;
+        private final int locSlots;
+        private final int frameSlots;
+        private final Stmt[][] bodies;
+        private final Exit[] exits;
+
+        private Function(int argSlots, int locSlots, int frameSlots, Stmt[][] bodies, Exit[] exits) {
+            this.argSlots = argSlots;
+            this.locSlots = locSlots;
+            this.frameSlots = frameSlots;
+            this.bodies = bodies;
+            this.exits = exits;
+        }
+
+        @Override
+        public void invoke(int id, long[] stack, int base, MiniVm vm) {
+            int fp = base + argSlots + MiniVm.FRAME_HEADER;
+            if (fp + frameSlots > stack.length) {
+                stack = vm.ensureStack(fp + frameSlots);
+            }
+            Arrays.fill(stack, fp, fp + locSlots, 0L);
+            int block = 0;
+            do {
+                // 调用其它函数的语句可能让栈增长，每条语句都从 vm 取当前的栈
+                for (Stmt stmt : bodies[block]) {
+                    stmt.exec(vm.stack, fp, vm);
+                }
+                block = exits[block].next(vm.stack, fp, vm);
+            } while (block >= 0);
+        }
+    }
+
+    /**
+     * 编译模块中的所有函数
+     */
+    static Function[] compile(Module module) {
+        int[] heights = new int[module.code.length];
+        int[] maxStack = Verifier.verify(module, heights);
+        Function[] functions = new Function[module.functionCount()];
+        for (int id = 0; id < functions.length; id++) {
+            functions[id] = new Builder(module, heights, id).function(maxStack[id]);
+        }
+        return functions;
+    }
+
+    private static final class Builder {
+        // 模拟的操作数栈上值的种类
+        /** 值在槽 fp + value 中 */
+        private static final int SLOT = 0;
+        /** 值就是 value */
+        private static final int CONST = 1;
+        /** 值是槽 fp + value 的地址 */
+        private static final int SLOT_ADDR = 2;
+        /** 值由 tree 计算 */
+        private static final int TREE = 3;
+
+        private final Module module;
+        private final int[] heights;
+        private final int id;
+        private final int begin;
+        private final int end;
+        private final int locSlots;
+        private final int argBase;
+        /** 每条指令所在基本块的编号，只对块的第一条指令有意义 */
+        private final int[] blockAt;
+
+        private int[] kind;
+        private long[] value;
+        private Expr[] tree;
+        private int depth;
+        /** 当前翻译的指令位置 */
+        private int pc;
+        private final ArrayList<Stmt> body = new ArrayList<>();
+
+        Builder(Module module, int[] heights, int id) {
+            this.module = module;
+            this.heights = heights;
+            this.id = id;
+            this.begin = module.entry[id];
+            this.end = module.end(id);
+            this.locSlots = module.locSlots[id];
+            this.argBase = -MiniVm.FRAME_HEADER - module.argSlots(id);
+            this.blockAt = new int[end - begin];
+        }
+
+        Function function(int maxStack) {
+            int[] code = module.code;
+            long[] operands = module.operands;
+            boolean[] leader = new boolean[end - begin + 1];
+            leader[0] = true;
+            for (int p = begin; p < end; p++) {
+                if (Opcode.isBranch(code[p])) {
+                    leader[(int) operands[p] - begin] = true;
+                }
+                if (Opcode.isBranch(code[p]) || code[p] == Opcode.RET) {
+                    leader[p + 1 - begin] = true;
+                }
+            }
+            int blocks = 0;
+            for (int i = 0; i < end - begin; i++) {
+                if (leader[i]) {
+                    blockAt[i] = blocks++;
+                }
+            }
+
+            kind = new int[maxStack];
+            value = new long[maxStack];
+            tree = new Expr[maxStack];
+            Stmt[][] bodies = new Stmt[blocks][];
+            Exit[] exits = new Exit[blocks];
+            int block = -1;
+            for (pc = begin; pc < end; pc++) {
+                if (leader[pc - begin]) {
+                    block = blockAt[pc - begin];
+                    body.clear();
+                    depth = heights[pc];
+                    for (int k = 0; k < depth; k++) {
+                        set(k, SLOT, home(k), null);
+                    }
+                }
+                if (depth < 0) {
+                    // 执行不到的块
+                    bodies[block] = EMPTY;
+                    exits[block] = unreachable(pc);
+                    continue;
+                }
+                Exit exit = instruction(code[pc], operands[pc]);
+                if (exit == null && leader[pc + 1 - begin]) {
+                    // 顺序进入下一个块
+                    flush();
+                    int next = blockAt[pc + 1 - begin];
+                    exit = (s, fp, vm) -> next;
+                }
+                if (exit != null) {
+                    bodies[block] = body.toArray(EMPTY);
+                    exits[block] = exit;
+                    depth = -1;
+                }
+            }
+            return new Function(module.argSlots(id), locSlots, locSlots + maxStack, bodies, exits);
+        }
+
+        /**
+         * 翻译一条指令，是块的最后一条时返回块的出口
+         */
+        private Exit instruction(int op, long x) {
+            int top = depth - 1;
+            switch (op) {
+                case Opcode.NOP:
+                    return null;
+                case Opcode.PUSH:
+                    push(CONST, x, null);
+                    return null;
+                case Opcode.POP:
+                    discard(top);
+                    depth--;
+                    return null;
+                case Opcode.POPN:
+                    for (int n = (int) x; n > 0; n--) {
+                        discard(--depth);
+                    }
+                    return null;
+                case Opcode.DUP:
+                    if (kind[top] == TREE) {
+                        materialize(top);
+                    }
+                    push(kind[top], value[top], tree[top]);
+                    return null;
+                case Opcode.STACKALLOC:
+                    for (int n = (int) x; n > 0; n--) {
+                        push(CONST, 0, null);
+                    }
+                    return null;
+                case Opcode.LOCA:
+                    push(SLOT_ADDR, x, null);
+                    return null;
+                case Opcode.ARGA:
+                    push(SLOT_ADDR, argBase + x, null);
+                    return null;
+                case Opcode.GLOBA:
+                    push(CONST, Memory.global((int) x), null);
+                    return null;
+                case Opcode.LOCA_LOAD:
+                    push(SLOT, x, null);
+                    return null;
+                case Opcode.ARGA_LOAD:
+                    push(SLOT, argBase + x, null);
+                    return null;
+                case Opcode.GLOBA_LOAD: {
+                    int offset = Memory.GLOBALS_BASE + 8 * (int) x;
+                    push(TREE, 0, (s, fp, vm) -> vm.memory.buffer.getLong(offset));
+                    return null;
+                }
+                case Opcode.LOAD8:
+                case Opcode.LOAD16:
+                case Opcode.LOAD32:
+                case Opcode.LOAD64:
+                    load(op, top);
+                    return null;
+                case Opcode.STORE8:
+                case Opcode.STORE16:
+                case Opcode.STORE32:
+                case Opcode.STORE64:
+                    store(op, top);
+                    depth -= 2;
+                    return null;
+                case Opcode.ALLOC: {
+                    // 分配有副作用，立即执行
+                    Expr size = expr(top);
+                    int slot = home(top);
+                    body.add((s, fp, vm) -> s[fp + slot] = vm.memory.alloc(size.eval(s, fp, vm)));
+                    set(top, SLOT, slot, null);
+                    return null;
+                }
+                case Opcode.FREE: {
+                    Expr address = expr(top);
+                    depth--;
+                    body.add((s, fp, vm) -> vm.memory.free(address.eval(s, fp, vm)));
+                    return null;
+                }
+                case Opcode.BR: {
+                    flush();
+                    int target = target(x);
+                    return (s, fp, vm) -> target;
+                }
+                case Opcode.BRTRUE:
+                case Opcode.BRFALSE: {
+                    Expr condition = expr(top);
+                    depth--;
+                    flush();
+                    int target = target(x);
+                    int next = blockAt[pc + 1 - begin];
+                    if (op == Opcode.BRTRUE) {
+                        return (s, fp, vm) -> condition.eval(s, fp, vm) != 0 ? target : next;
+                    }
+                    return (s, fp, vm) -> condition.eval(s, fp, vm) == 0 ? target : next;
+                }
+                case Opcode.CALL: {
+                    flush();
+                    int callee = (int) x;
+                    int base = home(depth) - module.argSlots(callee);
+                    body.add((s, fp, vm) -> MiniVm.callAt(callee, fp + base, vm));
+                    depth -= module.argSlots(callee);
+                    for (int n = module.retSlots[callee]; n > 0; n--) {
+                        push(SLOT, home(depth), null);
+                    }
+                    return null;
+                }
+                case Opcode.CALLNAME: {
+                    flush();
+                    int builtin = (int) x;
+                    int sp = home(depth);
+                    body.add((s, fp, vm) -> vm.builtins.call(builtin, s, fp + sp));
+                    switch (builtin) {
+                        case Builtins.PUTINT:
+                        case Builtins.PUTDOUBLE:
+                        case Builtins.PUTCHAR:
+                        case Builtins.PUTSTR:
+                            depth--;
+                            break;
+                        default:
+                            // get* 的返回值写在原来的槽里，putln 不改变栈
+                            break;
+                    }
+                    return null;
+                }
+                case Opcode.RET:
+                    return (s, fp, vm) -> -1;
+                default:
+                    break;
+            }
+            if (op >= Opcode.JGE && op <= Opcode.JLT) {
+                return jump(op, x, top);
+            }
+            boolean unary = op == Opcode.NOT || op == Opcode.NEGI || op == Opcode.NEGF || op == Opcode.ITOF
+                    || op == Opcode.FTOI || op == Opcode.SETLT || op == Opcode.SETGT;
+            Expr result = unary ? unary(op, expr(top)) : binary(op, top);
+            if (result == null) {
+                throw new Error("Illegal instruction " + Opcode.name(op));
+            }
+            if (!unary) {
+                depth--;
+            }
+            set(depth - 1, TREE, 0, result);
+            return null;
+        }
+
+        private Exit jump(int op, long x, int top) {
+            if (kind[top - 1] == SLOT && (kind[top] == SLOT || kind[top] == CONST)) {
+                return jumpSlot(op, x, top);
+            }
+            Expr left = expr(top - 1);
+            boolean immediate = kind[top] == CONST;
+            long k = value[top];
+            Expr right = expr(top);
+            depth -= 2;
+            flush();
+            int target = target(x);
+            int next = blockAt[pc + 1 - begin];
+            switch (op) {
+                case Opcode.JGE:
+                    return immediate ? (s, fp, vm) -> left.eval(s, fp, vm) >= k ? target : next
+                            : (s, fp, vm) -> left.eval(s, fp, vm) >= right.eval(s, fp, vm) ? target : next;
+                case Opcode.JLE:
+                    return immediate ? (s, fp, vm) -> left.eval(s, fp, vm) <= k ? target : next
+                            : (s, fp, vm) -> left.eval(s, fp, vm) <= right.eval(s, fp, vm) ? target : next;
+                case Opcode.JNE:
+                    return immediate ? (s, fp, vm) -> left.eval(s, fp, vm) != k ? target : next
+                            : (s, fp, vm) -> left.eval(s, fp, vm) != right.eval(s, fp, vm) ? target : next;
+                case Opcode.JEQ:
+                    return immediate ? (s, fp, vm) -> left.eval(s, fp, vm) == k ? target : next
+                            : (s, fp, vm) -> left.eval(s, fp, vm) == right.eval(s, fp, vm) ? target : next;
+                case Opcode.JGT:
+                    return immediate ? (s, fp, vm) -> left.eval(s, fp, vm) > k ? target : next
+                            : (s, fp, vm) -> left.eval(s, fp, vm) > right.eval(s, fp, vm) ? target : next;
+                default:
+                    return immediate ? (s, fp, vm) -> left.eval(s, fp, vm) < k ? target : next
+                            : (s, fp, vm) -> left.eval(s, fp, vm) < right.eval(s, fp, vm) ? target : next;
+            }
+        }
+
+        /**
+         * 循环条件最常见的形式：变量和变量或常量比较
+         */
+        private Exit jumpSlot(int op, long x, int top) {
+            int l = (int) value[top - 1];
+            long v = value[top];
+            int r = (int) v;
+            boolean immediate = kind[top] == CONST;
+            depth -= 2;
+            flush();
+            int target = target(x);
+            int next = blockAt[pc + 1 - begin];
+            switch (op) {
+                case Opcode.JGE:
+                    return immediate ? (s, fp, vm) -> s[fp + l] >= v ? target : next
+                            : (s, fp, vm) -> s[fp + l] >= s[fp + r] ? target : next;
+                case Opcode.JLE:
+                    return immediate ? (s, fp, vm) -> s[fp + l] <= v ? target : next
+                            : (s, fp, vm) -> s[fp + l] <= s[fp + r] ? target : next;
+                case Opcode.JNE:
+                    return immediate ? (s, fp, vm) -> s[fp + l] != v ? target : next
+                            : (s, fp, vm) -> s[fp + l] != s[fp + r] ? target : next;
+                case Opcode.JEQ:
+                    return immediate ? (s, fp, vm) -> s[fp + l] == v ? target : next
+                            : (s, fp, vm) -> s[fp + l] == s[fp + r] ? target : next;
+                case Opcode.JGT:
+                    return immediate ? (s, fp, vm) -> s[fp + l] > v ? target : next
+                            : (s, fp, vm) -> s[fp + l] > s[fp + r] ? target : next;
+                default:
+                    return immediate ? (s, fp, vm) -> s[fp + l] < v ? target : next
+                            : (s, fp, vm) -> s[fp + l] < s[fp + r] ? target : next;
+            }
+        }
+
+        private static Expr unary(int op, Expr a) {
+            switch (op) {
+                case Opcode.NOT:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) == 0 ? 1 : 0;
+                case Opcode.NEGI:
+                    return (s, fp, vm) -> -a.eval(s, fp, vm);
+                case Opcode.NEGF:
+                    return (s, fp, vm) -> MiniVm.bits(-MiniVm.f(a.eval(s, fp, vm)));
+                case Opcode.ITOF:
+                    return (s, fp, vm) -> MiniVm.bits((double) a.eval(s, fp, vm));
+                case Opcode.FTOI:
+                    return (s, fp, vm) -> (long) MiniVm.f(a.eval(s, fp, vm));
+                case Opcode.SETLT:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) < 0 ? 1 : 0;
+                default:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) > 0 ? 1 : 0;
+            }
+        }
+
+        private Expr binary(int op, int top) {
+            if (kind[top - 1] == SLOT && kind[top] == CONST) {
+                // 最常见的变量和常量运算，少一层调用
+                int slot = (int) value[top - 1];
+                long k = value[top];
+                switch (op) {
+                    case Opcode.ADDI:
+                        return (s, fp, vm) -> s[fp + slot] + k;
+                    case Opcode.SUBI:
+                        return (s, fp, vm) -> s[fp + slot] - k;
+                    case Opcode.CMPI_LT:
+                        return (s, fp, vm) -> s[fp + slot] < k ? 1 : 0;
+                    case Opcode.CMPI_GT:
+                        return (s, fp, vm) -> s[fp + slot] > k ? 1 : 0;
+                    case Opcode.CMPI_LE:
+                        return (s, fp, vm) -> s[fp + slot] <= k ? 1 : 0;
+                    case Opcode.CMPI_GE:
+                        return (s, fp, vm) -> s[fp + slot] >= k ? 1 : 0;
+                    default:
+                        break;
+                }
+            }
+            Expr a = expr(top - 1);
+            if (kind[top] == CONST) {
+                long k = value[top];
+                switch (op) {
+                    case Opcode.ADDI:
+                        return (s, fp, vm) -> a.eval(s, fp, vm) + k;
+                    case Opcode.SUBI:
+                        return (s, fp, vm) -> a.eval(s, fp, vm) - k;
+                    case Opcode.MULI:
+                        return (s, fp, vm) -> a.eval(s, fp, vm) * k;
+                    case Opcode.CMPI_LT:
+                        return (s, fp, vm) -> a.eval(s, fp, vm) < k ? 1 : 0;
+                    case Opcode.CMPI_GT:
+                        return (s, fp, vm) -> a.eval(s, fp, vm) > k ? 1 : 0;
+                    case Opcode.CMPI_EQ:
+                        return (s, fp, vm) -> a.eval(s, fp, vm) == k ? 1 : 0;
+                    case Opcode.CMPI_LE:
+                        return (s, fp, vm) -> a.eval(s, fp, vm) <= k ? 1 : 0;
+                    case Opcode.CMPI_GE:
+                        return (s, fp, vm) -> a.eval(s, fp, vm) >= k ? 1 : 0;
+                    default:
+                        break;
+                }
+            }
+            Expr b = expr(top);
+            switch (op) {
+                case Opcode.ADDI:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) + b.eval(s, fp, vm);
+                case Opcode.SUBI:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) - b.eval(s, fp, vm);
+                case Opcode.MULI:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) * b.eval(s, fp, vm);
+                case Opcode.DIVI:
+                    return (s, fp, vm) -> {
+                        long l = a.eval(s, fp, vm);
+                        long r = b.eval(s, fp, vm);
+                        if (r == 0) {
+                            throw new Error("division by zero");
+                        }
+                        return l / r;
+                    };
+                case Opcode.DIVU:
+                    return (s, fp, vm) -> {
+                        long l = a.eval(s, fp, vm);
+                        long r = b.eval(s, fp, vm);
+                        if (r == 0) {
+                            throw new Error("division by zero");
+                        }
+                        return Long.divideUnsigned(l, r);
+                    };
+                case Opcode.ADDF:
+                    return (s, fp, vm) -> MiniVm.bits(MiniVm.f(a.eval(s, fp, vm)) + MiniVm.f(b.eval(s, fp, vm)));
+                case Opcode.SUBF:
+                    return (s, fp, vm) -> MiniVm.bits(MiniVm.f(a.eval(s, fp, vm)) - MiniVm.f(b.eval(s, fp, vm)));
+                case Opcode.MULF:
+                    return (s, fp, vm) -> MiniVm.bits(MiniVm.f(a.eval(s, fp, vm)) * MiniVm.f(b.eval(s, fp, vm)));
+                case Opcode.DIVF:
+                    return (s, fp, vm) -> MiniVm.bits(MiniVm.f(a.eval(s, fp, vm)) / MiniVm.f(b.eval(s, fp, vm)));
+                case Opcode.SHL:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) << b.eval(s, fp, vm);
+                case Opcode.SHR:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) >> b.eval(s, fp, vm);
+                case Opcode.SHRL:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) >>> b.eval(s, fp, vm);
+                case Opcode.AND:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) & b.eval(s, fp, vm);
+                case Opcode.OR:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) | b.eval(s, fp, vm);
+                case Opcode.XOR:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) ^ b.eval(s, fp, vm);
+                case Opcode.CMPI:
+                    return (s, fp, vm) -> Long.compare(a.eval(s, fp, vm), b.eval(s, fp, vm));
+                case Opcode.CMPU:
+                    return (s, fp, vm) -> Long.compareUnsigned(a.eval(s, fp, vm), b.eval(s, fp, vm));
+                case Opcode.CMPF:
+                    return (s, fp, vm) -> Double.compare(MiniVm.f(a.eval(s, fp, vm)), MiniVm.f(b.eval(s, fp, vm)));
+                case Opcode.CMPI_LT:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) < b.eval(s, fp, vm) ? 1 : 0;
+                case Opcode.CMPI_GT:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) > b.eval(s, fp, vm) ? 1 : 0;
+                case Opcode.CMPI_EQ:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) == b.eval(s, fp, vm) ? 1 : 0;
+                case Opcode.CMPI_LE:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) <= b.eval(s, fp, vm) ? 1 : 0;
+                case Opcode.CMPI_GE:
+                    return (s, fp, vm) -> a.eval(s, fp, vm) >= b.eval(s, fp, vm) ? 1 : 0;
+                default:
+                    return null;
+            }
+        }
+
+        private void load(int op, int top) {
+            if (op == Opcode.LOAD64 && kind[top] == SLOT_ADDR) {
+                kind[top] = SLOT;
+                return;
+            }
+            Expr address = expr(top);
+            Expr result;
+            switch (op) {
+                case Opcode.LOAD8:
+                    result = (s, fp, vm) -> vm.memory.load8(address.eval(s, fp, vm));
+                    break;
+                case Opcode.LOAD16:
+                    result = (s, fp, vm) -> vm.memory.load16(address.eval(s, fp, vm));
+                    break;
+                case Opcode.LOAD32:
+                    result = (s, fp, vm) -> vm.memory.load32(address.eval(s, fp, vm));
+                    break;
+                default:
+                    result = (s, fp, vm) -> vm.memory.load64(address.eval(s, fp, vm));
+                    break;
+            }
+            set(top, TREE, 0, result);
+        }
+
+        private void store(int op, int top) {
+            // 栈上还没求值的表达式可能读到被改写的变量，先求值
+            for (int k = 0; k < top - 1; k++) {
+                if (kind[k] == SLOT || kind[k] == TREE) {
+                    materialize(k);
+                }
+            }
+            Expr v = expr(top);
+            if (op == Opcode.STORE64 && kind[top - 1] == SLOT_ADDR) {
+                int slot = (int) value[top - 1];
+                if (kind[top] == CONST) {
+                    long k = value[top];
+                    body.add((s, fp, vm) -> s[fp + slot] = k);
+                } else {
+                    body.add((s, fp, vm) -> s[fp + slot] = v.eval(s, fp, vm));
+                }
+                return;
+            }
+            Expr address = expr(top - 1);
+            switch (op) {
+                case Opcode.STORE8:
+                    body.add((s, fp, vm) -> vm.memory.store8(address.eval(s, fp, vm), v.eval(s, fp, vm)));
+                    break;
+                case Opcode.STORE16:
+                    body.add((s, fp, vm) -> vm.memory.store16(address.eval(s, fp, vm), v.eval(s, fp, vm)));
+                    break;
+                case Opcode.STORE32:
+                    body.add((s, fp, vm) -> vm.memory.store32(address.eval(s, fp, vm), v.eval(s, fp, vm)));
+                    break;
+                default:
+                    body.add((s, fp, vm) -> vm.memory.store64(address.eval(s, fp, vm), v.eval(s, fp, vm)));
+                    break;
+            }
+        }
+
+        /**
+         * 弹出第 k 层，可能出错的表达式仍然要求值
+         */
+        private void discard(int k) {
+            if (kind[k] == TREE) {
+                Expr e = tree[k];
+                body.add((s, fp, vm) -> e.eval(s, fp, vm));
+            }
+        }
+
+        /**
+         * 第 k 层的值对应的表达式
+         */
+        private Expr expr(int k) {
+            long v = value[k];
+            switch (kind[k]) {
+                case SLOT: {
+                    int slot = (int) v;
+                    return (s, fp, vm) -> s[fp + slot];
+                }
+                case CONST:
+                    return (s, fp, vm) -> v;
+                case SLOT_ADDR: {
+                    int slot = (int) v;
+                    return (s, fp, vm) -> Memory.slot(fp + slot);
+                }
+                default:
+                    return tree[k];
+            }
+        }
+
+        /**
+         * 把第 k 层的值写到它固定的槽里
+         */
+        private void materialize(int k) {
+            if (kind[k] == SLOT && value[k] == home(k)) {
+                return;
+            }
+            int slot = home(k);
+            if (kind[k] == CONST) {
+                long v = value[k];
+                body.add((s, fp, vm) -> s[fp + slot] = v);
+            } else {
+                Expr e = expr(k);
+                body.add((s, fp, vm) -> s[fp + slot] = e.eval(s, fp, vm));
+            }
+            set(k, SLOT, slot, null);
+        }
+
+        private void flush() {
+            for (int k = 0; k < depth; k++) {
+                materialize(k);
+            }
+        }
+
+        private int home(int k) {
+            return locSlots + k;
+        }
+
+        private void push(int kind, long value, Expr tree) {
+            set(depth++, kind, value, tree);
+        }
+
+        private void set(int k, int kind, long value, Expr tree) {
+            this.kind[k] = kind;
+            this.value[k] = value;
+            this.tree[k] = tree;
+        }
+
+        private int target(long x) {
+            return blockAt[(int) x - begin];
+        }
+
+        private Exit unreachable(int pc) {
+            String where = module.functionName(id) + " at " + (pc - begin);
+            return (s, fp, vm) -> {
+                throw new Error("reached unreachable code in " + where);
+            };
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package miniplc0java.vm;
+
+import java.util.Arrays;
+
+/**
+ * 加载好的程序，由多个 MiniVm 共享，可以在多个线程中同时使用
+ *
+ * 包含解码后的 Module 和由它算出的只读数据：Verifier 得到的栈帧大小、计量用的基本块指令数，以及按需生成的
+ * 寄存器形式、闭包和 Jit 编译的代码。这些都只生成一次，生成后不再修改。每次执行的状态（栈、全局变量、堆、
+ * 输入输出和分层执行的计数）在各自的 MiniVm 里。
+ */
+public final class CodeImage {
+    final Module module;
+    /** 见 Module.blockCosts */
+    final int[] costs;
+    /** 每个函数的栈帧在 fp 之上最多占用的槽数，即局部变量加上 Verifier 算出的操作数栈最大深度 */
+    final int[] frameSlots;
+    /**
+     * 解释器执行 call 时用到的被调函数信息，每个函数 CALLEE_SIZE 项连续存放：入口位置、调用者压栈的槽数
+     * （返回值加参数）、局部变量槽数、栈帧槽数，call 只按编号取这一段
+     */
+    final int[] callees;
+    static final int CALLEE_SIZE = 4;
+
+    private RegisterCode registers;
+    private ClosureCode.Function[] closures;
+    /** compileAll 的结果，没有编译过时为 null */
+    private CompiledCode[] compiled;
+
+    /**
+     * @param module 解码后的模块，0 号函数是 _start
+     */
+    public CodeImage(Module module) {
+        this.module = module;
+        this.costs = module.blockCosts();
+        this.frameSlots = Verifier.verify(module);
+        for (int id = 0; id < frameSlots.length; id++) {
+            frameSlots[id] += module.locSlots[id];
+        }
+        this.callees = new int[CALLEE_SIZE * frameSlots.length];
+        for (int id = 0; id < frameSlots.length; id++) {
+            callees[CALLEE_SIZE * id] = module.entry[id];
+            callees[CALLEE_SIZE * id + 1] = module.argSlots(id);
+            callees[CALLEE_SIZE * id + 2] = module.locSlots[id];
+            callees[CALLEE_SIZE * id + 3] = frameSlots[id];
+        }
+    }
+
+    public Module module() {
+        return module;
+    }
+
+    synchronized RegisterCode registers() {
+        if (registers == null) {
+            registers = RegisterCode.translate(module);
+        }
+        return registers;
+    }
+
+    synchronized ClosureCode.Function[] closures() {
+        if (closures == null) {
+            closures = ClosureCode.compile(module);
+        }
+        return closures;
+    }
+
+    /**
+     * 把所有能编译的函数编译成 JVM 字节码，之后创建和已经创建的 MiniVm 调用 compileAll 时都直接使用
+     *
+     * @return 编译成功的函数个数
+     */
+    public synchronized int compileAll() {
+        if (compiled == null) {
+            int[] ids = new int[module.functionCount()];
+            for (int id = 0; id < ids.length; id++) {
+                ids[id] = id;
+            }
+            compiled = new CompiledCode[ids.length];
+            Jit.compile(module, ids, compiled);
+        }
+        return (int) Arrays.stream(compiled).filter(code -> code != null).count();
+    }
+
+    /**
+     * compileAll 的结果，没有编译过时为 null；调用者不能修改
+     */
+    synchronized CompiledCode[] compiled() {
+        return compiled;
+    }
+}
@@ -0,0 +1,11 @@
+package miniplc0java.vm;
+
+/**
+ * Jit 生成的类实现这个接口，解释器通过它调用编译后的函数
+ */
+interface CompiledCode {
+    /**
+     * 执行 id 号函数，返回值槽和参数在 stack[base] 开始的位置，返回值写回 stack[base]
+     */
+    void invoke(int id, long[] stack, int base, MiniVm vm);
+}
@@ -0,0 +1,37 @@
+package miniplc0java.vm;
+
+/**
+ * 指令预算用完时由 MiniVm 抛出，程序在一个基本块开始前停下
+ */
+public class FuelExhaustedError extends Error {
+    private static final long serialVersionUID = 1L;
+
+    private final long budget;
+    private final long used;
+    private final String function;
+
+    FuelExhaustedError(long budget, long used, String function) {
+        super("fuel exhausted: " + used + " of " + budget + " instructions used, stopped in function " + function);
+        this.budget = budget;
+        this.used = used;
+        this.function = function;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * 停下前已经执行的指令数
+     */
+    public long getUsed() {
+        return used;
+    }
+
+    /**
+     * 停下时所在的函数
+     */
+    public String getFunction() {
+        return function;
+    }
+}
@@ -0,0 +1,113 @@
+package miniplc0java.vm;
+
+import java.util.Arrays;
+
+/**
+ * 加载时的超指令合成
+ *
+ * Analyser 每次取变量、每次比较都会生成固定的指令序列，把它们合成一条内部指令，
+ * 循环里每条源语句的分派次数大约减半。模式表直接取自 Analyser 生成取变量、比较和条件跳转的代码，
+ * 长的模式排在前面优先匹配；序列内部如果有跳转目标则不合成。
+ */
+public class Fuser {
+    /** 依次为：合成后的操作码，取哪一条原指令的操作数，原指令序列 */
+    private static final int[][] PATTERNS = {
+            {Opcode.JGT, 4, Opcode.CMPI, Opcode.SETGT, Opcode.NOT, Opcode.BRTRUE, Opcode.BR},
+            {Opcode.JLT, 4, Opcode.CMPI, Opcode.SETLT, Opcode.NOT, Opcode.BRTRUE, Opcode.BR},
+            {Opcode.JGE, 3, Opcode.CMPI, Opcode.SETLT, Opcode.BRTRUE, Opcode.BR},
+            {Opcode.JLE, 3, Opcode.CMPI, Opcode.SETGT, Opcode.BRTRUE, Opcode.BR},
+            {Opcode.JNE, 3, Opcode.CMPI, Opcode.NOT, Opcode.BRTRUE, Opcode.BR},
+            {Opcode.JEQ, 2, Opcode.CMPI, Opcode.BRTRUE, Opcode.BR},
+            {Opcode.CMPI_LE, 0, Opcode.CMPI, Opcode.SETGT, Opcode.NOT},
+            {Opcode.CMPI_GE, 0, Opcode.CMPI, Opcode.SETLT, Opcode.NOT},
+            {Opcode.BRFALSE, 1, Opcode.BRTRUE, Opcode.BR},
+            {Opcode.CMPI_LT, 0, Opcode.CMPI, Opcode.SETLT},
+            {Opcode.CMPI_GT, 0, Opcode.CMPI, Opcode.SETGT},
+            {Opcode.CMPI_EQ, 0, Opcode.CMPI, Opcode.NOT},
+            {Opcode.LOCA_LOAD, 0, Opcode.LOCA, Opcode.LOAD64},
+            {Opcode.ARGA_LOAD, 0, Opcode.ARGA, Opcode.LOAD64},
+            {Opcode.GLOBA_LOAD, 0, Opcode.GLOBA, Opcode.LOAD64},
+    };
+
+    private Fuser() {
+    }
+
+    public static Module fuse(Module module) {
+        int[] code = module.code;
+        long[] operands = module.operands;
+        int n = code.length;
+
+        boolean[] isTarget = new boolean[n + 1];
+        for (int pc = 0; pc < n; pc++) {
+            if (Opcode.isBranch(code[pc])) {
+                isTarget[(int) operands[pc]] = true;
+            }
+        }
+        for (int e : module.entry) {
+            isTarget[e] = true;
+        }
+
+        int[] newCode = new int[n];
+        long[] newOperands = new long[n];
+        // 原位置到新位置的映射，只有序列开头的位置会被用到
+        int[] map = new int[n + 1];
+        int out = 0;
+        int pc = 0;
+        while (pc < n) {
+            int[] pattern = match(code, operands, isTarget, pc);
+            map[pc] = out;
+            if (pattern == null) {
+                newCode[out] = code[pc];
+                newOperands[out] = operands[pc];
+                pc++;
+            } else {
+                int length = pattern.length - 2;
+                newCode[out] = pattern[0];
+                newOperands[out] = operands[pc + pattern[1]];
+                for (int i = 1; i < length; i++) {
+                    map[pc + i] = out;
+                }
+                pc += length;
+            }
+            out++;
+        }
+        map[n] = out;
+
+        int[] fusedCode = Arrays.copyOf(newCode, out);
+        long[] fusedOperands = Arrays.copyOf(newOperands, out);
+        for (int i = 0; i < out; i++) {
+            if (Opcode.isBranch(fusedCode[i])) {
+                fusedOperands[i] = map[(int) fusedOperands[i]];
+            }
+        }
+        int[] entry = new int[module.entry.length];
+        for (int id = 0; id < entry.length; id++) {
+            entry[id] = map[module.entry[id]];
+        }
+
+        return new Module(fusedCode, fusedOperands, entry, module.names, module.retSlots, module.paramSlots,
+                module.locSlots, module.globals);
+    }
+
+    private static int[] match(int[] code, long[] operands, boolean[] isTarget, int pc) {
+        for (int[] pattern : PATTERNS) {
+            int length = pattern.length - 2;
+            if (pc + length > code.length) {
+                continue;
+            }
+            boolean ok = true;
+            for (int i = 0; i < length && ok; i++) {
+                int at = pc + i;
+                ok = code[at] == pattern[i + 2] && (i == 0 || !isTarget[at]);
+                // brtrue 1; br x 里的 brtrue 必须正好跳过后面那条 br
+                if (ok && code[at] == Opcode.BRTRUE && i + 1 < length) {
+                    ok = operands[at] == at + 2;
+                }
+            }
+            if (ok) {
+                return pattern;
+            }
+        }
+        return null;
+    }
+}
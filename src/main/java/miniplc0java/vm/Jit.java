@@ -0,0 +1,905 @@
+package miniplc0java.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import miniplc0java.vm.ClassWriter.Bail;
+import miniplc0java.vm.ClassWriter.Code;
+import miniplc0java.vm.ClassWriter.Label;
+
+/**
+ * 把 o0 函数翻译成 JVM 方法，用 Lookup.defineHiddenClass 定义后交给 HotSpot 编译
+ *
+ * 每个函数对应一个静态方法 f<id>(long 参数..., MiniVm vm)，局部变量和返回值槽映射为 JVM 局部变量，
+ * 操作数栈映射为 JVM 操作数栈，br/brtrue 映射为 JVM 跳转。loca/arga/globa 产生的地址在编译期
+ * 符号化跟踪，load64/store64 直接变成对应变量的读写；遇到运行期才知道的地址等情况时放弃编译，
+ * 该函数继续解释执行。
+ */
+final class Jit {
+    private static final String CLASS_NAME = "miniplc0java/vm/JitCode";
+    private static final String VM = "miniplc0java/vm/MiniVm";
+    private static final String VM_DESC = "Lminiplc0java/vm/MiniVm;";
+    private static final String BUILTINS = "miniplc0java/vm/Builtins";
+    private static final String MEMORY = "miniplc0java/vm/Memory";
+    private static final String BYTE_BUFFER = "java/nio/ByteBuffer";
+
+    /** 编译后的代码调用未编译函数时，经由 MiniVm.call<n> 转回解释器，n 最多到这个值 */
+    static final int MAX_CALLOUT_ARGS = 6;
+
+    // 编译期操作数栈上的条目种类，低 32 位是下标
+    private static final long VAL = 0;
+    private static final long LOC = 1L << 32;
+    private static final long ARG = 2L << 32;
+    private static final long GLOB = 3L << 32;
+    private static final long SLOT = 4L << 32;
+    private static final long KIND = 0xffffffffL << 32;
+
+    private final Module module;
+    /** 在同一个类中编译、可以直接 invokestatic 的函数 */
+    private final boolean[] direct;
+    private final ClassWriter cw;
+    private final String className;
+    /** 生成的方法最后一个参数的类型，通过它的 memory 和 builtins 字段访问全局变量和标准库 */
+    private final String vm;
+
+    private Jit(Module module, boolean[] direct, ClassWriter cw) {
+        this(module, direct, cw, CLASS_NAME, VM);
+    }
+
+    private Jit(Module module, boolean[] direct, ClassWriter cw, String className, String vm) {
+        this.module = module;
+        this.direct = direct;
+        this.cw = cw;
+        this.className = className;
+        this.vm = vm;
+    }
+
+    /** 桥接方法 invoke 中 OSR 入口使用的 id */
+    static final int OSR_ENTRY = -1;
+
+    /** JVM 方法参数最多占 255 个槽，vm 占一个，其余每个 long 占两个 */
+    private static final int MAX_PARAM_SLOTS = 127;
+
+    /**
+     * 把 ids 中能编译的函数编译进同一个类
+     *
+     * @param table 编译成功的函数在对应位置填入生成的代码
+     * @return 编译成功的函数个数
+     */
+    static int compile(Module module, int[] ids, CompiledCode[] table) {
+        CompiledCode code = define(module, ids, table, -1, -1);
+        return code == null ? 0 : (int) Arrays.stream(ids).distinct().filter(id -> table[id] == code).count();
+    }
+
+    /**
+     * 和 compile 相同，另外为 id 号函数生成一个从 pc 处循环头进入的 OSR 入口
+     *
+     * OSR 入口通过 invoke(OSR_ENTRY, stack, base, vm) 调用，从 base 处解释器栈帧中取出返回值槽、参数和
+     * 局部变量，从循环头继续执行到函数返回。循环头处操作数栈必须为空。
+     *
+     * @return 生成的代码，无法生成 OSR 入口时返回 null
+     */
+    static CompiledCode compileOsr(Module module, int id, int pc, int[] ids, CompiledCode[] table) {
+        return define(module, ids, table, id, pc);
+    }
+
+    private static CompiledCode define(Module module, int[] ids, CompiledCode[] table, int osrId, int osrPc) {
+        boolean[] direct = new boolean[module.functionCount()];
+        for (int id : ids) {
+            direct[id] = true;
+        }
+        // 先试编译一遍，去掉失败的函数，直到剩下的都能编译
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int id : ids) {
+                if (!direct[id]) {
+                    continue;
+                }
+                try {
+                    new Jit(module, direct, newClass()).function(id, -1);
+                } catch (Bail e) {
+                    direct[id] = false;
+                    changed = true;
+                }
+            }
+        }
+        if (osrId >= 0) {
+            try {
+                new Jit(module, direct, newClass()).function(osrId, osrPc);
+            } catch (Bail e) {
+                osrId = -1;
+            }
+        }
+
+        int[] compiled = Arrays.stream(ids).filter(id -> direct[id]).distinct().sorted().toArray();
+        if (compiled.length == 0 && osrId < 0) {
+            return null;
+        }
+        ClassWriter cw = newClass();
+        Jit jit = new Jit(module, direct, cw);
+        for (int id : compiled) {
+            jit.function(id, -1);
+        }
+        if (osrId >= 0) {
+            jit.function(osrId, osrPc);
+        }
+        jit.constructor();
+        jit.bridge(compiled, osrId);
+
+        CompiledCode code;
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(cw.toByteArray(), true);
+            code = (CompiledCode) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable e) {
+            throw new Error("failed to define compiled code", e);
+        }
+        for (int id : compiled) {
+            table[id] = code;
+        }
+        return osrId >= 0 || osrPc < 0 ? code : null;
+    }
+
+    /**
+     * 把整个模块编译成一个独立的类，每个函数一个静态方法 f<id>(long 参数..., runtime)，函数之间直接调用，
+     * 不依赖解释器
+     *
+     * @param className 生成的类名，内部形式
+     * @param runtime 代替 MiniVm 作为最后一个参数的类，内部形式
+     * @throws Bail 有函数不能编译时
+     */
+    static byte[] compileClass(Module module, String className, String runtime) {
+        boolean[] direct = new boolean[module.functionCount()];
+        Arrays.fill(direct, true);
+        var cw = new ClassWriter(className, "java/lang/Object");
+        Jit jit = new Jit(module, direct, cw, className, runtime);
+        for (int id = 0; id < direct.length; id++) {
+            try {
+                jit.function(id, -1);
+            } catch (Bail e) {
+                throw new Bail(module.functionName(id) + ": " + e.getMessage());
+            }
+        }
+        return cw.toByteArray();
+    }
+
+    private static ClassWriter newClass() {
+        var cw = new ClassWriter(CLASS_NAME, "java/lang/Object");
+        cw.addInterface("miniplc0java/vm/CompiledCode");
+        return cw;
+    }
+
+    private String descriptor(int params, boolean returns) {
+        return "(" + "J".repeat(params) + "L" + vm + ";)" + (returns ? "J" : "V");
+    }
+
+    private void constructor() {
+        Code c = new Code();
+        c.u1(0x2a); // aload_0
+        c.op(0xb7, cw.methodRef("java/lang/Object", "<init>", "()V"));
+        c.u1(0xb1); // return
+        c.maxStack = 1;
+        c.maxLocals = 1;
+        cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", c);
+    }
+
+    /**
+     * CompiledCode.invoke：按 id 分派，从解释器的栈上取参数，返回值写回 stack[base]
+     */
+    private void bridge(int[] ids, int osrId) {
+        Code c = new Code();
+        int maxSlots = 0;
+        int cases = ids.length + (osrId >= 0 ? 1 : 0);
+        c.u1(0x1b); // iload_1
+        int at = c.position();
+        c.u1(0xab); // lookupswitch
+        while (c.position() % 4 != 0) {
+            c.u1(0);
+        }
+        int defaultAt = c.position();
+        c.u4(0);
+        c.u4(cases);
+        int pairsAt = c.position();
+        // OSR_ENTRY 为负数，排在最前
+        if (osrId >= 0) {
+            c.u4(OSR_ENTRY);
+            c.u4(0);
+        }
+        for (int id : ids) {
+            c.u4(id);
+            c.u4(0);
+        }
+        for (int i = 0; i < cases; i++) {
+            c.patch4(pairsAt + 8 * i + 4, c.position() - at);
+            boolean osr = osrId >= 0 && i == 0;
+            int id = osr ? osrId : ids[i - (osrId >= 0 ? 1 : 0)];
+            int ret = module.retSlots[id];
+            int params = module.paramSlots[id];
+            int locals = osr ? module.locSlots[id] : 0;
+            maxSlots = Math.max(maxSlots, params + ret + locals);
+            for (int p = 0; p < params; p++) {
+                loadSlot(c, ret + p);
+            }
+            if (osr) {
+                if (ret == 1) {
+                    loadSlot(c, 0);
+                }
+                int fp = module.argSlots(id) + MiniVm.FRAME_HEADER;
+                for (int l = 0; l < locals; l++) {
+                    loadSlot(c, fp + l);
+                }
+            }
+            c.local(0x19, 4);
+            String name = (osr ? "o" : "f") + id;
+            c.op(0xb8, cw.methodRef(className, name, descriptor(params + (osr ? ret + locals : 0), ret == 1)));
+            if (ret == 1) {
+                // 调用中栈可能增长过，返回值写进 vm 当前的栈
+                c.local(0x37, 5); // lstore
+                c.local(0x19, 4);
+                c.op(0xb4, cw.fieldRef(VM, "stack", "[J"));
+                c.u1(0x1d); // iload_3
+                c.local(0x16, 5);
+                c.u1(0x50); // lastore
+            }
+            c.u1(0xb1);
+        }
+        c.patch4(defaultAt, c.position() - at);
+        c.u1(0xb1);
+        c.maxStack = 2 * maxSlots + 6;
+        c.maxLocals = 7;
+        cw.addMethod(ClassWriter.ACC_PUBLIC, "invoke", "(I[JI" + VM_DESC + ")V", c);
+    }
+
+    /**
+     * 压入 stack[base + offset]
+     */
+    private void loadSlot(Code c, int offset) {
+        c.u1(0x2c);
+        c.u1(0x1d);
+        if (offset != 0) {
+            iconst(c, offset);
+            c.u1(0x60); // iadd
+        }
+        c.u1(0x2f); // laload
+    }
+
+    // 当前函数的编译状态
+
+    private Code c;
+    private int ret;
+    private int params;
+    private int locals;
+    private int vmLocal;
+    private int retLocal;
+    private int locBase;
+    private int tmpLocal;
+    private int globalsLocal;
+    /** 正在翻译的指令相对函数开头的位置 */
+    private int current;
+
+    private long[] stack = new long[16];
+    private int depth;
+    private int maxDepth;
+
+    /**
+     * @param osrPc 不小于 0 时生成从该处循环头进入的 OSR 入口 o<id>，返回值槽和局部变量也作为参数传入
+     */
+    private void function(int id, int osrPc) {
+        ret = module.retSlots[id];
+        params = module.paramSlots[id];
+        locals = module.locSlots[id];
+        if (ret > 1) {
+            throw new Bail("multiple return slots");
+        }
+        boolean osr = osrPc >= 0;
+        int paramSlots = params + (osr ? ret + locals : 0);
+        if (paramSlots > MAX_PARAM_SLOTS) {
+            throw new Bail("too many parameters");
+        }
+        if (osr) {
+            retLocal = 2 * params;
+            locBase = retLocal + 2 * ret;
+            vmLocal = locBase + 2 * locals;
+            tmpLocal = vmLocal + 1;
+        } else {
+            vmLocal = 2 * params;
+            retLocal = vmLocal + 1;
+            locBase = retLocal + 2 * ret;
+            tmpLocal = locBase + 2 * locals;
+        }
+        globalsLocal = tmpLocal + 2;
+
+        c = new Code();
+        depth = 0;
+        maxDepth = 0;
+        if (!osr) {
+            for (int i = 0; i < ret + locals; i++) {
+                c.u1(0x09); // lconst_0
+                c.local(0x37, retLocal + 2 * i);
+            }
+        }
+        loadMemory();
+
+        int start = module.entry[id];
+        int end = module.end(id);
+        int[] code = module.code;
+        long[] operands = module.operands;
+
+        boolean[] isTarget = new boolean[end - start];
+        for (int pc = start; pc < end; pc++) {
+            if (Opcode.isBranch(code[pc])) {
+                isTarget[(int) operands[pc] - start] = true;
+            }
+        }
+        Label[] labels = new Label[end - start];
+        long[][] states = new long[end - start][];
+        int osrRel = osrPc - start;
+        if (osr) {
+            if (osrPc < start || osrPc >= end || !isTarget[osrRel]) {
+                throw new Bail("OSR entry is not a loop header");
+            }
+            c.jump(0xa7, label(labels, osrRel)); // goto
+        }
+
+        boolean reachable = true;
+        for (int pc = start; pc < end; pc++) {
+            int rel = pc - start;
+            if (states[rel] != null) {
+                if (reachable) {
+                    checkState(states[rel]);
+                } else {
+                    depth = states[rel].length;
+                    System.arraycopy(states[rel], 0, stack, 0, depth);
+                    reachable = true;
+                }
+            } else if (!reachable) {
+                // ret 或 br 之后没有跳转到达的死代码
+                continue;
+            } else if (isTarget[rel]) {
+                states[rel] = Arrays.copyOf(stack, depth);
+            }
+            if (isTarget[rel]) {
+                c.bind(label(labels, rel));
+            }
+            current = rel;
+            reachable = instruction(code[pc], operands[pc], start, labels, states);
+        }
+
+        if (osr && (states[osrRel] == null || states[osrRel].length != 0)) {
+            throw new Bail("operand stack not empty at OSR entry");
+        }
+
+        c.maxStack = 2 * maxDepth + 8;
+        c.maxLocals = globalsLocal + 1;
+        cw.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, (osr ? "o" : "f") + id,
+                descriptor(paramSlots, ret == 1), c);
+    }
+
+    private static Label label(Label[] labels, int rel) {
+        if (labels[rel] == null) {
+            labels[rel] = new Label();
+        }
+        return labels[rel];
+    }
+
+    private void checkState(long[] state) {
+        if (state.length != depth) {
+            throw new Bail("stack height differs at merge point");
+        }
+        for (int i = 0; i < depth; i++) {
+            if (state[i] != stack[i]) {
+                throw new Bail("stack differs at merge point");
+            }
+        }
+    }
+
+    private void jump(int opcode, long target, int start, Label[] labels, long[][] states) {
+        int rel = (int) target - start;
+        if (states[rel] == null) {
+            if (rel <= current) {
+                // 向后跳到一条没有记录状态的指令，只会是被跳过的死代码
+                throw new Bail("backward branch into unreachable code");
+            }
+            states[rel] = Arrays.copyOf(stack, depth);
+        } else {
+            checkState(states[rel]);
+        }
+        c.jump(opcode, label(labels, rel));
+    }
+
+    private void push(long entry) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = entry;
+        int values = 0;
+        for (int i = 0; i < depth; i++) {
+            if ((stack[i] & KIND) == VAL) {
+                values++;
+            }
+        }
+        maxDepth = Math.max(maxDepth, values);
+    }
+
+    private long pop() {
+        if (depth == 0) {
+            throw new Bail("stack underflow");
+        }
+        return stack[--depth];
+    }
+
+    private void popValue() {
+        if (pop() != VAL) {
+            throw new Bail("address used as a value");
+        }
+    }
+
+    /**
+     * @return 下一条指令是否能顺序到达
+     */
+    private boolean instruction(int op, long x, int start, Label[] labels, long[][] states) {
+        switch (op) {
+            case Opcode.NOP:
+                break;
+            case Opcode.PUSH:
+                lconst(x);
+                push(VAL);
+                break;
+            case Opcode.POP:
+                discard();
+                break;
+            case Opcode.POPN:
+                for (long n = x; n > 0; n--) {
+                    discard();
+                }
+                break;
+            case Opcode.DUP: {
+                long top = pop();
+                if (top == VAL) {
+                    c.u1(0x5c); // dup2
+                }
+                push(top);
+                push(top);
+                break;
+            }
+            case Opcode.LOCA:
+                checkIndex(x, locals);
+                push(LOC | x);
+                break;
+            case Opcode.ARGA:
+                checkIndex(x, ret + params);
+                push(ARG | x);
+                break;
+            case Opcode.GLOBA:
+                checkIndex(x, module.globals.length);
+                push(GLOB | x);
+                break;
+            case Opcode.LOAD64:
+                load(pop());
+                push(VAL);
+                break;
+            case Opcode.LOCA_LOAD:
+                checkIndex(x, locals);
+                load(LOC | x);
+                push(VAL);
+                break;
+            case Opcode.ARGA_LOAD:
+                checkIndex(x, ret + params);
+                load(ARG | x);
+                push(VAL);
+                break;
+            case Opcode.GLOBA_LOAD:
+                checkIndex(x, module.globals.length);
+                load(GLOB | x);
+                push(VAL);
+                break;
+            case Opcode.STORE64: {
+                popValue();
+                store(pop());
+                break;
+            }
+            case Opcode.STACKALLOC:
+                for (long n = x; n > 0; n--) {
+                    push(SLOT);
+                }
+                break;
+            case Opcode.ADDI:
+                binary(0x61);
+                break;
+            case Opcode.SUBI:
+                binary(0x65);
+                break;
+            case Opcode.MULI:
+                binary(0x69);
+                break;
+            case Opcode.DIVI:
+                binary(0x6d);
+                break;
+            case Opcode.DIVU:
+                popValue();
+                popValue();
+                c.op(0xb8, cw.methodRef("java/lang/Long", "divideUnsigned", "(JJ)J"));
+                push(VAL);
+                break;
+            case Opcode.AND:
+                binary(0x7f);
+                break;
+            case Opcode.OR:
+                binary(0x81);
+                break;
+            case Opcode.XOR:
+                binary(0x83);
+                break;
+            case Opcode.SHL:
+                shift(0x79);
+                break;
+            case Opcode.SHR:
+                shift(0x7b);
+                break;
+            case Opcode.SHRL:
+                shift(0x7d);
+                break;
+            case Opcode.ADDF:
+                binaryDouble(0x63);
+                break;
+            case Opcode.SUBF:
+                binaryDouble(0x67);
+                break;
+            case Opcode.MULF:
+                binaryDouble(0x6b);
+                break;
+            case Opcode.DIVF:
+                binaryDouble(0x6f);
+                break;
+            case Opcode.NEGI:
+                popValue();
+                c.u1(0x75); // lneg
+                push(VAL);
+                break;
+            case Opcode.NEGF:
+                popValue();
+                toDouble();
+                c.u1(0x77); // dneg
+                fromDouble();
+                push(VAL);
+                break;
+            case Opcode.ITOF:
+                popValue();
+                c.u1(0x8a); // l2d
+                fromDouble();
+                push(VAL);
+                break;
+            case Opcode.FTOI:
+                popValue();
+                toDouble();
+                c.u1(0x8f); // d2l
+                push(VAL);
+                break;
+            case Opcode.CMPI:
+                popValue();
+                popValue();
+                c.u1(0x94); // lcmp
+                c.u1(0x85); // i2l
+                push(VAL);
+                break;
+            case Opcode.CMPU:
+                popValue();
+                popValue();
+                c.op(0xb8, cw.methodRef("java/lang/Long", "compareUnsigned", "(JJ)I"));
+                c.u1(0x85);
+                push(VAL);
+                break;
+            case Opcode.CMPF:
+                popValue();
+                popValue();
+                c.local(0x37, tmpLocal);
+                toDouble();
+                c.local(0x16, tmpLocal);
+                toDouble();
+                c.op(0xb8, cw.methodRef("java/lang/Double", "compare", "(DD)I"));
+                c.u1(0x85);
+                push(VAL);
+                break;
+            case Opcode.NOT:
+                compareZero(0x9a); // ifne -> 0
+                break;
+            case Opcode.SETLT:
+                compareZero(0x9c); // ifge -> 0
+                break;
+            case Opcode.SETGT:
+                compareZero(0x9e); // ifle -> 0
+                break;
+            case Opcode.CMPI_LT:
+                compare(0x9c);
+                break;
+            case Opcode.CMPI_GT:
+                compare(0x9e);
+                break;
+            case Opcode.CMPI_EQ:
+                compare(0x9a);
+                break;
+            case Opcode.CMPI_LE:
+                compare(0x9d); // ifgt -> 0
+                break;
+            case Opcode.CMPI_GE:
+                compare(0x9b); // iflt -> 0
+                break;
+            case Opcode.BR:
+                jump(0xa7, x, start, labels, states);
+                return false;
+            case Opcode.BRTRUE:
+                popValue();
+                c.u1(0x09);
+                c.u1(0x94);
+                jump(0x9a, x, start, labels, states);
+                break;
+            case Opcode.BRFALSE:
+                popValue();
+                c.u1(0x09);
+                c.u1(0x94);
+                jump(0x99, x, start, labels, states);
+                break;
+            case Opcode.JGE:
+                compareJump(0x9c, x, start, labels, states);
+                break;
+            case Opcode.JLE:
+                compareJump(0x9e, x, start, labels, states);
+                break;
+            case Opcode.JNE:
+                compareJump(0x9a, x, start, labels, states);
+                break;
+            case Opcode.JEQ:
+                compareJump(0x99, x, start, labels, states);
+                break;
+            case Opcode.JGT:
+                compareJump(0x9d, x, start, labels, states);
+                break;
+            case Opcode.JLT:
+                compareJump(0x9b, x, start, labels, states);
+                break;
+            case Opcode.CALL:
+                call((int) x);
+                break;
+            case Opcode.CALLNAME:
+                callName((int) x);
+                break;
+            case Opcode.RET:
+                if (ret == 1) {
+                    c.local(0x16, retLocal);
+                    c.u1(0xad); // lreturn
+                } else {
+                    c.u1(0xb1); // return
+                }
+                return false;
+            default:
+                throw new Bail("unsupported instruction " + Opcode.name(op));
+        }
+        return true;
+    }
+
+    private static void checkIndex(long x, int limit) {
+        if (x < 0 || x >= limit) {
+            throw new Bail("slot index out of range");
+        }
+    }
+
+    private int slotLocal(long address) {
+        int index = (int) address;
+        if ((address & KIND) == LOC) {
+            return locBase + 2 * index;
+        }
+        return index < ret ? retLocal : 2 * (index - ret);
+    }
+
+    private void load(long address) {
+        long kind = address & KIND;
+        if (kind == LOC || kind == ARG) {
+            c.local(0x16, slotLocal(address)); // lload
+        } else if (kind == GLOB) {
+            c.local(0x19, globalsLocal);
+            iconst(c, (int) Memory.global((int) address));
+            c.op(0xb6, cw.methodRef(BYTE_BUFFER, "getLong", "(I)J"));
+        } else {
+            throw new Bail("load from computed address");
+        }
+    }
+
+    private void store(long address) {
+        long kind = address & KIND;
+        if (kind == LOC || kind == ARG) {
+            c.local(0x37, slotLocal(address)); // lstore
+        } else if (kind == GLOB) {
+            c.local(0x37, tmpLocal);
+            c.local(0x19, globalsLocal);
+            iconst(c, (int) Memory.global((int) address));
+            c.local(0x16, tmpLocal);
+            c.op(0xb6, cw.methodRef(BYTE_BUFFER, "putLong", "(IJ)L" + BYTE_BUFFER + ";"));
+            c.u1(0x57); // pop
+        } else {
+            throw new Bail("store to computed address");
+        }
+    }
+
+    private void discard() {
+        if (pop() == VAL) {
+            c.u1(0x58); // pop2
+        }
+    }
+
+    private void binary(int opcode) {
+        popValue();
+        popValue();
+        c.u1(opcode);
+        push(VAL);
+    }
+
+    private void shift(int opcode) {
+        popValue();
+        popValue();
+        c.u1(0x88); // l2i
+        c.u1(opcode);
+        push(VAL);
+    }
+
+    private void toDouble() {
+        c.op(0xb8, cw.methodRef("java/lang/Double", "longBitsToDouble", "(J)D"));
+    }
+
+    private void fromDouble() {
+        c.op(0xb8, cw.methodRef("java/lang/Double", "doubleToRawLongBits", "(D)J"));
+    }
+
+    private void binaryDouble(int opcode) {
+        popValue();
+        popValue();
+        c.local(0x37, tmpLocal);
+        toDouble();
+        c.local(0x16, tmpLocal);
+        toDouble();
+        c.u1(opcode);
+        fromDouble();
+        push(VAL);
+    }
+
+    /**
+     * 栈顶的 int 比较结果转成 0/1，ifFalse 成立时结果为 0
+     */
+    private void bool(int ifFalse) {
+        Label zero = new Label();
+        Label done = new Label();
+        c.jump(ifFalse, zero);
+        c.u1(0x0a); // lconst_1
+        c.jump(0xa7, done);
+        c.bind(zero);
+        c.u1(0x09); // lconst_0
+        c.bind(done);
+    }
+
+    private void compareZero(int ifFalse) {
+        popValue();
+        c.u1(0x09);
+        c.u1(0x94);
+        bool(ifFalse);
+        push(VAL);
+    }
+
+    private void compare(int ifFalse) {
+        popValue();
+        popValue();
+        c.u1(0x94);
+        bool(ifFalse);
+        push(VAL);
+    }
+
+    private void compareJump(int ifTrue, long target, int start, Label[] labels, long[][] states) {
+        popValue();
+        popValue();
+        c.u1(0x94);
+        jump(ifTrue, target, start, labels, states);
+    }
+
+    private void call(int id) {
+        int calleeRet = module.retSlots[id];
+        int calleeParams = module.paramSlots[id];
+        for (int i = 0; i < calleeParams; i++) {
+            popValue();
+        }
+        for (int i = 0; i < calleeRet; i++) {
+            if (pop() != SLOT) {
+                throw new Bail("call without return slot");
+            }
+        }
+        if (direct[id]) {
+            c.local(0x19, vmLocal);
+            c.op(0xb8, cw.methodRef(className, "f" + id, descriptor(calleeParams, calleeRet == 1)));
+        } else {
+            if (calleeParams > MAX_CALLOUT_ARGS || calleeRet > 1) {
+                throw new Bail("too many arguments for interpreter call");
+            }
+            iconst(c, id);
+            c.local(0x19, vmLocal);
+            c.op(0xb8, cw.methodRef(VM, "call" + calleeParams, "(" + "J".repeat(calleeParams) + "I" + VM_DESC + ")J"));
+            if (calleeRet == 0) {
+                c.u1(0x58);
+            }
+        }
+        // 被调用的函数可能让内存扩容，换了新的 ByteBuffer
+        loadMemory();
+        if (calleeRet == 1) {
+            push(VAL);
+        }
+    }
+
+    /**
+     * 把全局变量所在的 ByteBuffer 取到局部变量里
+     */
+    private void loadMemory() {
+        c.local(0x19, vmLocal);
+        c.op(0xb4, cw.fieldRef(vm, "memory", "L" + MEMORY + ";"));
+        c.op(0xb4, cw.fieldRef(MEMORY, "buffer", "L" + BYTE_BUFFER + ";"));
+        c.local(0x3a, globalsLocal);
+    }
+
+    private void callName(int builtin) {
+        String name = Builtins.NAMES[builtin];
+        switch (builtin) {
+            case Builtins.GETINT:
+            case Builtins.GETDOUBLE:
+            case Builtins.GETCHAR:
+                if (pop() != SLOT) {
+                    throw new Bail("call without return slot");
+                }
+                builtins();
+                c.op(0xb6, cw.methodRef(BUILTINS, name, "()J"));
+                push(VAL);
+                break;
+            case Builtins.PUTINT:
+            case Builtins.PUTDOUBLE:
+            case Builtins.PUTCHAR:
+            case Builtins.PUTSTR:
+                popValue();
+                builtins();
+                c.u1(0x5b); // dup_x2
+                c.u1(0x57); // pop
+                c.op(0xb6, cw.methodRef(BUILTINS, name, "(J)V"));
+                break;
+            case Builtins.PUTLN:
+                builtins();
+                c.op(0xb6, cw.methodRef(BUILTINS, name, "()V"));
+                break;
+            default:
+                throw new Bail("unknown function " + name);
+        }
+    }
+
+    private void builtins() {
+        c.local(0x19, vmLocal);
+        c.op(0xb4, cw.fieldRef(vm, "builtins", "L" + BUILTINS + ";"));
+    }
+
+    private void lconst(long x) {
+        if (x == 0) {
+            c.u1(0x09);
+        } else if (x == 1) {
+            c.u1(0x0a);
+        } else {
+            c.op(0x14, cw.longConst(x)); // ldc2_w
+        }
+    }
+
+    private void iconst(Code c, int x) {
+        if (x >= -1 && x <= 5) {
+            c.u1(0x03 + x);
+        } else if (x >= Byte.MIN_VALUE && x <= Byte.MAX_VALUE) {
+            c.u1(0x10);
+            c.u1(x);
+        } else if (x >= Short.MIN_VALUE && x <= Short.MAX_VALUE) {
+            c.u1(0x11);
+            c.u2(x);
+        } else {
+            c.op(0x13, cw.intConst(x)); // ldc_w
+        }
+    }
+}
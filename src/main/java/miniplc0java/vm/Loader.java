@@ -0,0 +1,233 @@
+package miniplc0java.vm;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import miniplc0java.instruction.FnInstruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 把 Analyser 产生的函数表或 o0 文件展平成 Module 的原始类型数组
+ */
+public class Loader {
+    private Loader() {
+    }
+
+    /**
+     * 解码并合成超指令，是执行时使用的形式
+     */
+    public static Module load(List<String> globals, List<FnInstruction> functions) {
+        return Fuser.fuse(decode(globals, functions));
+    }
+
+    /**
+     * 只解码，指令与 o0 一一对应
+     */
+    public static Module decode(List<String> globals, List<FnInstruction> functions) {
+        int count = functions.size();
+        int total = 0;
+        for (FnInstruction fn : functions) {
+            // 每个函数末尾补一条 ret，函数体执行完或跳到末尾都能正常返回
+            total += fn.getBody().size() + 1;
+        }
+
+        int[] code = new int[total];
+        long[] operands = new long[total];
+        int[] entry = new int[count];
+        int[] names = new int[count];
+        int[] retSlots = new int[count];
+        int[] paramSlots = new int[count];
+        int[] locSlots = new int[count];
+        String[] globalTable = globals.toArray(new String[0]);
+
+        int pc = 0;
+        for (int id = 0; id < count; id++) {
+            FnInstruction fn = functions.get(id);
+            InstructionBuffer body = fn.getBody();
+            entry[id] = pc;
+            names[id] = fn.getName();
+            retSlots[id] = fn.getRet_slots();
+            paramSlots[id] = fn.getParam_slots();
+            locSlots[id] = fn.getLoc_slots();
+
+            for (int i = 0; i < body.size(); i++, pc++) {
+                int op = body.opcode(i);
+                long x = body.operand(i);
+                code[pc] = op;
+                operands[pc] = resolve(op, x, id, i, body.size(), entry[id], retSlots[id], count, globalTable);
+            }
+            code[pc] = Opcode.RET;
+            operands[pc] = retSlots[id];
+            pc++;
+        }
+
+        return new Module(code, operands, entry, names, retSlots, paramSlots, locSlots, globalTable);
+    }
+
+    /**
+     * 检查操作数并换算成 Module 中的形式：跳转换成绝对位置，ret 换成返回值槽数，callname 换成 Builtins 中的编号
+     *
+     * @param i 指令在函数体中的下标
+     * @param size 函数体的指令数
+     * @param base 函数第一条指令在指令流中的位置
+     */
+    private static long resolve(int op, long x, int id, int i, int size, int base, int retSlots, int functions,
+                                String[] globals) {
+        switch (op) {
+            case Opcode.BR:
+            case Opcode.BRTRUE:
+            case Opcode.BRFALSE: {
+                long target = i + 1 + x;
+                if (target < 0 || target > size) {
+                    throw new Error("branch out of function " + id + " at " + i);
+                }
+                return base + target;
+            }
+            case Opcode.RET:
+                return retSlots;
+            case Opcode.CALL:
+                if (x < 0 || x >= functions) {
+                    throw new Error("call to unknown function " + x + " in function " + id);
+                }
+                return x;
+            case Opcode.CALLNAME: {
+                if (x < 0 || x >= globals.length) {
+                    throw new Error("callname to unknown global " + x + " in function " + id);
+                }
+                int builtin = Builtins.index(globals[(int) x]);
+                if (builtin < 0) {
+                    throw new Error("callname to unknown function " + globals[(int) x] + " in function " + id);
+                }
+                return builtin;
+            }
+            default:
+                return x;
+        }
+    }
+
+    private static final int MAGIC = 0x72303b3e;
+    private static final int VERSION = 1;
+    /** 每个操作码在 o0 文件中的操作数字节数，取自 InstructionBuffer.operandSize，-1 表示不是合法的操作码 */
+    private static final int[] OPERAND_SIZE = new int[Opcode.LIMIT];
+
+    static {
+        Arrays.fill(OPERAND_SIZE, -1);
+        for (Operation operation : Operation.values()) {
+            OPERAND_SIZE[operation.getI()] = InstructionBuffer.operandSize(operation.getI());
+        }
+    }
+
+    /**
+     * 读入 o0 文件，解码并合成超指令
+     */
+    public static Module load(Path file) throws IOException {
+        return Fuser.fuse(decode(file));
+    }
+
+    /**
+     * 把 o0 文件映射到内存，直接解码到 Module 的数组里，不经过 Instruction 对象。
+     * 全局变量的初值不读入，执行时全部从 0 开始，与 Analyser 的输出一致。
+     * 文件中的操作数可能是任意值，解码后立即校验，操作数或指令序列不合法的文件和截断的文件一样报 IOException。
+     */
+    public static Module decode(Path file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            Module module = decode(in);
+            Verifier.verify(module);
+            return module;
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (BufferUnderflowException | IllegalArgumentException | Error e) {
+            // resolve 和 Verifier 用 Error 报告不合法的操作数和指令序列
+            throw new IOException(file + " is truncated or corrupted", e);
+        }
+    }
+
+    private static Module decode(ByteBuffer in) throws IOException {
+        if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("not an o0 file");
+        }
+        String[] globals = new String[count(in)];
+        for (int g = 0; g < globals.length; g++) {
+            in.get();
+            byte[] value = new byte[count(in)];
+            in.get(value);
+            globals[g] = new String(value, StandardCharsets.UTF_8);
+        }
+
+        int count = count(in);
+        int[] entry = new int[count];
+        int[] names = new int[count];
+        int[] retSlots = new int[count];
+        int[] paramSlots = new int[count];
+        int[] locSlots = new int[count];
+        // 每条指令至少占一个字节，再加上每个函数末尾补的 ret，解码完再截短
+        int capacity = in.remaining() + count;
+        int[] code = new int[capacity];
+        long[] operands = new long[capacity];
+
+        int pc = 0;
+        for (int id = 0; id < count; id++) {
+            names[id] = in.getInt();
+            retSlots[id] = in.getInt();
+            paramSlots[id] = in.getInt();
+            locSlots[id] = in.getInt();
+            int size = count(in);
+            if (names[id] >= globals.length || retSlots[id] < 0 || paramSlots[id] < 0 || locSlots[id] < 0
+                    || size > in.remaining()) {
+                throw new IOException("invalid header of function " + id);
+            }
+            entry[id] = pc;
+            for (int i = 0; i < size; i++, pc++) {
+                int op = in.get() & 0xff;
+                long x;
+                switch (OPERAND_SIZE[op]) {
+                    case 0:
+                        x = 0;
+                        break;
+                    case 4:
+                        x = in.getInt();
+                        break;
+                    case 8:
+                        x = in.getLong();
+                        break;
+                    default:
+                        throw new IOException(String.format("invalid opcode 0x%02x in function %d", op, id));
+                }
+                code[pc] = op;
+                operands[pc] = resolve(op, x, id, i, size, entry[id], retSlots[id], count, globals);
+            }
+            code[pc] = Opcode.RET;
+            operands[pc] = retSlots[id];
+            pc++;
+        }
+        if (in.hasRemaining()) {
+            throw new IOException("trailing bytes after the function table");
+        }
+
+        return new Module(Arrays.copyOf(code, pc), Arrays.copyOf(operands, pc), entry, names, retSlots, paramSlots,
+                locSlots, globals);
+    }
+
+    /**
+     * 读一个 u32 的个数，超出 int 范围或比剩下的字节还多的一定是坏文件
+     */
+    private static int count(ByteBuffer in) throws IOException {
+        int n = in.getInt();
+        if (n < 0 || n > in.remaining()) {
+            throw new IOException("invalid count " + Integer.toUnsignedString(n));
+        }
+        return n;
+    }
+}
@@ -0,0 +1,426 @@
+package miniplc0java.vm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 虚拟机的线性内存，地址都是字节偏移
+ *
+ * 低地址区在一块小端序的直接 ByteBuffer 里，不占 Java 堆：0 开始的 8 字节保留给空指针，
+ * 之后是全局变量（每个 8 字节），再之后是 alloc/free 管理的堆，堆由按大小分档的 slab 分配器管理，
+ * 不够时整体扩容。
+ * 从 STACK_BASE 开始是栈区，第 i 个栈槽的地址为 STACK_BASE + 8 * i，直接落在解释器的 long[] 栈上，
+ * 栈上的 8/16/32 位访问不能跨过槽的边界。
+ */
+final class Memory {
+    /** 第一个全局变量的地址 */
+    static final int GLOBALS_BASE = 8;
+    /** 栈区的起始地址 */
+    static final long STACK_BASE = 1L << 32;
+    /** 解释器的栈一开始的槽数，用完时成倍增长 */
+    static final int INITIAL_STACK_SLOTS = 1 << 16;
+    /** 栈最多增长到的槽数，再深的调用报 stack overflow */
+    static final int MAX_STACK_SLOTS = 1 << 24;
+
+    private static final int INITIAL_HEAP = 1 << 16;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 7;
+    /** 最大的块，1 GiB */
+    private static final int MAX_BLOCK = 1 << 30;
+    /** 堆块头部，前 4 字节记录块的总字节数，最低位为 1 表示空闲；后 4 字节记录申请的字节数 */
+    private static final int HEADER = 8;
+    private static final int FREE_BIT = 1;
+    /** 块大小按这个粒度取整，也是相邻小块档位的间隔 */
+    private static final int CLASS_STEP = 16;
+    /** 不超过这个大小（含块头）的块是小块 */
+    private static final int SMALL_LIMIT = 512;
+    private static final int SMALL_CLASSES = SMALL_LIMIT / CLASS_STEP;
+    /** 小块链表空时一次切出的字节数 */
+    private static final int SLAB_SIZE = 4096;
+
+    ByteBuffer buffer;
+    /** 解释器的栈，ensureStack 增长时换成新数组 */
+    long[] stack;
+    private final int heapBase;
+    /** 堆中从未分配过的部分的起点 */
+    private int heapTop;
+    /** 每档一个空闲链表，块头之后 4 字节存下一个空闲块，0 表示结束 */
+    private final int[] freeLists = new int[SMALL_CLASSES + 22];
+    /**
+     * 已分配块的起点，每 CLASS_STEP 字节一位，free 只接受这里记录的地址，不信任块头里可能被程序改写的内容
+     */
+    private long[] blockStarts;
+
+    // 统计
+    private long allocs;
+    private long largeAllocs;
+    private long frees;
+    /** 按申请的字节数计 */
+    private long inUse;
+    private long peakInUse;
+
+    Memory(int globals, long[] stack) {
+        // 块从 16 字节对齐的位置开始，块头之后的地址是 8 的奇数倍
+        this(stack, classSize(GLOBALS_BASE + 8 * globals));
+        this.buffer = ByteBuffer.allocateDirect(heapBase + INITIAL_HEAP).order(ByteOrder.LITTLE_ENDIAN);
+        this.blockStarts = new long[bitmapLength(buffer.capacity())];
+    }
+
+    private Memory(long[] stack, int heapBase) {
+        this.stack = stack;
+        this.heapBase = heapBase;
+        this.heapTop = heapBase;
+    }
+
+    // 快照
+
+    private static final int SNAPSHOT_MAGIC = 0x4e53304f;
+    private static final int SNAPSHOT_VERSION = 1;
+    /** 快照头部的长度，内存内容从这里开始，按页对齐以便直接映射 */
+    private static final int SNAPSHOT_HEADER = 4096;
+
+    /**
+     * 把全局变量和堆（包括分配器的状态）写到 file。文件头之后是整个 buffer，恢复时原样映射；最后是
+     * blockStarts。
+     *
+     * @param fingerprint 见 Module.fingerprint
+     */
+    void save(Path file, long fingerprint) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(fingerprint);
+        header.putInt(heapBase).putInt(heapTop).putInt(buffer.capacity()).putInt(freeLists.length);
+        header.putLong(allocs).putLong(largeAllocs).putLong(frees).putLong(inUse).putLong(peakInUse);
+        for (int head : freeLists) {
+            header.putInt(head);
+        }
+        header.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = buffer.duplicate().clear();
+            ByteBuffer starts = ByteBuffer.allocate(8 * blockStarts.length).order(ByteOrder.LITTLE_ENDIAN);
+            starts.asLongBuffer().put(blockStarts);
+            while (header.hasRemaining() || data.hasRemaining() || starts.hasRemaining()) {
+                channel.write(new ByteBuffer[]{header, data, starts});
+            }
+        }
+    }
+
+    /**
+     * 从 save 写出的快照恢复。内存内容以写时复制方式映射，只有用到的页才会读入，修改不会写回文件，
+     * 所以同一个快照可以反复使用。快照文件只读时改为读进内存，见 contents。
+     */
+    static Memory restore(Path file, int globals, long[] stack, long fingerprint) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+            header.flip();
+            if (header.remaining() < SNAPSHOT_HEADER || header.getInt() != SNAPSHOT_MAGIC
+                    || header.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            if (header.getLong() != fingerprint) {
+                throw new IOException(file + " is a snapshot of a different program");
+            }
+            Memory memory = new Memory(stack, header.getInt());
+            memory.heapTop = header.getInt();
+            int capacity = header.getInt();
+            if (memory.heapBase != classSize(GLOBALS_BASE + 8 * globals) || header.getInt() != memory.freeLists.length
+                    || memory.heapTop < memory.heapBase || capacity < memory.heapTop
+                    || channel.size() < (long) SNAPSHOT_HEADER + capacity + 8L * bitmapLength(capacity)) {
+                throw new IOException(file + " is corrupted");
+            }
+            memory.allocs = header.getLong();
+            memory.largeAllocs = header.getLong();
+            memory.frees = header.getLong();
+            memory.inUse = header.getLong();
+            memory.peakInUse = header.getLong();
+            for (int i = 0; i < memory.freeLists.length; i++) {
+                memory.freeLists[i] = header.getInt();
+            }
+            ByteBuffer starts = ByteBuffer.allocate(8 * bitmapLength(capacity)).order(ByteOrder.LITTLE_ENDIAN);
+            while (starts.hasRemaining()) {
+                if (channel.read(starts, (long) SNAPSHOT_HEADER + capacity + starts.position()) < 0) {
+                    throw new IOException(file + " is corrupted");
+                }
+            }
+            memory.blockStarts = new long[starts.capacity() / 8];
+            starts.flip().asLongBuffer().get(memory.blockStarts);
+            memory.buffer = contents(file, channel, capacity).order(ByteOrder.LITTLE_ENDIAN);
+            return memory;
+        }
+    }
+
+    /**
+     * 快照中的内存内容。写时复制的映射要求通道可写（不会改动文件），当前用户不能写这个文件时（例如多个
+     * 进程共用的只读快照）退回到整个读进一块直接 ByteBuffer。
+     */
+    private static ByteBuffer contents(Path file, FileChannel in, int capacity) throws IOException {
+        if (Files.isWritable(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.PRIVATE, SNAPSHOT_HEADER, capacity);
+            } catch (FileSystemException e) {
+                // 只读的文件系统等，isWritable 不一定能发现
+            }
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+        while (copy.hasRemaining()) {
+            if (in.read(copy, (long) SNAPSHOT_HEADER + copy.position()) < 0) {
+                throw new IOException(file + " is corrupted");
+            }
+        }
+        return copy.clear();
+    }
+
+    /**
+     * 保证栈至少有 slots 个槽，不够时按两倍增长并复制已有内容。栈地址是下标，换了数组也不变。
+     *
+     * @return 当前的栈
+     */
+    long[] ensureStack(int slots) {
+        if (slots > stack.length) {
+            if (slots > MAX_STACK_SLOTS) {
+                throw new Error("stack overflow");
+            }
+            int size = Math.max(stack.length, 1);
+            while (size < slots) {
+                size *= 2;
+            }
+            stack = Arrays.copyOf(stack, size);
+        }
+        return stack;
+    }
+
+    static long global(int index) {
+        return GLOBALS_BASE + 8L * index;
+    }
+
+    static long slot(int index) {
+        return STACK_BASE + 8L * index;
+    }
+
+    long load64(long address) {
+        if (address >= STACK_BASE) {
+            return stack[slotIndex(address, 8)];
+        }
+        return buffer.getLong(offset(address, 8));
+    }
+
+    long load32(long address) {
+        if (address >= STACK_BASE) {
+            return (stack[slotIndex(address, 4)] >>> shift(address)) & 0xffffffffL;
+        }
+        return buffer.getInt(offset(address, 4)) & 0xffffffffL;
+    }
+
+    long load16(long address) {
+        if (address >= STACK_BASE) {
+            return (stack[slotIndex(address, 2)] >>> shift(address)) & 0xffff;
+        }
+        return buffer.getShort(offset(address, 2)) & 0xffff;
+    }
+
+    long load8(long address) {
+        if (address >= STACK_BASE) {
+            return (stack[slotIndex(address, 1)] >>> shift(address)) & 0xff;
+        }
+        return buffer.get(offset(address, 1)) & 0xff;
+    }
+
+    void store64(long address, long value) {
+        if (address >= STACK_BASE) {
+            stack[slotIndex(address, 8)] = value;
+        } else {
+            buffer.putLong(offset(address, 8), value);
+        }
+    }
+
+    void store32(long address, long value) {
+        if (address >= STACK_BASE) {
+            storeSlot(address, 4, 0xffffffffL, value);
+        } else {
+            buffer.putInt(offset(address, 4), (int) value);
+        }
+    }
+
+    void store16(long address, long value) {
+        if (address >= STACK_BASE) {
+            storeSlot(address, 2, 0xffff, value);
+        } else {
+            buffer.putShort(offset(address, 2), (short) value);
+        }
+    }
+
+    void store8(long address, long value) {
+        if (address >= STACK_BASE) {
+            storeSlot(address, 1, 0xff, value);
+        } else {
+            buffer.put(offset(address, 1), (byte) value);
+        }
+    }
+
+    private void storeSlot(long address, int size, long mask, long value) {
+        int index = slotIndex(address, size);
+        int shift = shift(address);
+        stack[index] = (stack[index] & ~(mask << shift)) | ((value & mask) << shift);
+    }
+
+    private static int shift(long address) {
+        return (int) (address & 7) * 8;
+    }
+
+    private int slotIndex(long address, int size) {
+        long offset = address - STACK_BASE;
+        if ((offset & 7) + size > 8 || offset >= 8L * stack.length) {
+            throw new Error("invalid stack address " + address);
+        }
+        return (int) (offset >>> 3);
+    }
+
+    private int offset(long address, int size) {
+        if (address < GLOBALS_BASE || address > buffer.capacity() - size) {
+            throw new Error("invalid address " + address);
+        }
+        return (int) address;
+    }
+
+    /**
+     * 不超过 SMALL_LIMIT 的块按 16 字节一档，更大的块按 2 的幂一档，每档一个空闲链表，分配和释放都是
+     * O(1)。小块的链表空了就从堆顶切一整块 slab 补充，大块每次从堆顶切一个。返回的内存清零。
+     */
+    long alloc(long size) {
+        if (size < 0 || size > MAX_BLOCK - HEADER) {
+            throw new Error("invalid allocation size " + size);
+        }
+        int need = classSize(HEADER + Math.max(size, 8));
+        int c;
+        if (need <= SMALL_LIMIT) {
+            c = need / CLASS_STEP - 1;
+            if (freeLists[c] == 0) {
+                refill(c, need);
+            }
+        } else {
+            c = largeClass(need);
+            need = largeSize(c);
+            largeAllocs++;
+            if (freeLists[c] == 0) {
+                pushFree(bump(need), need);
+            }
+        }
+        int block = freeLists[c];
+        freeLists[c] = buffer.getInt(block + HEADER);
+        allocs++;
+        inUse += size;
+        peakInUse = Math.max(peakInUse, inUse);
+        buffer.putInt(block, need);
+        buffer.putInt(block + 4, (int) size);
+        blockStarts[block >>> 10] |= 1L << (block >>> 4);
+        for (int i = block + HEADER; i < block + need; i += 8) {
+            buffer.putLong(i, 0);
+        }
+        return block + HEADER;
+    }
+
+    /**
+     * 容量为 capacity 的内存的 blockStarts 需要的 long 数
+     */
+    private static int bitmapLength(int capacity) {
+        return (int) (((long) capacity + 1023) >>> 10);
+    }
+
+    private static int classSize(long size) {
+        return (int) ((size + CLASS_STEP - 1) & -CLASS_STEP);
+    }
+
+    /**
+     * 大块的档位，第 SMALL_CLASSES + k 档的块大小为 SMALL_LIMIT << (k + 1)
+     */
+    private static int largeClass(int size) {
+        return SMALL_CLASSES + (31 - Integer.numberOfLeadingZeros((size - 1) / SMALL_LIMIT));
+    }
+
+    private static int largeSize(int c) {
+        return SMALL_LIMIT << (c - SMALL_CLASSES + 1);
+    }
+
+    /**
+     * 从堆顶切出一块 slab，全部挂到 c 档的空闲链表上
+     */
+    private void refill(int c, int size) {
+        int count = Math.max(SLAB_SIZE / size, 1);
+        int slab = bump(count * size);
+        for (int i = count - 1; i >= 0; i--) {
+            pushFree(slab + i * size, size);
+        }
+    }
+
+    private int bump(int size) {
+        if ((long) heapTop + size > MAX_CAPACITY) {
+            throw new Error("out of memory");
+        }
+        if (heapTop + size > buffer.capacity()) {
+            grow(heapTop + size);
+        }
+        int block = heapTop;
+        heapTop += size;
+        return block;
+    }
+
+    private void pushFree(int block, int size) {
+        int c = size <= SMALL_LIMIT ? size / CLASS_STEP - 1 : largeClass(size);
+        buffer.putInt(block, size | FREE_BIT);
+        buffer.putInt(block + HEADER, freeLists[c]);
+        freeLists[c] = block;
+    }
+
+    void free(long address) {
+        if (address == 0) {
+            return;
+        }
+        int block = (int) (address - HEADER);
+        // 只有 alloc 返回过且还没释放的地址才在 blockStarts 中，块内的其他位置和重复释放都不能通过
+        if (address < heapBase + HEADER || address >= heapTop || (address & (CLASS_STEP - 1)) != HEADER
+                || (blockStarts[block >>> 10] & (1L << (block >>> 4))) == 0
+                || (buffer.getInt(block) & FREE_BIT) != 0) {
+            throw new Error("invalid free of address " + address);
+        }
+        blockStarts[block >>> 10] &= ~(1L << (block >>> 4));
+        frees++;
+        inUse -= buffer.getInt(block + 4);
+        pushFree(block, buffer.getInt(block));
+    }
+
+    /**
+     * 输出堆的使用统计，碎片率为堆占用的空间中没有被申请使用的比例，包括块内取整浪费的部分
+     */
+    void report(PrintStream out) {
+        long footprint = heapTop - heapBase;
+        out.printf("heap: %d allocs (%d large), %d frees%n", allocs, largeAllocs, frees);
+        out.printf("heap: in use %d bytes, peak %d bytes, footprint %d bytes%n", inUse, peakInUse, footprint);
+        out.printf("heap: fragmentation %.1f%% at exit, %.1f%% at peak%n",
+                footprint == 0 ? 0.0 : 100.0 * (footprint - inUse) / footprint,
+                footprint == 0 ? 0.0 : 100.0 * (footprint - peakInUse) / footprint);
+    }
+
+    private void grow(int needed) {
+        long capacity = buffer.capacity();
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.min(capacity, MAX_CAPACITY))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        bigger.put(buffer.duplicate().clear());
+        buffer = bigger;
+        blockStarts = Arrays.copyOf(blockStarts, bitmapLength(buffer.capacity()));
+    }
+}
@@ -1,103 +1,1904 @@
 package miniplc0java.vm;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
-import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.FnInstruction;
 
+/**
+ * o0 虚拟机，解释执行 Loader 解码出的 Module
+ *
+ * 一个 MiniVm 是一次执行的上下文，代码和由代码算出的只读数据在共享的 CodeImage 中。
+ *
+ * 栈是一个预先分配好的 long[]，每个槽 64 位，double 以 raw bits 存放。
+ * 栈帧布局（从低到高）：返回值槽 | 参数 | 旧 fp | 旧 argBase | 返回 pc | 局部变量 | 操作数栈
+ */
 public class MiniVm {
-    private List<Instruction> instructions;
-    private PrintStream out;
+    /** 每个栈帧保存的控制信息槽数：旧 fp、旧 argBase、返回 pc */
+    static final int FRAME_HEADER = 3;
+    /**
+     * 编译后的代码每层调用都占用 Java 栈，Run 在栈有这么大的线程中执行它们：解释器栈的每个槽对应 16 字节，
+     * 共 256 MiB。Jit 编译的代码每层调用只占几十字节，能达到解释执行的递归深度；闭包编译每层占几百字节，
+     * 能达到的深度是解释执行的几分之一。线程栈是预留的地址空间，用到的部分才占用内存。
+     */
+    static final long JAVA_STACK_BYTES = 16L * Memory.MAX_STACK_SLOTS;
+
+    /** 共享的程序，见 CodeImage */
+    final CodeImage image;
+    Module module;
+    Builtins builtins;
 
     /**
-     * @param instructions
+     * 所有栈帧连续放在这个数组里，栈地址是数组下标，放不下时 ensureStack 换成更大的数组。
+     * 可能调用到其它函数的地方之后都要重新读这个字段。
+     */
+    long[] stack;
+    /**
+     * 解释器最内层栈帧的 fp（高 32 位）和所在函数中的某个 pc（低 32 位），在调用和返回时更新，
+     * 供 Sampler 从另一个线程读取，不保证及时可见
+     */
+    long position;
+    /** 全局变量和堆，栈槽也通过它按地址访问 */
+    Memory memory;
+    /** 离开解释器进入编译后的代码时的栈顶，编译后的代码回调解释器时从这里开始压栈 */
+    private int sp;
+    /** 每个函数编译后的代码，没有编译的为 null */
+    private CompiledCode[] compiled;
+    /** 本次 Run 使用的代码：没有预算时就是 compiled，设置了预算时全为 null，见 Run */
+    private CompiledCode[] activeCode;
+
+    /** 分层执行的阈值，为 0 时只解释执行（或只用 compileAll 预先编译的代码） */
+    private int tierThreshold;
+    /** 本次 Run 的分层阈值，设置了预算时为 0 */
+    private int activeTier;
+    /** 每个函数被调用的次数 */
+    private int[] calls;
+    /** 每个循环头（向后跳转的目标 pc）被跳到的次数 */
+    private int[] loops;
+
+    private PrintStream heapStats;
+
+    /** 不限制指令数 */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    private long fuelBudget = UNLIMITED;
+    /** 剩余的指令数，每进入一个基本块扣除整块的指令数 */
+    private long fuel = UNLIMITED;
+    /** 以下两项来自 image，见 CodeImage */
+    private final int[] costs;
+    private final int[] frameSlots;
+
+    /** 为 true 时用 executeCached 解释执行 */
+    private boolean cacheTop;
+    /** 翻译成寄存器形式的代码，为 null 时只用栈式解释器 */
+    private RegisterCode registers;
+    /** 放在 compiled 中，表示这个函数用 executeRegisters 执行 */
+    private static final CompiledCode REGISTERS = (id, stack, base, vm) -> vm.executeRegisters(id, base);
+    /** 闭包编译的结果，为 null 时不使用 */
+    private ClosureCode.Function[] closures;
+
+    /** 踪迹编译的阈值，为 0 时关闭，见 Tracer */
+    private int traceThreshold;
+    /** 本次 Run 的踪迹编译阈值，设置了预算时为 0 */
+    private int activeTrace;
+    /** 每个循环头被 br 跳到的次数 */
+    private int[] traceCounts;
+    /** 每个循环头的踪迹，没有记录过的为 null */
+    private Tracer.Trace[] traces;
+    /** Tracer 离开后解释器接着执行的状态，见 resume */
+    private int resumePc;
+    private int resumeFp;
+    private int resumeArgBase;
+    private int resumeSp;
+
+    /** 不为 null 时从这个快照开始执行，跳过全局变量初始化 */
+    private Path snapshot;
+
+    /**
+     * 一次执行的上下文，多个 MiniVm 可以共享同一个 image 并在不同线程中同时运行
+     *
+     * @param in
+     * @param out
+     */
+    public MiniVm(CodeImage image, InputStream in, PrintStream out) {
+        this.image = image;
+        this.module = image.module;
+        this.builtins = new Builtins(module.globals, in, out);
+        this.stack = new long[Memory.INITIAL_STACK_SLOTS];
+        this.compiled = new CompiledCode[module.functionCount()];
+        this.calls = new int[module.functionCount()];
+        this.loops = new int[module.code.length];
+        this.costs = image.costs;
+        this.frameSlots = image.frameSlots;
+    }
+
+    /**
+     * @param module 解码后的模块，0 号函数是 _start
+     * @param in
      * @param out
      */
-    public MiniVm(List<Instruction> instructions, PrintStream out) {
-        this.instructions = instructions;
-        this.out = out;
+    public MiniVm(Module module, InputStream in, PrintStream out) {
+        this(new CodeImage(module), in, out);
     }
 
-    public MiniVm(List<Instruction> instructions) {
-        this.instructions = instructions;
-        this.out = System.out;
+    public MiniVm(ArrayList<String> globals, ArrayList<FnInstruction> functions, InputStream in, PrintStream out) {
+        this(Loader.load(globals, functions), in, out);
     }
 
-    private ArrayList<Integer> stack = new ArrayList<>();
+    public MiniVm(ArrayList<String> globals, ArrayList<FnInstruction> functions) {
+        this(globals, functions, System.in, System.out);
+    }
 
-    private int ip;
+    /**
+     * 运行前把所有能编译的函数编译成 JVM 字节码，不能编译的继续解释执行。编译结果保存在 CodeImage 中，
+     * 共享它的 MiniVm 只编译一次。
+     *
+     * @return 编译成功的函数个数
+     */
+    public int compileAll() {
+        image.compileAll();
+        CompiledCode[] shared = image.compiled();
+        int count = 0;
+        for (int id = 0; id < shared.length; id++) {
+            if (shared[id] != null) {
+                compiled[id] = shared[id];
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return 当前有编译后代码的函数个数，包括 Jit、闭包编译和寄存器形式
+     */
+    int compiledCount() {
+        return (int) Arrays.stream(compiled).filter(code -> code != null).count();
+    }
+
+    /**
+     * 开启分层执行：先解释执行，函数被调用或循环头被跳到 threshold 次后编译成 JVM 字节码，
+     * 正在执行的循环通过 OSR 切换到编译后的代码
+     *
+     * @param threshold 为 0 时关闭
+     */
+    public void setTierThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        this.tierThreshold = threshold;
+    }
+
+    /**
+     * id 号函数及其调用到的函数一起编译，它们之间的调用就是直接的 invokestatic
+     */
+    private void promote(int id) {
+        Jit.compile(module, callTree(id), compiled);
+    }
+
+    /**
+     * 从 id 号函数出发能调用到的所有函数，包括自己
+     */
+    private int[] callTree(int id) {
+        boolean[] seen = new boolean[module.functionCount()];
+        int[] found = new int[module.functionCount()];
+        int count = 0;
+        seen[id] = true;
+        found[count++] = id;
+        for (int i = 0; i < count; i++) {
+            int f = found[i];
+            for (int pc = module.entry[f], end = module.end(f); pc < end; pc++) {
+                if (module.code[pc] == Opcode.CALL) {
+                    int callee = (int) module.operands[pc];
+                    if (!seen[callee]) {
+                        seen[callee] = true;
+                        found[count++] = callee;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * 解释器跳回 target 处的循环头。次数达到阈值时编译所在函数并从循环头 OSR 进入编译后的代码，
+     * 编译后的代码执行到函数返回后，解释器接着执行函数末尾的 ret。
+     *
+     * @param argBase 当前栈帧返回值槽的位置
+     * @param sp 当前栈顶，循环头处就是局部变量的末尾
+     * @return 解释器接下来执行的 pc
+     */
+    private int backEdge(int target, int argBase, int sp) {
+        if (++loops[target] != activeTier) {
+            return target;
+        }
+        int id = module.functionAt(target);
+        CompiledCode code = Jit.compileOsr(module, id, target, callTree(id), compiled);
+        if (code == null) {
+            return target;
+        }
+        this.sp = sp;
+        code.invoke(Jit.OSR_ENTRY, stack, argBase, this);
+        return module.end(id) - 1;
+    }
+
+    /**
+     * 开启踪迹编译：循环头被 br 跳到 threshold 次后记录一圈执行路径并编译，之后每次跳到循环头都进入
+     * 编译后的踪迹，直到走上没有记录的分支再回到解释器。只在 execute 中生效，开启后不使用 executeCached。
+     *
+     * @param threshold 为 0 时关闭
+     */
+    public void setTracing(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        this.traceThreshold = threshold;
+        this.traceCounts = threshold == 0 ? null : new int[module.code.length];
+        this.traces = threshold == 0 ? null : new Tracer.Trace[module.code.length];
+    }
+
+    /**
+     * execute 中 br 跳回 header 处的循环头时调用，此时栈帧还是 fp、argBase、sp
+     *
+     * @return 为 true 时记录或执行了踪迹，解释器从 resume 系列字段接着执行；为 false 时照常跳到 header
+     */
+    private boolean trace(int header, int fp, int argBase, int sp) {
+        Tracer.Trace trace = traces[header];
+        if (trace == null) {
+            if (++traceCounts[header] < traceThreshold) {
+                return false;
+            }
+            if (sp - fp != module.locSlots[module.functionAt(header)]) {
+                traces[header] = Tracer.FAILED;
+                return false;
+            }
+            int[] path = Tracer.record(this, header, fp, argBase, sp);
+            traces[header] = path == null ? Tracer.FAILED : Tracer.compile(this, header, path);
+            position = (long) resumeFp << 32 | resumePc;
+            return true;
+        }
+        if (trace == Tracer.FAILED) {
+            return false;
+        }
+        int exit = trace.loop.run(ensureStack(fp + trace.slots), fp, this);
+        resume(trace.exitPc[exit], fp + trace.exitFp[exit], fp + trace.exitArgBase[exit], fp + trace.exitSp[exit]);
+        position = (long) resumeFp << 32 | resumePc;
+        return true;
+    }
+
+    /**
+     * 见 Memory.ensureStack，调用者手里的旧数组作废，要改用返回的数组
+     *
+     * @return 当前的栈
+     */
+    long[] ensureStack(int slots) {
+        if (slots > stack.length) {
+            stack = memory.ensureStack(slots);
+        }
+        return stack;
+    }
+
+    void resume(int pc, int fp, int argBase, int sp) {
+        this.resumePc = pc;
+        this.resumeFp = fp;
+        this.resumeArgBase = argBase;
+        this.resumeSp = sp;
+    }
+
+    /**
+     * 解释执行时把操作数栈顶缓存在局部变量里，见 executeCached
+     */
+    public void setTopOfStackCaching(boolean enabled) {
+        this.cacheTop = enabled;
+    }
+
+    /**
+     * 把函数翻译成寄存器形式再解释执行，见 RegisterCode。翻译不了的函数仍由栈式解释器执行，
+     * 设置了指令数预算时全部由栈式解释器执行。
+     */
+    public void setRegisterForm(boolean enabled) {
+        uninstall();
+        this.registers = enabled ? image.registers() : null;
+    }
+
+    /**
+     * 把所有函数闭包编译后执行，见 ClosureCode。Jit 编译的函数仍然使用编译后的代码，设置了指令数预算时
+     * 只解释执行。
+     */
+    public void setClosureCompilation(boolean enabled) {
+        uninstall();
+        this.closures = enabled ? image.closures() : null;
+    }
+
+    /**
+     * Run 开始时把寄存器形式和闭包编译的代码放进 compiled 中没有编译的位置，闭包优先
+     */
+    private void install() {
+        for (int id = 0; id < compiled.length; id++) {
+            if (compiled[id] == null && closures != null) {
+                compiled[id] = closures[id];
+            }
+            if (compiled[id] == null && registers != null && registers.entry[id] >= 0) {
+                compiled[id] = REGISTERS;
+            }
+        }
+    }
+
+    private void uninstall() {
+        for (int id = 0; id < compiled.length; id++) {
+            if (compiled[id] == REGISTERS || closures != null && compiled[id] == closures[id]) {
+                compiled[id] = null;
+            }
+        }
+    }
+
+    /**
+     * 程序结束时把堆的使用统计输出到 out，为 null 时不输出
+     */
+    public void setHeapStats(PrintStream out) {
+        this.heapStats = out;
+    }
+
+    /**
+     * 限制程序最多执行的指令数，超出时抛出 FuelExhaustedError。指令数按基本块扣除，块开始前剩余不够
+     * 整块时就停下，所以不会超出预算。编译后的代码不计量，设置了预算时只解释执行，已经编译的代码和
+     * 分层、踪迹的设置留给之后没有预算的 Run。
+     *
+     * @param budget 为 UNLIMITED 时不限制
+     */
+    public void setFuel(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("fuel must not be negative");
+        }
+        this.fuelBudget = budget;
+    }
+
+    /**
+     * 上一次 Run 执行的指令数，只在设置了预算时有意义
+     */
+    public long fuelUsed() {
+        return fuelBudget - fuel;
+    }
+
+    private FuelExhaustedError outOfFuel(long remaining, int pc) {
+        this.fuel = remaining;
+        return new FuelExhaustedError(fuelBudget, fuelBudget - remaining,
+                module.functionName(module.functionAt(pc)));
+    }
+
+    /**
+     * 单独执行一遍 _start 中的全局变量初始化，把执行后的全局变量和堆写到 file，供 useSnapshot 使用。
+     * 初始化过程中有输入输出时不能生成快照。
+     */
+    public void saveSnapshot(Path file) throws IOException {
+        var init = new MiniVm(module.initOnly(), InputStream.nullInputStream(),
+                new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            init.Run();
+        } catch (Error e) {
+            // 读不到输入造成的错误按下面的情况报告
+            if (!init.builtins.used()) {
+                throw e;
+            }
+        }
+        if (init.builtins.used()) {
+            throw new Error("global initialization performs I/O, cannot take a snapshot");
+        }
+        init.memory.save(file, module.fingerprint());
+    }
+
+    /**
+     * 之后的 Run 从 saveSnapshot 生成的快照开始，直接调用 main。每次 Run 都重新映射快照，
+     * 执行中的修改不会写回文件。
+     *
+     * @param file 为 null 时恢复正常执行
+     */
+    public void useSnapshot(Path file) throws IOException {
+        if (file != null) {
+            // 提前检查快照是否属于这个程序
+            Memory.restore(file, module.globals.length, stack, module.fingerprint());
+        }
+        this.snapshot = file;
+    }
 
     public void Run() {
-        ip = 0;
-        while (ip < instructions.size()) {
-            var inst = instructions.get(ip);
-            RunStep(inst);
-            ip++;
-        }
-    }
-
-    private Integer pop() {
-        var val = this.stack.get(this.stack.size() - 1);
-        this.stack.remove(this.stack.size() - 1);
-        return val;
-    }
-
-    private void push(Integer i) {
-        this.stack.add(i);
-    }
-
-    private void RunStep(Instruction inst) {
-        switch (inst.getOpt()) {
-//            case ADD: {
-//                var a = pop();
-//                var b = pop();
-//                push(a + b);
-//            }
-//                break;
-//            case DIV: {
-//                var b = pop();
-//                var a = pop();
-//                push(a / b);
-//            }
-//                break;
-//            case ILL: {
-//                throw new Error("Illegal instruction");
-//            }
-//            case LIT: {
-//                push(inst.getX());
-//            }
-//                break;
-//            case LOD: {
-//                var x = stack.get(inst.getX());
-//                push(x);
-//            }
-//                break;
-//            case MUL: {
-//                var b = pop();
-//                var a = pop();
-//                push(a * b);
-//            }
-//                break;
-//            case STO: {
-//                var x = pop();
-//                stack.set(inst.getX(), x);
-//            }
-//                break;
-//            case SUB: {
-//                var b = pop();
-//                var a = pop();
-//                push(a - b);
-//            }
-//                break;
-//            case WRT: {
-//                var b = pop();
-//                out.printf("%d\n", b);
-//            }
-//                break;
-//            default:
-//                break;
+        if (snapshot == null) {
+            memory = new Memory(module.globals.length, stack);
+        } else {
+            try {
+                memory = Memory.restore(snapshot, module.globals.length, stack, module.fingerprint());
+            } catch (IOException e) {
+                throw new Error("failed to restore snapshot", e);
+            }
+        }
+        sp = 0;
+        fuel = fuelBudget;
+        // 预算只影响这一次 Run 选用的执行方式，编译结果和各项设置都保留
+        if (fuelBudget != UNLIMITED) {
+            activeCode = new CompiledCode[compiled.length];
+            activeTier = 0;
+            activeTrace = 0;
+        } else {
+            install();
+            activeCode = compiled;
+            activeTier = tierThreshold;
+            activeTrace = traceThreshold;
+        }
+        Throwable failure = null;
+        try {
+            if (usesJavaStack()) {
+                startOnLargeStack(snapshot);
+            } else {
+                start(snapshot);
+            }
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            builtins.finish(failure);
+        }
+        if (heapStats != null) {
+            memory.report(heapStats);
+        }
+    }
+
+    /**
+     * 本次 Run 是否可能执行编译后的代码。只解释执行时调用不占用 Java 栈，寄存器形式的函数之间也是如此。
+     */
+    private boolean usesJavaStack() {
+        if (activeTier != 0) {
+            return true;
+        }
+        for (CompiledCode code : activeCode) {
+            if (code != null && code != REGISTERS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 在栈大小为 JAVA_STACK_BYTES 的新线程中执行 start 并等它结束，执行中的错误在调用者的线程中重新抛出
+     */
+    private void startOnLargeStack(Path snapshot) {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                start(snapshot);
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "c0-run", JAVA_STACK_BYTES);
+        thread.start();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                // 执行不能从外部打断，等它结束后再恢复中断状态
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        }
+        if (failure[0] != null) {
+            throw (RuntimeException) failure[0];
+        }
+    }
+
+    private void start(Path snapshot) {
+        try {
+            if (snapshot == null) {
+                invoke(0, 0);
+            } else {
+                interpret(0, 0, module.initEnd());
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // 栈操作不逐条检查越界，由数组边界检查兜底
+            throw new Error("stack overflow or invalid address", e);
+        } catch (ArithmeticException e) {
+            throw new Error("division by zero", e);
+        } catch (StackOverflowError e) {
+            throw new Error("stack overflow", e);
+        }
+    }
+
+    /**
+     * 执行 id 号函数，返回值槽和参数已经放在 stack[base] 开始的位置
+     */
+    private void invoke(int id, int base) {
+        if (activeTier != 0 && ++calls[id] == activeTier) {
+            promote(id);
+        }
+        CompiledCode code = activeCode[id];
+        if (code != null) {
+            sp = base + module.argSlots(id);
+            code.invoke(id, stack, base, this);
+        } else {
+            interpret(id, base, module.entry[id]);
+        }
+    }
+
+    private void interpret(int id, int base, int start) {
+        if (cacheTop && activeTrace == 0) {
+            executeCached(id, base, start);
+        } else {
+            execute(id, base, start);
+        }
+    }
+
+    /**
+     * 编译后的代码调用未编译的函数：参数已经写在 sp 之上，执行完把栈顶恢复原样
+     */
+    private long callOut(int id) {
+        int base = sp;
+        if (module.retSlots[id] > 0) {
+            ensureStack(base + 1)[base] = 0;
+        }
+        invoke(id, base);
+        sp = base;
+        return stack[base];
+    }
+
+    /**
+     * 闭包编译的代码调用 id 号函数，返回值槽和参数已经放在 stack[base] 开始的位置
+     */
+    static void callAt(int id, int base, MiniVm vm) {
+        vm.invoke(id, base);
+    }
+
+    static long call0(int id, MiniVm vm) {
+        return vm.callOut(id);
+    }
+
+    static long call1(long a0, int id, MiniVm vm) {
+        int at = vm.sp + vm.module.retSlots[id];
+        long[] stack = vm.ensureStack(at + 1);
+        stack[at] = a0;
+        return vm.callOut(id);
+    }
+
+    static long call2(long a0, long a1, int id, MiniVm vm) {
+        int at = vm.sp + vm.module.retSlots[id];
+        long[] stack = vm.ensureStack(at + 2);
+        stack[at] = a0;
+        stack[at + 1] = a1;
+        return vm.callOut(id);
+    }
+
+    static long call3(long a0, long a1, long a2, int id, MiniVm vm) {
+        int at = vm.sp + vm.module.retSlots[id];
+        long[] stack = vm.ensureStack(at + 3);
+        stack[at] = a0;
+        stack[at + 1] = a1;
+        stack[at + 2] = a2;
+        return vm.callOut(id);
+    }
+
+    static long call4(long a0, long a1, long a2, long a3, int id, MiniVm vm) {
+        int at = vm.sp + vm.module.retSlots[id];
+        long[] stack = vm.ensureStack(at + 4);
+        stack[at] = a0;
+        stack[at + 1] = a1;
+        stack[at + 2] = a2;
+        stack[at + 3] = a3;
+        return vm.callOut(id);
+    }
+
+    static long call5(long a0, long a1, long a2, long a3, long a4, int id, MiniVm vm) {
+        int at = vm.sp + vm.module.retSlots[id];
+        long[] stack = vm.ensureStack(at + 5);
+        stack[at] = a0;
+        stack[at + 1] = a1;
+        stack[at + 2] = a2;
+        stack[at + 3] = a3;
+        stack[at + 4] = a4;
+        return vm.callOut(id);
+    }
+
+    static long call6(long a0, long a1, long a2, long a3, long a4, long a5, int id, MiniVm vm) {
+        int at = vm.sp + vm.module.retSlots[id];
+        long[] stack = vm.ensureStack(at + 6);
+        stack[at] = a0;
+        stack[at + 1] = a1;
+        stack[at + 2] = a2;
+        stack[at + 3] = a3;
+        stack[at + 4] = a4;
+        stack[at + 5] = a5;
+        return vm.callOut(id);
+    }
+
+    static double f(long x) {
+        return Double.longBitsToDouble(x);
+    }
+
+    static long bits(double x) {
+        return Double.doubleToRawLongBits(x);
+    }
+
+    /**
+     * 主循环只访问原始类型数组，所有状态放在局部变量里。代码通过了 Verifier 的检查，每次调用时确认整个
+     * 栈帧放得下，之后的栈操作都不用再检查。
+     *
+     * 从 id 号函数的 start 处开始解释执行，该函数返回时结束，返回值留在 stack[base]
+     */
+    private void execute(int id, int base, int start) {
+        final int[] code = module.code;
+        final long[] operands = module.operands;
+        final int[] locSlots = module.locSlots;
+        final int[] retSlots = module.retSlots;
+        long[] stack = this.stack;
+        final Memory memory = this.memory;
+        final CompiledCode[] compiled = this.activeCode;
+        final int[] calls = this.calls;
+        final int threshold = this.activeTier;
+        final int[] cost = this.costs;
+        final int[] frameSlots = this.frameSlots;
+        final int[] callees = image.callees;
+        final boolean tracing = this.activeTrace != 0;
+
+        // 返回 pc 为 -1 的帧返回时结束
+        int sp = base + module.argSlots(id);
+        if (sp + FRAME_HEADER + frameSlots[id] > stack.length) {
+            stack = ensureStack(sp + FRAME_HEADER + frameSlots[id]);
+        }
+        int argBase = base;
+        stack[sp] = 0;
+        stack[sp + 1] = 0;
+        stack[sp + 2] = -1;
+        int fp = sp + FRAME_HEADER;
+        sp = fp + locSlots[id];
+        Arrays.fill(stack, fp, sp, 0L);
+        int pc = start;
+        position = (long) fp << 32 | pc;
+        long fuel = this.fuel - cost[pc];
+        if (fuel < 0) {
+            throw outOfFuel(this.fuel, pc);
+        }
+
+        long a, b;
+        while (true) {
+            final int op = code[pc];
+            final long x = operands[pc];
+            pc++;
+            switch (op) {
+                case Opcode.NOP:
+                    break;
+                case Opcode.PUSH:
+                    stack[sp++] = x;
+                    break;
+                case Opcode.POP:
+                    sp--;
+                    break;
+                case Opcode.POPN:
+                    sp -= (int) x;
+                    break;
+                case Opcode.DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case Opcode.LOCA:
+                    stack[sp++] = Memory.slot(fp + (int) x);
+                    break;
+                case Opcode.ARGA:
+                    stack[sp++] = Memory.slot(argBase + (int) x);
+                    break;
+                case Opcode.GLOBA:
+                    stack[sp++] = Memory.global((int) x);
+                    break;
+                case Opcode.LOAD8:
+                    stack[sp - 1] = memory.load8(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD16:
+                    stack[sp - 1] = memory.load16(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD32:
+                    stack[sp - 1] = memory.load32(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD64:
+                    stack[sp - 1] = memory.load64(stack[sp - 1]);
+                    break;
+                case Opcode.STORE8:
+                    sp -= 2;
+                    memory.store8(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE16:
+                    sp -= 2;
+                    memory.store16(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE32:
+                    sp -= 2;
+                    memory.store32(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE64:
+                    sp -= 2;
+                    memory.store64(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.ALLOC:
+                    stack[sp - 1] = memory.alloc(stack[sp - 1]);
+                    break;
+                case Opcode.FREE:
+                    memory.free(stack[--sp]);
+                    break;
+                case Opcode.STACKALLOC:
+                    for (int n = (int) x; n > 0; n--) {
+                        stack[sp++] = 0L;
+                    }
+                    break;
+                case Opcode.ADDI:
+                    b = stack[--sp];
+                    stack[sp - 1] += b;
+                    break;
+                case Opcode.SUBI:
+                    b = stack[--sp];
+                    stack[sp - 1] -= b;
+                    break;
+                case Opcode.MULI:
+                    b = stack[--sp];
+                    stack[sp - 1] *= b;
+                    break;
+                case Opcode.DIVI:
+                    b = stack[--sp];
+                    if (b == 0) {
+                        throw new Error("division by zero");
+                    }
+                    stack[sp - 1] /= b;
+                    break;
+                case Opcode.DIVU:
+                    b = stack[--sp];
+                    if (b == 0) {
+                        throw new Error("division by zero");
+                    }
+                    stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], b);
+                    break;
+                case Opcode.ADDF:
+                    b = stack[--sp];
+                    stack[sp - 1] = bits(f(stack[sp - 1]) + f(b));
+                    break;
+                case Opcode.SUBF:
+                    b = stack[--sp];
+                    stack[sp - 1] = bits(f(stack[sp - 1]) - f(b));
+                    break;
+                case Opcode.MULF:
+                    b = stack[--sp];
+                    stack[sp - 1] = bits(f(stack[sp - 1]) * f(b));
+                    break;
+                case Opcode.DIVF:
+                    b = stack[--sp];
+                    stack[sp - 1] = bits(f(stack[sp - 1]) / f(b));
+                    break;
+                case Opcode.SHL:
+                    b = stack[--sp];
+                    stack[sp - 1] <<= b;
+                    break;
+                case Opcode.SHR:
+                    b = stack[--sp];
+                    stack[sp - 1] >>= b;
+                    break;
+                case Opcode.SHRL:
+                    b = stack[--sp];
+                    stack[sp - 1] >>>= b;
+                    break;
+                case Opcode.AND:
+                    b = stack[--sp];
+                    stack[sp - 1] &= b;
+                    break;
+                case Opcode.OR:
+                    b = stack[--sp];
+                    stack[sp - 1] |= b;
+                    break;
+                case Opcode.XOR:
+                    b = stack[--sp];
+                    stack[sp - 1] ^= b;
+                    break;
+                case Opcode.NOT:
+                    stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                    break;
+                case Opcode.CMPI:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compare(stack[sp - 1], b);
+                    break;
+                case Opcode.CMPU:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], b);
+                    break;
+                case Opcode.CMPF:
+                    b = stack[--sp];
+                    stack[sp - 1] = Double.compare(f(stack[sp - 1]), f(b));
+                    break;
+                case Opcode.NEGI:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case Opcode.NEGF:
+                    stack[sp - 1] = bits(-f(stack[sp - 1]));
+                    break;
+                case Opcode.ITOF:
+                    stack[sp - 1] = bits((double) stack[sp - 1]);
+                    break;
+                case Opcode.FTOI:
+                    stack[sp - 1] = (long) f(stack[sp - 1]);
+                    break;
+                case Opcode.SETLT:
+                    stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                    break;
+                case Opcode.SETGT:
+                    stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                    break;
+                case Opcode.BR:
+                    if (x < pc && tracing && trace((int) x, fp, argBase, sp)) {
+                        stack = this.stack;
+                        pc = resumePc;
+                        fp = resumeFp;
+                        argBase = resumeArgBase;
+                        sp = resumeSp;
+                        break;
+                    }
+                    pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                case Opcode.BRTRUE:
+                    if (stack[--sp] != 0) {
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    }
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                case Opcode.BRFALSE:
+                    if (stack[--sp] == 0) {
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    }
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                case Opcode.CALL: {
+                    int callee = (int) x;
+                    if (threshold != 0 && ++calls[callee] == threshold) {
+                        promote(callee);
+                    }
+                    int d = CodeImage.CALLEE_SIZE * callee;
+                    CompiledCode compiledCode = compiled[callee];
+                    if (compiledCode != null) {
+                        // 编译后的代码不计量，只在没有预算时使用
+                        int calleeBase = sp - callees[d + 1];
+                        this.sp = sp;
+                        compiledCode.invoke(callee, stack, calleeBase, this);
+                        stack = this.stack;
+                        sp = calleeBase + retSlots[callee];
+                        break;
+                    }
+                    if (sp + FRAME_HEADER + callees[d + 3] > stack.length) {
+                        stack = ensureStack(sp + FRAME_HEADER + callees[d + 3]);
+                    }
+                    stack[sp] = fp;
+                    stack[sp + 1] = argBase;
+                    stack[sp + 2] = pc;
+                    argBase = sp - callees[d + 1];
+                    fp = sp + FRAME_HEADER;
+                    sp = fp + callees[d + 2];
+                    Arrays.fill(stack, fp, sp, 0L);
+                    pc = callees[d];
+                    position = (long) fp << 32 | pc;
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                }
+                case Opcode.RET: {
+                    // OSR 进入的编译后代码可能让栈增长过
+                    stack = this.stack;
+                    int returnPc = (int) stack[fp - 1];
+                    sp = argBase + (int) x;
+                    argBase = (int) stack[fp - 2];
+                    fp = (int) stack[fp - 3];
+                    if (returnPc < 0) {
+                        this.fuel = fuel;
+                        return;
+                    }
+                    pc = returnPc;
+                    position = (long) fp << 32 | pc;
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                }
+                case Opcode.CALLNAME:
+                    sp = builtins.call((int) x, stack, sp);
+                    break;
+                case Opcode.LOCA_LOAD:
+                    stack[sp++] = stack[fp + (int) x];
+                    break;
+                case Opcode.ARGA_LOAD:
+                    stack[sp++] = stack[argBase + (int) x];
+                    break;
+                case Opcode.GLOBA_LOAD:
+                    stack[sp++] = memory.buffer.getLong(Memory.GLOBALS_BASE + 8 * (int) x);
+                    break;
+                case Opcode.CMPI_LT:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] < b ? 1 : 0;
+                    break;
+                case Opcode.CMPI_GT:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] > b ? 1 : 0;
+                    break;
+                case Opcode.CMPI_EQ:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] == b ? 1 : 0;
+                    break;
+                case Opcode.CMPI_LE:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] <= b ? 1 : 0;
+                    break;
+                case Opcode.CMPI_GE:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] >= b ? 1 : 0;
+                    break;
+                case Opcode.JGE:
+                    b = stack[--sp];
+                    if (stack[--sp] >= b) {
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    }
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                case Opcode.JLE:
+                    b = stack[--sp];
+                    if (stack[--sp] <= b) {
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    }
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                case Opcode.JNE:
+                    b = stack[--sp];
+                    if (stack[--sp] != b) {
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    }
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                case Opcode.JEQ:
+                    b = stack[--sp];
+                    if (stack[--sp] == b) {
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    }
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                case Opcode.JGT:
+                    b = stack[--sp];
+                    if (stack[--sp] > b) {
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    }
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                case Opcode.JLT:
+                    b = stack[--sp];
+                    if (stack[--sp] < b) {
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                    }
+                    if ((fuel -= cost[pc]) < 0) {
+                        throw outOfFuel(fuel + cost[pc], pc);
+                    }
+                    break;
+                default:
+                    throw new Error("Illegal instruction " + Opcode.name(op) + " at " + (pc - 1));
+            }
+        }
+    }
+
+    /**
+     * 执行 RegisterCode 翻译过的 id 号函数，栈帧布局与 execute 相同，返回值留在 stack[base]
+     *
+     * 寄存器形式的函数之间直接在这个循环里调用；调用没有翻译的函数时递归进入栈式解释器，调用编译后的
+     * 函数时和 execute 一样进入编译后的代码。保存的返回位置高 32 位是寄存器指令的位置，低 32 位是对应的
+     * 栈式指令位置，Sampler 回溯时仍然只看低 32 位。
+     */
+    private void executeRegisters(int id, int base) {
+        final int[] code = registers.code;
+        final long[] imm = registers.imm;
+        final int[] origin = registers.origin;
+        final int[] entry = registers.entry;
+        final int[] locSlots = module.locSlots;
+        long[] stack = this.stack;
+        final Memory memory = this.memory;
+        final CompiledCode[] compiled = this.activeCode;
+        final int[] calls = this.calls;
+        final int threshold = this.activeTier;
+        final int[] frameSlots = this.frameSlots;
+
+        int sp = base + module.argSlots(id);
+        if (sp + FRAME_HEADER + frameSlots[id] > stack.length) {
+            stack = ensureStack(sp + FRAME_HEADER + frameSlots[id]);
+        }
+        int argBase = base;
+        stack[sp] = 0;
+        stack[sp + 1] = 0;
+        stack[sp + 2] = -1;
+        int fp = sp + FRAME_HEADER;
+        Arrays.fill(stack, fp, fp + locSlots[id], 0L);
+        int pc = entry[id];
+        position = (long) fp << 32 | origin[pc >> 2];
+
+        long y;
+        while (true) {
+            final int op = code[pc];
+            final int a = code[pc + 1];
+            final int b = code[pc + 2];
+            final int c = code[pc + 3];
+            final int at = pc >> 2;
+            pc += 4;
+            switch (op) {
+                case RegisterCode.MOV:
+                    stack[fp + a] = stack[fp + b];
+                    break;
+                case RegisterCode.MOVI:
+                    stack[fp + a] = imm[at];
+                    break;
+                case RegisterCode.ADDR:
+                    stack[fp + a] = Memory.slot(fp + b);
+                    break;
+                case RegisterCode.GLOAD:
+                    stack[fp + a] = memory.buffer.getLong(Memory.GLOBALS_BASE + 8 * b);
+                    break;
+                case RegisterCode.GSTORE:
+                    memory.buffer.putLong(Memory.GLOBALS_BASE + 8 * a, stack[fp + b]);
+                    break;
+                case RegisterCode.GSTOREI:
+                    memory.buffer.putLong(Memory.GLOBALS_BASE + 8 * a, imm[at]);
+                    break;
+                case RegisterCode.LOAD8:
+                    stack[fp + a] = memory.load8(stack[fp + b]);
+                    break;
+                case RegisterCode.LOAD16:
+                    stack[fp + a] = memory.load16(stack[fp + b]);
+                    break;
+                case RegisterCode.LOAD32:
+                    stack[fp + a] = memory.load32(stack[fp + b]);
+                    break;
+                case RegisterCode.LOAD64:
+                    stack[fp + a] = memory.load64(stack[fp + b]);
+                    break;
+                case RegisterCode.STORE8:
+                    memory.store8(stack[fp + a], stack[fp + b]);
+                    break;
+                case RegisterCode.STORE16:
+                    memory.store16(stack[fp + a], stack[fp + b]);
+                    break;
+                case RegisterCode.STORE32:
+                    memory.store32(stack[fp + a], stack[fp + b]);
+                    break;
+                case RegisterCode.STORE64:
+                    memory.store64(stack[fp + a], stack[fp + b]);
+                    break;
+                case RegisterCode.ALLOC:
+                    stack[fp + a] = memory.alloc(stack[fp + b]);
+                    break;
+                case RegisterCode.FREE:
+                    memory.free(stack[fp + a]);
+                    break;
+                case RegisterCode.ADD:
+                    stack[fp + a] = stack[fp + b] + stack[fp + c];
+                    break;
+                case RegisterCode.SUB:
+                    stack[fp + a] = stack[fp + b] - stack[fp + c];
+                    break;
+                case RegisterCode.MUL:
+                    stack[fp + a] = stack[fp + b] * stack[fp + c];
+                    break;
+                case RegisterCode.DIV:
+                    y = stack[fp + c];
+                    if (y == 0) {
+                        throw new Error("division by zero");
+                    }
+                    stack[fp + a] = stack[fp + b] / y;
+                    break;
+                case RegisterCode.DIVU:
+                    y = stack[fp + c];
+                    if (y == 0) {
+                        throw new Error("division by zero");
+                    }
+                    stack[fp + a] = Long.divideUnsigned(stack[fp + b], y);
+                    break;
+                case RegisterCode.ADDF:
+                    stack[fp + a] = bits(f(stack[fp + b]) + f(stack[fp + c]));
+                    break;
+                case RegisterCode.SUBF:
+                    stack[fp + a] = bits(f(stack[fp + b]) - f(stack[fp + c]));
+                    break;
+                case RegisterCode.MULF:
+                    stack[fp + a] = bits(f(stack[fp + b]) * f(stack[fp + c]));
+                    break;
+                case RegisterCode.DIVF:
+                    stack[fp + a] = bits(f(stack[fp + b]) / f(stack[fp + c]));
+                    break;
+                case RegisterCode.SHL:
+                    stack[fp + a] = stack[fp + b] << stack[fp + c];
+                    break;
+                case RegisterCode.SHR:
+                    stack[fp + a] = stack[fp + b] >> stack[fp + c];
+                    break;
+                case RegisterCode.SHRL:
+                    stack[fp + a] = stack[fp + b] >>> stack[fp + c];
+                    break;
+                case RegisterCode.AND:
+                    stack[fp + a] = stack[fp + b] & stack[fp + c];
+                    break;
+                case RegisterCode.OR:
+                    stack[fp + a] = stack[fp + b] | stack[fp + c];
+                    break;
+                case RegisterCode.XOR:
+                    stack[fp + a] = stack[fp + b] ^ stack[fp + c];
+                    break;
+                case RegisterCode.CMP:
+                    stack[fp + a] = Long.compare(stack[fp + b], stack[fp + c]);
+                    break;
+                case RegisterCode.CMPU:
+                    stack[fp + a] = Long.compareUnsigned(stack[fp + b], stack[fp + c]);
+                    break;
+                case RegisterCode.CMPF:
+                    stack[fp + a] = Double.compare(f(stack[fp + b]), f(stack[fp + c]));
+                    break;
+                case RegisterCode.LT:
+                    stack[fp + a] = stack[fp + b] < stack[fp + c] ? 1 : 0;
+                    break;
+                case RegisterCode.GT:
+                    stack[fp + a] = stack[fp + b] > stack[fp + c] ? 1 : 0;
+                    break;
+                case RegisterCode.EQ:
+                    stack[fp + a] = stack[fp + b] == stack[fp + c] ? 1 : 0;
+                    break;
+                case RegisterCode.LE:
+                    stack[fp + a] = stack[fp + b] <= stack[fp + c] ? 1 : 0;
+                    break;
+                case RegisterCode.GE:
+                    stack[fp + a] = stack[fp + b] >= stack[fp + c] ? 1 : 0;
+                    break;
+                case RegisterCode.ADDK:
+                    stack[fp + a] = stack[fp + b] + imm[at];
+                    break;
+                case RegisterCode.SUBK:
+                    stack[fp + a] = stack[fp + b] - imm[at];
+                    break;
+                case RegisterCode.MULK:
+                    stack[fp + a] = stack[fp + b] * imm[at];
+                    break;
+                case RegisterCode.LTK:
+                    stack[fp + a] = stack[fp + b] < imm[at] ? 1 : 0;
+                    break;
+                case RegisterCode.GTK:
+                    stack[fp + a] = stack[fp + b] > imm[at] ? 1 : 0;
+                    break;
+                case RegisterCode.EQK:
+                    stack[fp + a] = stack[fp + b] == imm[at] ? 1 : 0;
+                    break;
+                case RegisterCode.LEK:
+                    stack[fp + a] = stack[fp + b] <= imm[at] ? 1 : 0;
+                    break;
+                case RegisterCode.GEK:
+                    stack[fp + a] = stack[fp + b] >= imm[at] ? 1 : 0;
+                    break;
+                case RegisterCode.NOT:
+                    stack[fp + a] = stack[fp + b] == 0 ? 1 : 0;
+                    break;
+                case RegisterCode.NEG:
+                    stack[fp + a] = -stack[fp + b];
+                    break;
+                case RegisterCode.NEGF:
+                    stack[fp + a] = bits(-f(stack[fp + b]));
+                    break;
+                case RegisterCode.ITOF:
+                    stack[fp + a] = bits((double) stack[fp + b]);
+                    break;
+                case RegisterCode.FTOI:
+                    stack[fp + a] = (long) f(stack[fp + b]);
+                    break;
+                case RegisterCode.SETLT:
+                    stack[fp + a] = stack[fp + b] < 0 ? 1 : 0;
+                    break;
+                case RegisterCode.SETGT:
+                    stack[fp + a] = stack[fp + b] > 0 ? 1 : 0;
+                    break;
+                case RegisterCode.BR:
+                    pc = c;
+                    break;
+                case RegisterCode.BRTRUE:
+                    if (stack[fp + a] != 0) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.BRFALSE:
+                    if (stack[fp + a] == 0) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JGE:
+                    if (stack[fp + a] >= stack[fp + b]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JLE:
+                    if (stack[fp + a] <= stack[fp + b]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JNE:
+                    if (stack[fp + a] != stack[fp + b]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JEQ:
+                    if (stack[fp + a] == stack[fp + b]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JGT:
+                    if (stack[fp + a] > stack[fp + b]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JLT:
+                    if (stack[fp + a] < stack[fp + b]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JGEK:
+                    if (stack[fp + a] >= imm[at]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JLEK:
+                    if (stack[fp + a] <= imm[at]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JNEK:
+                    if (stack[fp + a] != imm[at]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JEQK:
+                    if (stack[fp + a] == imm[at]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JGTK:
+                    if (stack[fp + a] > imm[at]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.JLTK:
+                    if (stack[fp + a] < imm[at]) {
+                        pc = c;
+                    }
+                    break;
+                case RegisterCode.CALL: {
+                    int callee = a;
+                    if (threshold != 0 && ++calls[callee] == threshold) {
+                        promote(callee);
+                    }
+                    sp = fp + b;
+                    int calleeBase = sp - module.argSlots(callee);
+                    CompiledCode compiledCode = compiled[callee];
+                    if (compiledCode != null && compiledCode != REGISTERS) {
+                        this.sp = sp;
+                        compiledCode.invoke(callee, stack, calleeBase, this);
+                        stack = this.stack;
+                        break;
+                    }
+                    if (entry[callee] < 0) {
+                        interpret(callee, calleeBase, module.entry[callee]);
+                        stack = this.stack;
+                        position = (long) fp << 32 | origin[at];
+                        break;
+                    }
+                    if (sp + FRAME_HEADER + frameSlots[callee] > stack.length) {
+                        stack = ensureStack(sp + FRAME_HEADER + frameSlots[callee]);
+                    }
+                    stack[sp] = fp;
+                    stack[sp + 1] = argBase;
+                    stack[sp + 2] = (long) pc << 32 | origin[pc >> 2];
+                    argBase = calleeBase;
+                    fp = sp + FRAME_HEADER;
+                    Arrays.fill(stack, fp, fp + locSlots[callee], 0L);
+                    pc = entry[callee];
+                    position = (long) fp << 32 | origin[pc >> 2];
+                    break;
+                }
+                case RegisterCode.CALLNAME:
+                    builtins.call(a, stack, fp + b);
+                    break;
+                case RegisterCode.RET: {
+                    long returnPc = stack[fp - 1];
+                    argBase = (int) stack[fp - 2];
+                    fp = (int) stack[fp - 3];
+                    if (returnPc < 0) {
+                        return;
+                    }
+                    pc = (int) (returnPc >>> 32);
+                    position = (long) fp << 32 | (int) returnPc;
+                    break;
+                }
+                default:
+                    throw new Error("Illegal register instruction " + op + " at " + (pc - 4));
+            }
+        }
+    }
+
+    /**
+     * execute 的栈顶缓存版本，语义和栈帧布局完全相同
+     *
+     * 分成两个分派循环：empty 中操作数栈全部在 stack 里；cached 中栈顶的值放在局部变量 tos 里，sp 之下是
+     * 其余的值。取值、算术、比较和 load64 在 cached 中直接对 tos 操作，store64 和条件跳转消费掉 tos 后回到
+     * empty，压栈后立即被消费的值不经过数组。其余指令只在 empty 中处理，cached 遇到它们时先把 tos
+     * 写回再转过去，所以调用、返回和 callname 时栈总是完整的。
+     */
+    private void executeCached(int id, int base, int start) {
+        final int[] code = module.code;
+        final long[] operands = module.operands;
+        final int[] locSlots = module.locSlots;
+        final int[] retSlots = module.retSlots;
+        long[] stack = this.stack;
+        final Memory memory = this.memory;
+        final CompiledCode[] compiled = this.activeCode;
+        final int[] calls = this.calls;
+        final int threshold = this.activeTier;
+        final int[] cost = this.costs;
+        final int[] frameSlots = this.frameSlots;
+        final int[] callees = image.callees;
+
+        int sp = base + module.argSlots(id);
+        if (sp + FRAME_HEADER + frameSlots[id] > stack.length) {
+            stack = ensureStack(sp + FRAME_HEADER + frameSlots[id]);
+        }
+        int argBase = base;
+        stack[sp] = 0;
+        stack[sp + 1] = 0;
+        stack[sp + 2] = -1;
+        int fp = sp + FRAME_HEADER;
+        sp = fp + locSlots[id];
+        Arrays.fill(stack, fp, sp, 0L);
+        int pc = start;
+        position = (long) fp << 32 | pc;
+        long fuel = this.fuel - cost[pc];
+        if (fuel < 0) {
+            throw outOfFuel(this.fuel, pc);
+        }
 
+        long a, b;
+        long tos = 0;
+        while (true) {
+            empty:
+            while (true) {
+                final int op = code[pc];
+                final long x = operands[pc];
+                pc++;
+                switch (op) {
+                    case Opcode.NOP:
+                        break;
+                    case Opcode.PUSH:
+                        tos = x;
+                        break empty;
+                    case Opcode.POP:
+                        sp--;
+                        break;
+                    case Opcode.POPN:
+                        sp -= (int) x;
+                        break;
+                    case Opcode.DUP:
+                        stack[sp] = stack[sp - 1];
+                        sp++;
+                        break;
+                    case Opcode.LOCA:
+                        tos = Memory.slot(fp + (int) x);
+                        break empty;
+                    case Opcode.ARGA:
+                        tos = Memory.slot(argBase + (int) x);
+                        break empty;
+                    case Opcode.GLOBA:
+                        tos = Memory.global((int) x);
+                        break empty;
+                    case Opcode.LOAD8:
+                        stack[sp - 1] = memory.load8(stack[sp - 1]);
+                        break;
+                    case Opcode.LOAD16:
+                        stack[sp - 1] = memory.load16(stack[sp - 1]);
+                        break;
+                    case Opcode.LOAD32:
+                        stack[sp - 1] = memory.load32(stack[sp - 1]);
+                        break;
+                    case Opcode.LOAD64:
+                        tos = memory.load64(stack[--sp]);
+                        break empty;
+                    case Opcode.STORE8:
+                        sp -= 2;
+                        memory.store8(stack[sp], stack[sp + 1]);
+                        break;
+                    case Opcode.STORE16:
+                        sp -= 2;
+                        memory.store16(stack[sp], stack[sp + 1]);
+                        break;
+                    case Opcode.STORE32:
+                        sp -= 2;
+                        memory.store32(stack[sp], stack[sp + 1]);
+                        break;
+                    case Opcode.STORE64:
+                        sp -= 2;
+                        memory.store64(stack[sp], stack[sp + 1]);
+                        break;
+                    case Opcode.ALLOC:
+                        stack[sp - 1] = memory.alloc(stack[sp - 1]);
+                        break;
+                    case Opcode.FREE:
+                        memory.free(stack[--sp]);
+                        break;
+                    case Opcode.STACKALLOC:
+                        for (int n = (int) x; n > 0; n--) {
+                            stack[sp++] = 0L;
+                        }
+                        break;
+                    case Opcode.ADDI:
+                        b = stack[--sp];
+                        tos = stack[--sp] + b;
+                        break empty;
+                    case Opcode.SUBI:
+                        b = stack[--sp];
+                        tos = stack[--sp] - b;
+                        break empty;
+                    case Opcode.MULI:
+                        b = stack[--sp];
+                        tos = stack[--sp] * b;
+                        break empty;
+                    case Opcode.DIVI:
+                        b = stack[--sp];
+                        if (b == 0) {
+                            throw new Error("division by zero");
+                        }
+                        tos = stack[--sp] / b;
+                        break empty;
+                    case Opcode.DIVU:
+                        b = stack[--sp];
+                        if (b == 0) {
+                            throw new Error("division by zero");
+                        }
+                        stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], b);
+                        break;
+                    case Opcode.ADDF:
+                        b = stack[--sp];
+                        tos = bits(f(stack[--sp]) + f(b));
+                        break empty;
+                    case Opcode.SUBF:
+                        b = stack[--sp];
+                        tos = bits(f(stack[--sp]) - f(b));
+                        break empty;
+                    case Opcode.MULF:
+                        b = stack[--sp];
+                        tos = bits(f(stack[--sp]) * f(b));
+                        break empty;
+                    case Opcode.DIVF:
+                        b = stack[--sp];
+                        tos = bits(f(stack[--sp]) / f(b));
+                        break empty;
+                    case Opcode.SHL:
+                        b = stack[--sp];
+                        stack[sp - 1] <<= b;
+                        break;
+                    case Opcode.SHR:
+                        b = stack[--sp];
+                        stack[sp - 1] >>= b;
+                        break;
+                    case Opcode.SHRL:
+                        b = stack[--sp];
+                        stack[sp - 1] >>>= b;
+                        break;
+                    case Opcode.AND:
+                        b = stack[--sp];
+                        stack[sp - 1] &= b;
+                        break;
+                    case Opcode.OR:
+                        b = stack[--sp];
+                        stack[sp - 1] |= b;
+                        break;
+                    case Opcode.XOR:
+                        b = stack[--sp];
+                        stack[sp - 1] ^= b;
+                        break;
+                    case Opcode.NOT:
+                        tos = stack[--sp] == 0 ? 1 : 0;
+                        break empty;
+                    case Opcode.CMPI:
+                        b = stack[--sp];
+                        tos = Long.compare(stack[--sp], b);
+                        break empty;
+                    case Opcode.CMPU:
+                        b = stack[--sp];
+                        stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], b);
+                        break;
+                    case Opcode.CMPF:
+                        b = stack[--sp];
+                        tos = Double.compare(f(stack[--sp]), f(b));
+                        break empty;
+                    case Opcode.NEGI:
+                        tos = -stack[--sp];
+                        break empty;
+                    case Opcode.NEGF:
+                        tos = bits(-f(stack[--sp]));
+                        break empty;
+                    case Opcode.ITOF:
+                        tos = bits((double) stack[--sp]);
+                        break empty;
+                    case Opcode.FTOI:
+                        tos = (long) f(stack[--sp]);
+                        break empty;
+                    case Opcode.SETLT:
+                        tos = stack[--sp] < 0 ? 1 : 0;
+                        break empty;
+                    case Opcode.SETGT:
+                        tos = stack[--sp] > 0 ? 1 : 0;
+                        break empty;
+                    case Opcode.BR:
+                        pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    case Opcode.BRTRUE:
+                        if (stack[--sp] != 0) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    case Opcode.BRFALSE:
+                        if (stack[--sp] == 0) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    case Opcode.CALL: {
+                        int callee = (int) x;
+                        if (threshold != 0 && ++calls[callee] == threshold) {
+                            promote(callee);
+                        }
+                        int d = CodeImage.CALLEE_SIZE * callee;
+                        CompiledCode compiledCode = compiled[callee];
+                        if (compiledCode != null) {
+                            // 编译后的代码不计量，只在没有预算时使用
+                            int calleeBase = sp - callees[d + 1];
+                            this.sp = sp;
+                            compiledCode.invoke(callee, stack, calleeBase, this);
+                            stack = this.stack;
+                            sp = calleeBase + retSlots[callee];
+                            break;
+                        }
+                        if (sp + FRAME_HEADER + callees[d + 3] > stack.length) {
+                            stack = ensureStack(sp + FRAME_HEADER + callees[d + 3]);
+                        }
+                        stack[sp] = fp;
+                        stack[sp + 1] = argBase;
+                        stack[sp + 2] = pc;
+                        argBase = sp - callees[d + 1];
+                        fp = sp + FRAME_HEADER;
+                        sp = fp + callees[d + 2];
+                        Arrays.fill(stack, fp, sp, 0L);
+                        pc = callees[d];
+                        position = (long) fp << 32 | pc;
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    }
+                    case Opcode.RET: {
+                        // OSR 进入的编译后代码可能让栈增长过
+                        stack = this.stack;
+                        int returnPc = (int) stack[fp - 1];
+                        sp = argBase + (int) x;
+                        argBase = (int) stack[fp - 2];
+                        fp = (int) stack[fp - 3];
+                        if (returnPc < 0) {
+                            this.fuel = fuel;
+                            return;
+                        }
+                        pc = returnPc;
+                        position = (long) fp << 32 | pc;
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    }
+                    case Opcode.CALLNAME:
+                        sp = builtins.call((int) x, stack, sp);
+                        break;
+                    case Opcode.LOCA_LOAD:
+                        tos = stack[fp + (int) x];
+                        break empty;
+                    case Opcode.ARGA_LOAD:
+                        tos = stack[argBase + (int) x];
+                        break empty;
+                    case Opcode.GLOBA_LOAD:
+                        tos = memory.buffer.getLong(Memory.GLOBALS_BASE + 8 * (int) x);
+                        break empty;
+                    case Opcode.CMPI_LT:
+                        b = stack[--sp];
+                        tos = stack[--sp] < b ? 1 : 0;
+                        break empty;
+                    case Opcode.CMPI_GT:
+                        b = stack[--sp];
+                        tos = stack[--sp] > b ? 1 : 0;
+                        break empty;
+                    case Opcode.CMPI_EQ:
+                        b = stack[--sp];
+                        tos = stack[--sp] == b ? 1 : 0;
+                        break empty;
+                    case Opcode.CMPI_LE:
+                        b = stack[--sp];
+                        tos = stack[--sp] <= b ? 1 : 0;
+                        break empty;
+                    case Opcode.CMPI_GE:
+                        b = stack[--sp];
+                        tos = stack[--sp] >= b ? 1 : 0;
+                        break empty;
+                    case Opcode.JGE:
+                        b = stack[--sp];
+                        if (stack[--sp] >= b) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    case Opcode.JLE:
+                        b = stack[--sp];
+                        if (stack[--sp] <= b) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    case Opcode.JNE:
+                        b = stack[--sp];
+                        if (stack[--sp] != b) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    case Opcode.JEQ:
+                        b = stack[--sp];
+                        if (stack[--sp] == b) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    case Opcode.JGT:
+                        b = stack[--sp];
+                        if (stack[--sp] > b) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    case Opcode.JLT:
+                        b = stack[--sp];
+                        if (stack[--sp] < b) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break;
+                    default:
+                        throw new Error("Illegal instruction " + Opcode.name(op) + " at " + (pc - 1));
+                }
+            }
+            cached:
+            while (true) {
+                final int op = code[pc];
+                final long x = operands[pc];
+                pc++;
+                switch (op) {
+                    case Opcode.PUSH:
+                        stack[sp++] = tos;
+                        tos = x;
+                        break;
+                    case Opcode.POP:
+                        break cached;
+                    case Opcode.LOCA:
+                        stack[sp++] = tos;
+                        tos = Memory.slot(fp + (int) x);
+                        break;
+                    case Opcode.ARGA:
+                        stack[sp++] = tos;
+                        tos = Memory.slot(argBase + (int) x);
+                        break;
+                    case Opcode.GLOBA:
+                        stack[sp++] = tos;
+                        tos = Memory.global((int) x);
+                        break;
+                    case Opcode.LOAD64:
+                        tos = memory.load64(tos);
+                        break;
+                    case Opcode.STORE64:
+                        memory.store64(stack[--sp], tos);
+                        break cached;
+                    case Opcode.ADDI:
+                        tos = stack[--sp] + tos;
+                        break;
+                    case Opcode.SUBI:
+                        tos = stack[--sp] - tos;
+                        break;
+                    case Opcode.MULI:
+                        tos = stack[--sp] * tos;
+                        break;
+                    case Opcode.DIVI:
+                        if (tos == 0) {
+                            throw new Error("division by zero");
+                        }
+                        tos = stack[--sp] / tos;
+                        break;
+                    case Opcode.ADDF:
+                        tos = bits(f(stack[--sp]) + f(tos));
+                        break;
+                    case Opcode.SUBF:
+                        tos = bits(f(stack[--sp]) - f(tos));
+                        break;
+                    case Opcode.MULF:
+                        tos = bits(f(stack[--sp]) * f(tos));
+                        break;
+                    case Opcode.DIVF:
+                        tos = bits(f(stack[--sp]) / f(tos));
+                        break;
+                    case Opcode.NOT:
+                        tos = tos == 0 ? 1 : 0;
+                        break;
+                    case Opcode.CMPI:
+                        tos = Long.compare(stack[--sp], tos);
+                        break;
+                    case Opcode.CMPF:
+                        tos = Double.compare(f(stack[--sp]), f(tos));
+                        break;
+                    case Opcode.NEGI:
+                        tos = -tos;
+                        break;
+                    case Opcode.NEGF:
+                        tos = bits(-f(tos));
+                        break;
+                    case Opcode.ITOF:
+                        tos = bits((double) tos);
+                        break;
+                    case Opcode.FTOI:
+                        tos = (long) f(tos);
+                        break;
+                    case Opcode.SETLT:
+                        tos = tos < 0 ? 1 : 0;
+                        break;
+                    case Opcode.SETGT:
+                        tos = tos > 0 ? 1 : 0;
+                        break;
+                    case Opcode.BRTRUE:
+                        if (tos != 0) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break cached;
+                    case Opcode.BRFALSE:
+                        if (tos == 0) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break cached;
+                    case Opcode.LOCA_LOAD:
+                        stack[sp++] = tos;
+                        tos = stack[fp + (int) x];
+                        break;
+                    case Opcode.ARGA_LOAD:
+                        stack[sp++] = tos;
+                        tos = stack[argBase + (int) x];
+                        break;
+                    case Opcode.GLOBA_LOAD:
+                        stack[sp++] = tos;
+                        tos = memory.buffer.getLong(Memory.GLOBALS_BASE + 8 * (int) x);
+                        break;
+                    case Opcode.CMPI_LT:
+                        tos = stack[--sp] < tos ? 1 : 0;
+                        break;
+                    case Opcode.CMPI_GT:
+                        tos = stack[--sp] > tos ? 1 : 0;
+                        break;
+                    case Opcode.CMPI_EQ:
+                        tos = stack[--sp] == tos ? 1 : 0;
+                        break;
+                    case Opcode.CMPI_LE:
+                        tos = stack[--sp] <= tos ? 1 : 0;
+                        break;
+                    case Opcode.CMPI_GE:
+                        tos = stack[--sp] >= tos ? 1 : 0;
+                        break;
+                    case Opcode.JGE:
+                        if (stack[--sp] >= tos) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break cached;
+                    case Opcode.JLE:
+                        if (stack[--sp] <= tos) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break cached;
+                    case Opcode.JNE:
+                        if (stack[--sp] != tos) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break cached;
+                    case Opcode.JEQ:
+                        if (stack[--sp] == tos) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break cached;
+                    case Opcode.JGT:
+                        if (stack[--sp] > tos) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break cached;
+                    case Opcode.JLT:
+                        if (stack[--sp] < tos) {
+                            pc = x < pc && threshold != 0 ? backEdge((int) x, argBase, sp) : (int) x;
+                        }
+                        if ((fuel -= cost[pc]) < 0) {
+                            throw outOfFuel(fuel + cost[pc], pc);
+                        }
+                        break cached;
+                    default:
+                        // 只有不缓存版本的指令
+                        stack[sp++] = tos;
+                        pc--;
+                        break cached;
+                }
+            }
         }
     }
 }
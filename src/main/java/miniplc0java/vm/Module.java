@@ -0,0 +1,124 @@
+package miniplc0java.vm;
+
+import java.util.Arrays;
+
+/**
+ * 解码后的 o0 模块，所有函数体拼接成一条指令流，由 Loader 生成
+ */
+public class Module {
+    /** 操作码流 */
+    final int[] code;
+    /**
+     * 操作数流，与 code 一一对应；跳转的操作数已换算成绝对位置，ret 的操作数是返回值槽数，callname 的操作数是
+     * Builtins 中的编号
+     */
+    final long[] operands;
+    /** 每个函数第一条指令在指令流中的位置 */
+    final int[] entry;
+    /** 每个函数在全局变量表中的名字下标 */
+    final int[] names;
+    final int[] retSlots;
+    final int[] paramSlots;
+    final int[] locSlots;
+    /** 全局变量表，函数名和字符串字面量也在其中 */
+    final String[] globals;
+
+    Module(int[] code, long[] operands, int[] entry, int[] names, int[] retSlots, int[] paramSlots, int[] locSlots,
+           String[] globals) {
+        this.code = code;
+        this.operands = operands;
+        this.entry = entry;
+        this.names = names;
+        this.retSlots = retSlots;
+        this.paramSlots = paramSlots;
+        this.locSlots = locSlots;
+        this.globals = globals;
+    }
+
+    public int functionCount() {
+        return entry.length;
+    }
+
+    public String functionName(int id) {
+        return globals[names[id]];
+    }
+
+    /**
+     * 返回值槽加参数槽，即调用前调用者压在栈顶的槽数
+     */
+    int argSlots(int id) {
+        return retSlots[id] + paramSlots[id];
+    }
+
+    /**
+     * 第 id 个函数之后第一条指令的位置
+     */
+    int end(int id) {
+        return id + 1 < entry.length ? entry[id + 1] : code.length;
+    }
+
+    /**
+     * 每个位置到所在基本块结束的指令数，包括结束块的跳转、call 或 ret。块内可以含有跳转目标，
+     * 从目标进入的块从目标开始计数，所以每条执行的指令恰好计一次。
+     */
+    int[] blockCosts() {
+        int[] cost = new int[code.length];
+        for (int pc = code.length - 1; pc >= 0; pc--) {
+            int op = code[pc];
+            boolean ends = Opcode.isBranch(op) || op == Opcode.CALL || op == Opcode.RET || pc + 1 == code.length;
+            cost[pc] = ends ? 1 : 1 + cost[pc + 1];
+        }
+        return cost;
+    }
+
+    /**
+     * _start 中全局变量初始化之后的位置，从这里开始是为 main 的返回值分配槽、调用 main 的几条指令；
+     * 没有 main 时是 _start 末尾的 ret
+     */
+    int initEnd() {
+        for (int pc = end(0) - 1; pc >= entry[0]; pc--) {
+            if (code[pc] == Opcode.CALL && functionName((int) operands[pc]).equals("main")) {
+                return pc > entry[0] && code[pc - 1] == Opcode.STACKALLOC ? pc - 1 : pc;
+            }
+        }
+        return end(0) - 1;
+    }
+
+    /**
+     * 只做全局变量初始化的模块：把 initEnd 处换成 ret，_start 执行完初始化就结束
+     */
+    Module initOnly() {
+        int[] code = this.code.clone();
+        long[] operands = this.operands.clone();
+        int pc = initEnd();
+        code[pc] = Opcode.RET;
+        operands[pc] = 0;
+        return new Module(code, operands, entry, names, retSlots, paramSlots, locSlots, globals);
+    }
+
+    /**
+     * 指令和全局变量表的散列，用来确认快照属于这个模块
+     */
+    long fingerprint() {
+        long h = Arrays.hashCode(code);
+        h = h * 1000003 + Arrays.hashCode(operands);
+        h = h * 1000003 + Arrays.hashCode(locSlots);
+        return h * 1000003 + Arrays.hashCode(globals);
+    }
+
+    /**
+     * 找到 pc 所在的函数
+     */
+    int functionAt(int pc) {
+        int lo = 0, hi = entry.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (entry[mid] <= pc) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+}
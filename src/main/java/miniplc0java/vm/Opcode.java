@@ -0,0 +1,118 @@
+package miniplc0java.vm;
+
+/**
+ * 解码后指令流使用的操作码，数值与 o0 文件中的编码（Operation.getI()）一致
+ */
+public final class Opcode {
+    public static final int NOP = 0x00;
+    public static final int PUSH = 0x01;
+    public static final int POP = 0x02;
+    public static final int POPN = 0x03;
+    public static final int DUP = 0x04;
+    public static final int LOCA = 0x0a;
+    public static final int ARGA = 0x0b;
+    public static final int GLOBA = 0x0c;
+    public static final int LOAD8 = 0x10;
+    public static final int LOAD16 = 0x11;
+    public static final int LOAD32 = 0x12;
+    public static final int LOAD64 = 0x13;
+    public static final int STORE8 = 0x14;
+    public static final int STORE16 = 0x15;
+    public static final int STORE32 = 0x16;
+    public static final int STORE64 = 0x17;
+    public static final int ALLOC = 0x18;
+    public static final int FREE = 0x19;
+    public static final int STACKALLOC = 0x1a;
+    public static final int ADDI = 0x20;
+    public static final int SUBI = 0x21;
+    public static final int MULI = 0x22;
+    public static final int DIVI = 0x23;
+    public static final int ADDF = 0x24;
+    public static final int SUBF = 0x25;
+    public static final int MULF = 0x26;
+    public static final int DIVF = 0x27;
+    public static final int DIVU = 0x28;
+    public static final int SHL = 0x29;
+    public static final int SHR = 0x2a;
+    public static final int AND = 0x2b;
+    public static final int OR = 0x2c;
+    public static final int XOR = 0x2d;
+    public static final int NOT = 0x2e;
+    public static final int CMPI = 0x30;
+    public static final int CMPU = 0x31;
+    public static final int CMPF = 0x32;
+    public static final int NEGI = 0x34;
+    public static final int NEGF = 0x35;
+    public static final int ITOF = 0x36;
+    public static final int FTOI = 0x37;
+    public static final int SHRL = 0x38;
+    public static final int SETLT = 0x39;
+    public static final int SETGT = 0x3a;
+    public static final int BR = 0x41;
+    public static final int BRFALSE = 0x42;
+    public static final int BRTRUE = 0x43;
+    public static final int CALL = 0x48;
+    public static final int RET = 0x49;
+    public static final int CALLNAME = 0x4a;
+
+    // 以下是 Fuser 在加载时合成的超指令，o0 文件里不会出现
+
+    /** loca n; load64 */
+    public static final int LOCA_LOAD = 0x80;
+    /** arga n; load64 */
+    public static final int ARGA_LOAD = 0x81;
+    /** globa n; load64 */
+    public static final int GLOBA_LOAD = 0x82;
+    /** cmpi; setlt */
+    public static final int CMPI_LT = 0x83;
+    /** cmpi; setgt */
+    public static final int CMPI_GT = 0x84;
+    /** cmpi; not */
+    public static final int CMPI_EQ = 0x85;
+    /** cmpi; setgt; not */
+    public static final int CMPI_LE = 0x86;
+    /** cmpi; setlt; not */
+    public static final int CMPI_GE = 0x87;
+    /** cmpi; setlt; brtrue 1; br x，即 a >= b 时跳到 x */
+    public static final int JGE = 0x88;
+    /** cmpi; setgt; brtrue 1; br x */
+    public static final int JLE = 0x89;
+    /** cmpi; not; brtrue 1; br x */
+    public static final int JNE = 0x8a;
+    /** cmpi; brtrue 1; br x */
+    public static final int JEQ = 0x8b;
+    /** cmpi; setgt; not; brtrue 1; br x */
+    public static final int JGT = 0x8c;
+    /** cmpi; setlt; not; brtrue 1; br x */
+    public static final int JLT = 0x8d;
+
+    /** 操作码个数上限，用作按操作码索引的表的大小 */
+    public static final int LIMIT = 0x100;
+
+    private Opcode() {
+    }
+
+    private static final String[] FUSED_NAMES = {
+            "loca_load", "arga_load", "globa_load", "cmpi_lt", "cmpi_gt", "cmpi_eq", "cmpi_le", "cmpi_ge",
+            "jge", "jle", "jne", "jeq", "jgt", "jlt",
+    };
+
+    /**
+     * 操作数是绝对跳转目标的指令
+     */
+    public static boolean isBranch(int op) {
+        return op == BR || op == BRTRUE || op == BRFALSE || (op >= JGE && op <= JLT);
+    }
+
+    public static String name(int op) {
+        if (op >= LOCA_LOAD && op < LOCA_LOAD + FUSED_NAMES.length) {
+            return FUSED_NAMES[op - LOCA_LOAD];
+        }
+        for (var operation : miniplc0java.instruction.Operation.values()) {
+            if (operation.getI() == op) {
+                return operation.name();
+            }
+        }
+        return String.format("op_%02x", op);
+    }
+}
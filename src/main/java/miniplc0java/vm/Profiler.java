@@ -0,0 +1,465 @@
+package miniplc0java.vm;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import miniplc0java.instruction.FnInstruction;
+
+/**
+ * 带统计的解释器，用来看时间花在了哪里
+ *
+ * 和 MiniVm 分开实现，有自己的主循环，所以不开启时 MiniVm 没有任何额外开销。执行的是没有融合过的
+ * 模块，统计的都是 o0 原本的指令：每种指令和每对相邻指令的执行次数，每个函数的调用次数、
+ * 自身执行的指令数和包括被调用函数在内的指令数。栈帧布局与 MiniVm 相同。
+ */
+public class Profiler {
+    /** 报告里列出的指令对个数 */
+    private static final int TOP_PAIRS = 20;
+
+    private final Module module;
+    private final Builtins builtins;
+    /** 放不下时由 Memory.ensureStack 换成更大的数组 */
+    private long[] stack = new long[Memory.INITIAL_STACK_SLOTS];
+    private Memory memory;
+    /** 每个函数的栈帧在 fp 之上最多占用的槽数，同 CodeImage.frameSlots */
+    private final int[] frameSlots;
+
+    private long instructions;
+    private final long[] opcodes = new long[Opcode.LIMIT];
+    /** 相邻两条指令执行的次数，下标为 前一条 * LIMIT + 后一条 */
+    private final long[] pairs = new long[Opcode.LIMIT * Opcode.LIMIT];
+    private final long[] calls;
+    private final long[] self;
+    private final long[] inclusive;
+
+    /**
+     * @param module 没有融合过的模块，见 Loader.decode
+     */
+    public Profiler(Module module, InputStream in, PrintStream out) {
+        this.module = module;
+        this.builtins = new Builtins(module.globals, in, out);
+        this.frameSlots = Verifier.verify(module);
+        for (int id = 0; id < frameSlots.length; id++) {
+            frameSlots[id] += module.locSlots[id];
+        }
+        int n = module.functionCount();
+        this.calls = new long[n];
+        this.self = new long[n];
+        this.inclusive = new long[n];
+    }
+
+    public Profiler(ArrayList<String> globals, ArrayList<FnInstruction> functions, InputStream in, PrintStream out) {
+        this(Loader.decode(globals, functions), in, out);
+    }
+
+    public void Run() {
+        memory = new Memory(module.globals.length, stack);
+        Throwable failure = null;
+        try {
+            try {
+                execute();
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new Error("stack overflow or invalid address", e);
+            }
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            builtins.finish(failure);
+        }
+    }
+
+    private void execute() {
+        final int[] code = module.code;
+        final long[] operands = module.operands;
+        final int[] entry = module.entry;
+        final int[] locSlots = module.locSlots;
+        final int[] frameSlots = this.frameSlots;
+        final Memory memory = this.memory;
+        long[] stack = memory.ensureStack(MiniVm.FRAME_HEADER + frameSlots[0]);
+        final long[] opcodes = this.opcodes;
+        final long[] pairs = this.pairs;
+        final long[] self = this.self;
+
+        // 当前调用链上的函数和进入时的指令计数，用于算包含被调用函数的指令数
+        int[] fnStack = new int[64];
+        long[] startStack = new long[64];
+        int depth = 0;
+        // 递归时只在最外层返回时计入
+        int[] active = new int[module.functionCount()];
+
+        long count = 0;
+        // 第一条指令前面没有指令，记到 nop 之后，结束时再扣掉
+        int prev = Opcode.NOP;
+        int fn = 0;
+        calls[0]++;
+        active[0]++;
+
+        int sp = 0;
+        int argBase = 0;
+        stack[sp] = 0;
+        stack[sp + 1] = 0;
+        stack[sp + 2] = -1;
+        int fp = sp + MiniVm.FRAME_HEADER;
+        sp = fp + locSlots[0];
+        Arrays.fill(stack, fp, sp, 0L);
+        int pc = entry[0];
+
+        long b;
+        while (true) {
+            final int op = code[pc];
+            final long x = operands[pc];
+            pc++;
+            count++;
+            opcodes[op]++;
+            pairs[prev * Opcode.LIMIT + op]++;
+            prev = op;
+            self[fn]++;
+            switch (op) {
+                case Opcode.NOP:
+                    break;
+                case Opcode.PUSH:
+                    stack[sp++] = x;
+                    break;
+                case Opcode.POP:
+                    sp--;
+                    break;
+                case Opcode.POPN:
+                    sp -= (int) x;
+                    break;
+                case Opcode.DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case Opcode.LOCA:
+                    stack[sp++] = Memory.slot(fp + (int) x);
+                    break;
+                case Opcode.ARGA:
+                    stack[sp++] = Memory.slot(argBase + (int) x);
+                    break;
+                case Opcode.GLOBA:
+                    stack[sp++] = Memory.global((int) x);
+                    break;
+                case Opcode.LOAD8:
+                    stack[sp - 1] = memory.load8(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD16:
+                    stack[sp - 1] = memory.load16(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD32:
+                    stack[sp - 1] = memory.load32(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD64:
+                    stack[sp - 1] = memory.load64(stack[sp - 1]);
+                    break;
+                case Opcode.STORE8:
+                    sp -= 2;
+                    memory.store8(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE16:
+                    sp -= 2;
+                    memory.store16(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE32:
+                    sp -= 2;
+                    memory.store32(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE64:
+                    sp -= 2;
+                    memory.store64(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.ALLOC:
+                    stack[sp - 1] = memory.alloc(stack[sp - 1]);
+                    break;
+                case Opcode.FREE:
+                    memory.free(stack[--sp]);
+                    break;
+                case Opcode.STACKALLOC:
+                    for (int n = (int) x; n > 0; n--) {
+                        stack[sp++] = 0L;
+                    }
+                    break;
+                case Opcode.ADDI:
+                    b = stack[--sp];
+                    stack[sp - 1] += b;
+                    break;
+                case Opcode.SUBI:
+                    b = stack[--sp];
+                    stack[sp - 1] -= b;
+                    break;
+                case Opcode.MULI:
+                    b = stack[--sp];
+                    stack[sp - 1] *= b;
+                    break;
+                case Opcode.DIVI:
+                    b = stack[--sp];
+                    if (b == 0) {
+                        throw new Error("division by zero");
+                    }
+                    stack[sp - 1] /= b;
+                    break;
+                case Opcode.DIVU:
+                    b = stack[--sp];
+                    if (b == 0) {
+                        throw new Error("division by zero");
+                    }
+                    stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], b);
+                    break;
+                case Opcode.ADDF:
+                    b = stack[--sp];
+                    stack[sp - 1] = MiniVm.bits(MiniVm.f(stack[sp - 1]) + MiniVm.f(b));
+                    break;
+                case Opcode.SUBF:
+                    b = stack[--sp];
+                    stack[sp - 1] = MiniVm.bits(MiniVm.f(stack[sp - 1]) - MiniVm.f(b));
+                    break;
+                case Opcode.MULF:
+                    b = stack[--sp];
+                    stack[sp - 1] = MiniVm.bits(MiniVm.f(stack[sp - 1]) * MiniVm.f(b));
+                    break;
+                case Opcode.DIVF:
+                    b = stack[--sp];
+                    stack[sp - 1] = MiniVm.bits(MiniVm.f(stack[sp - 1]) / MiniVm.f(b));
+                    break;
+                case Opcode.SHL:
+                    b = stack[--sp];
+                    stack[sp - 1] <<= b;
+                    break;
+                case Opcode.SHR:
+                    b = stack[--sp];
+                    stack[sp - 1] >>= b;
+                    break;
+                case Opcode.SHRL:
+                    b = stack[--sp];
+                    stack[sp - 1] >>>= b;
+                    break;
+                case Opcode.AND:
+                    b = stack[--sp];
+                    stack[sp - 1] &= b;
+                    break;
+                case Opcode.OR:
+                    b = stack[--sp];
+                    stack[sp - 1] |= b;
+                    break;
+                case Opcode.XOR:
+                    b = stack[--sp];
+                    stack[sp - 1] ^= b;
+                    break;
+                case Opcode.NOT:
+                    stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                    break;
+                case Opcode.CMPI:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compare(stack[sp - 1], b);
+                    break;
+                case Opcode.CMPU:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], b);
+                    break;
+                case Opcode.CMPF:
+                    b = stack[--sp];
+                    stack[sp - 1] = Double.compare(MiniVm.f(stack[sp - 1]), MiniVm.f(b));
+                    break;
+                case Opcode.NEGI:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case Opcode.NEGF:
+                    stack[sp - 1] = MiniVm.bits(-MiniVm.f(stack[sp - 1]));
+                    break;
+                case Opcode.ITOF:
+                    stack[sp - 1] = MiniVm.bits((double) stack[sp - 1]);
+                    break;
+                case Opcode.FTOI:
+                    stack[sp - 1] = (long) MiniVm.f(stack[sp - 1]);
+                    break;
+                case Opcode.SETLT:
+                    stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                    break;
+                case Opcode.SETGT:
+                    stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                    break;
+                case Opcode.BR:
+                    pc = (int) x;
+                    break;
+                case Opcode.BRTRUE:
+                    if (stack[--sp] != 0) {
+                        pc = (int) x;
+                    }
+                    break;
+                case Opcode.BRFALSE:
+                    if (stack[--sp] == 0) {
+                        pc = (int) x;
+                    }
+                    break;
+                case Opcode.CALL: {
+                    int callee = (int) x;
+                    if (depth == fnStack.length) {
+                        fnStack = Arrays.copyOf(fnStack, depth * 2);
+                        startStack = Arrays.copyOf(startStack, depth * 2);
+                    }
+                    fnStack[depth] = fn;
+                    startStack[depth] = count;
+                    depth++;
+                    fn = callee;
+                    calls[fn]++;
+                    active[fn]++;
+
+                    // 和 MiniVm 一样每次调用只检查一次整个栈帧
+                    stack = memory.ensureStack(sp + MiniVm.FRAME_HEADER + frameSlots[callee]);
+                    stack[sp] = fp;
+                    stack[sp + 1] = argBase;
+                    stack[sp + 2] = pc;
+                    argBase = sp - module.argSlots(callee);
+                    fp = sp + MiniVm.FRAME_HEADER;
+                    sp = fp + locSlots[callee];
+                    Arrays.fill(stack, fp, sp, 0L);
+                    pc = entry[callee];
+                    break;
+                }
+                case Opcode.RET: {
+                    int returnPc = (int) stack[fp - 1];
+                    sp = argBase + (int) x;
+                    argBase = (int) stack[fp - 2];
+                    fp = (int) stack[fp - 3];
+                    if (returnPc < 0) {
+                        inclusive[0] += count;
+                        instructions = count;
+                        pairs[Opcode.NOP * Opcode.LIMIT + code[entry[0]]]--;
+                        return;
+                    }
+                    depth--;
+                    if (--active[fn] == 0) {
+                        inclusive[fn] += count - startStack[depth];
+                    }
+                    fn = fnStack[depth];
+                    pc = returnPc;
+                    break;
+                }
+                case Opcode.CALLNAME:
+                    sp = builtins.call((int) x, stack, sp);
+                    break;
+                default:
+                    throw new Error("Illegal instruction " + Opcode.name(op) + " at " + (pc - 1));
+            }
+        }
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : 100.0 * part / total;
+    }
+
+    private Integer[] sortedIndices(long[] counts) {
+        ArrayList<Integer> used = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                used.add(i);
+            }
+        }
+        Integer[] result = used.toArray(new Integer[0]);
+        Arrays.sort(result, Comparator.comparingLong((Integer i) -> counts[i]).reversed());
+        return result;
+    }
+
+    private Integer[] sortedFunctions() {
+        Integer[] ids = new Integer[module.functionCount()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        Arrays.sort(ids, Comparator.comparingLong((Integer i) -> inclusive[i]).reversed()
+                .thenComparing(Comparator.comparingLong((Integer i) -> self[i]).reversed()));
+        return ids;
+    }
+
+    /**
+     * 按执行次数从多到少输出文本报告
+     */
+    public void report(PrintStream out) {
+        out.printf("instructions: %d%n", instructions);
+        out.println();
+        out.printf("%-14s %14s %7s%n", "opcode", "count", "%");
+        for (int op : sortedIndices(opcodes)) {
+            out.printf("%-14s %14d %6.2f%%%n", Opcode.name(op), opcodes[op], percent(opcodes[op], instructions));
+        }
+        out.println();
+        out.printf("%-29s %14s %7s%n", "pair", "count", "%");
+        Integer[] topPairs = sortedIndices(pairs);
+        for (int i = 0; i < Math.min(TOP_PAIRS, topPairs.length); i++) {
+            int pair = topPairs[i];
+            out.printf("%-14s %-14s %14d %6.2f%%%n", Opcode.name(pair / Opcode.LIMIT), Opcode.name(pair % Opcode.LIMIT),
+                    pairs[pair], percent(pairs[pair], instructions));
+        }
+        out.println();
+        out.printf("%-20s %12s %14s %7s %14s %7s%n", "function", "calls", "self", "%", "inclusive", "%");
+        for (int id : sortedFunctions()) {
+            if (calls[id] == 0) {
+                continue;
+            }
+            out.printf("%-20s %12d %14d %6.2f%% %14d %6.2f%%%n", module.functionName(id), calls[id],
+                    self[id], percent(self[id], instructions), inclusive[id], percent(inclusive[id], instructions));
+        }
+    }
+
+    /**
+     * 输出 JSON 格式的报告，函数以其在全局变量表中的名字下标 nameIndex 标识
+     */
+    public void reportJson(PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"instructions\":").append(instructions);
+        sb.append(",\"opcodes\":{");
+        boolean first = true;
+        for (int op : sortedIndices(opcodes)) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(Opcode.name(op)).append("\":").append(opcodes[op]);
+        }
+        sb.append("},\"pairs\":[");
+        first = true;
+        for (int pair : sortedIndices(pairs)) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"first\":\"").append(Opcode.name(pair / Opcode.LIMIT))
+                    .append("\",\"second\":\"").append(Opcode.name(pair % Opcode.LIMIT))
+                    .append("\",\"count\":").append(pairs[pair]).append('}');
+        }
+        sb.append("],\"functions\":[");
+        first = true;
+        for (int id : sortedFunctions()) {
+            if (calls[id] == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"name\":\"").append(escape(module.functionName(id)))
+                    .append("\",\"nameIndex\":").append(module.names[id])
+                    .append(",\"calls\":").append(calls[id])
+                    .append(",\"self\":").append(self[id])
+                    .append(",\"inclusive\":").append(inclusive[id]).append('}');
+        }
+        sb.append("]}");
+        out.println(sb);
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
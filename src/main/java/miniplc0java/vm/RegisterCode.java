@@ -0,0 +1,550 @@
+package miniplc0java.vm;
+
+import java.util.Arrays;
+
+import miniplc0java.vm.ClassWriter.Bail;
+
+/**
+ * 寄存器形式的内部代码，加载时由栈式指令翻译而来，由 MiniVm.executeRegisters 执行
+ *
+ * 每条指令占 code 中的 4 个 int：操作码和 a、b、c 三个操作数，另有一个 long 立即数。寄存器就是栈帧里的槽，
+ * 用相对 fp 的偏移表示：局部变量是 0 到 locSlots - 1，返回值槽和参数是负数，操作数栈的第 h 层固定放在
+ * locSlots + h，所以栈帧布局与栈式解释器完全相同，两种函数可以互相调用。
+ *
+ * 翻译时按 Verifier 算出的栈高度模拟操作数栈，常量、变量和地址压栈时不生成指令，被用到时直接作为操作数，
+ * 例如 loca 1; loca_load 1; loca_load 0; addi; store64 只剩一条 add 1, 1, 0。基本块结束前把还没写进
+ * 栈槽的值都写进去，跳转目标处的状态因此是确定的。
+ */
+final class RegisterCode {
+    // 操作码，注释中 [x] 表示槽 fp + x，imm 为立即数
+
+    /** [a] = [b] */
+    static final int MOV = 0;
+    /** [a] = imm */
+    static final int MOVI = 1;
+    /** [a] = 槽 fp + b 的地址 */
+    static final int ADDR = 2;
+    /** [a] = 第 b 个全局变量 */
+    static final int GLOAD = 3;
+    /** 第 a 个全局变量 = [b] */
+    static final int GSTORE = 4;
+    /** 第 a 个全局变量 = imm */
+    static final int GSTOREI = 5;
+    /** [a] = *[b] */
+    static final int LOAD8 = 6;
+    static final int LOAD16 = 7;
+    static final int LOAD32 = 8;
+    static final int LOAD64 = 9;
+    /** *[a] = [b] */
+    static final int STORE8 = 10;
+    static final int STORE16 = 11;
+    static final int STORE32 = 12;
+    static final int STORE64 = 13;
+    /** [a] = alloc([b]) */
+    static final int ALLOC = 14;
+    /** free([a]) */
+    static final int FREE = 15;
+
+    // 二元运算 [a] = [b] op [c]
+    static final int ADD = 16;
+    static final int SUB = 17;
+    static final int MUL = 18;
+    static final int DIV = 19;
+    static final int DIVU = 20;
+    static final int ADDF = 21;
+    static final int SUBF = 22;
+    static final int MULF = 23;
+    static final int DIVF = 24;
+    static final int SHL = 25;
+    static final int SHR = 26;
+    static final int SHRL = 27;
+    static final int AND = 28;
+    static final int OR = 29;
+    static final int XOR = 30;
+    static final int CMP = 31;
+    static final int CMPU = 32;
+    static final int CMPF = 33;
+    /** [a] = [b] < [c] ? 1 : 0，以下类似 */
+    static final int LT = 34;
+    static final int GT = 35;
+    static final int EQ = 36;
+    static final int LE = 37;
+    static final int GE = 38;
+
+    // 与立即数的二元运算 [a] = [b] op imm
+    static final int ADDK = 39;
+    static final int SUBK = 40;
+    static final int MULK = 41;
+    static final int LTK = 42;
+    static final int GTK = 43;
+    static final int EQK = 44;
+    static final int LEK = 45;
+    static final int GEK = 46;
+
+    // 一元运算 [a] = op [b]
+    static final int NOT = 47;
+    static final int NEG = 48;
+    static final int NEGF = 49;
+    static final int ITOF = 50;
+    static final int FTOI = 51;
+    static final int SETLT = 52;
+    static final int SETGT = 53;
+
+    // 控制转移，c 是跳转目标
+    static final int BR = 54;
+    /** [a] != 0 时跳转 */
+    static final int BRTRUE = 55;
+    static final int BRFALSE = 56;
+    /** [a] >= [b] 时跳转，以下类似 */
+    static final int JGE = 57;
+    static final int JLE = 58;
+    static final int JNE = 59;
+    static final int JEQ = 60;
+    static final int JGT = 61;
+    static final int JLT = 62;
+    /** [a] >= imm 时跳转，以下类似 */
+    static final int JGEK = 63;
+    static final int JLEK = 64;
+    static final int JNEK = 65;
+    static final int JEQK = 66;
+    static final int JGTK = 67;
+    static final int JLTK = 68;
+    /** 调用 a 号函数，调用时栈顶为 fp + b */
+    static final int CALL = 69;
+    /** 调用名字为第 a 个全局变量的标准库函数，调用时栈顶为 fp + b */
+    static final int CALLNAME = 70;
+    /** 返回 */
+    static final int RET = 71;
+
+    /** 栈式指令对应的寄存器指令，-1 表示不是这一类 */
+    private static final int[] BINARY = new int[Opcode.LIMIT];
+    private static final int[] UNARY = new int[Opcode.LIMIT];
+    private static final int[] JUMP = new int[Opcode.LIMIT];
+    private static final int[] LOAD = new int[Opcode.LIMIT];
+    private static final int[] STORE = new int[Opcode.LIMIT];
+    /** 二元运算和跳转的立即数版本，-1 表示没有 */
+    private static final int[] WITH_IMMEDIATE = new int[RET + 1];
+
+    static {
+        Arrays.fill(BINARY, -1);
+        Arrays.fill(UNARY, -1);
+        Arrays.fill(JUMP, -1);
+        Arrays.fill(LOAD, -1);
+        Arrays.fill(STORE, -1);
+        Arrays.fill(WITH_IMMEDIATE, -1);
+        int[][] binary = {
+                {Opcode.ADDI, ADD}, {Opcode.SUBI, SUB}, {Opcode.MULI, MUL}, {Opcode.DIVI, DIV}, {Opcode.DIVU, DIVU},
+                {Opcode.ADDF, ADDF}, {Opcode.SUBF, SUBF}, {Opcode.MULF, MULF}, {Opcode.DIVF, DIVF},
+                {Opcode.SHL, SHL}, {Opcode.SHR, SHR}, {Opcode.SHRL, SHRL}, {Opcode.AND, AND}, {Opcode.OR, OR},
+                {Opcode.XOR, XOR}, {Opcode.CMPI, CMP}, {Opcode.CMPU, CMPU}, {Opcode.CMPF, CMPF},
+                {Opcode.CMPI_LT, LT}, {Opcode.CMPI_GT, GT}, {Opcode.CMPI_EQ, EQ}, {Opcode.CMPI_LE, LE},
+                {Opcode.CMPI_GE, GE},
+        };
+        for (int[] pair : binary) {
+            BINARY[pair[0]] = pair[1];
+        }
+        int[][] unary = {
+                {Opcode.NOT, NOT}, {Opcode.NEGI, NEG}, {Opcode.NEGF, NEGF}, {Opcode.ITOF, ITOF},
+                {Opcode.FTOI, FTOI}, {Opcode.SETLT, SETLT}, {Opcode.SETGT, SETGT},
+        };
+        for (int[] pair : unary) {
+            UNARY[pair[0]] = pair[1];
+        }
+        int[][] jump = {
+                {Opcode.JGE, JGE}, {Opcode.JLE, JLE}, {Opcode.JNE, JNE}, {Opcode.JEQ, JEQ}, {Opcode.JGT, JGT},
+                {Opcode.JLT, JLT},
+        };
+        for (int[] pair : jump) {
+            JUMP[pair[0]] = pair[1];
+        }
+        LOAD[Opcode.LOAD8] = LOAD8;
+        LOAD[Opcode.LOAD16] = LOAD16;
+        LOAD[Opcode.LOAD32] = LOAD32;
+        LOAD[Opcode.LOAD64] = LOAD64;
+        STORE[Opcode.STORE8] = STORE8;
+        STORE[Opcode.STORE16] = STORE16;
+        STORE[Opcode.STORE32] = STORE32;
+        STORE[Opcode.STORE64] = STORE64;
+        int[][] immediate = {
+                {ADD, ADDK}, {SUB, SUBK}, {MUL, MULK}, {LT, LTK}, {GT, GTK}, {EQ, EQK}, {LE, LEK}, {GE, GEK},
+                {JGE, JGEK}, {JLE, JLEK}, {JNE, JNEK}, {JEQ, JEQK}, {JGT, JGTK}, {JLT, JLTK},
+        };
+        for (int[] pair : immediate) {
+            WITH_IMMEDIATE[pair[0]] = pair[1];
+        }
+    }
+
+    /** 4 个 int 一条指令，指令的位置和跳转目标都是在 code 中的下标 */
+    final int[] code;
+    /** 位置为 pc 的指令的立即数是 imm[pc / 4] */
+    final long[] imm;
+    /** 每条指令来自哪个栈式指令的位置，用来报告执行位置，下标同 imm */
+    final int[] origin;
+    /** 每个函数第一条指令的位置，没有翻译的函数为 -1 */
+    final int[] entry;
+
+    private RegisterCode(int[] code, long[] imm, int[] origin, int[] entry) {
+        this.code = code;
+        this.imm = imm;
+        this.origin = origin;
+        this.entry = entry;
+    }
+
+    /**
+     * 翻译模块中所有能翻译的函数，其余的留给栈式解释器
+     */
+    static RegisterCode translate(Module module) {
+        int[] heights = new int[module.code.length];
+        int[] maxStack = Verifier.verify(module, heights);
+        var t = new Translator(module, heights);
+        int[] entry = new int[module.functionCount()];
+        for (int id = 0; id < entry.length; id++) {
+            int start = t.size;
+            try {
+                t.function(id, maxStack[id]);
+                entry[id] = start * 4;
+            } catch (Bail e) {
+                t.size = start;
+                entry[id] = -1;
+            }
+        }
+        return new RegisterCode(Arrays.copyOf(t.code, t.size * 4), Arrays.copyOf(t.imm, t.size),
+                Arrays.copyOf(t.origin, t.size), entry);
+    }
+
+    private static final class Translator {
+        // 模拟的操作数栈上值的种类
+        /** 值在槽 fp + value 中 */
+        private static final int REG = 0;
+        /** 值就是 value */
+        private static final int CONST = 1;
+        /** 值是槽 fp + value 的地址 */
+        private static final int SLOT_ADDR = 2;
+        /** 值是第 value 个全局变量的地址 */
+        private static final int GLOBAL_ADDR = 3;
+
+        private final Module module;
+        private final int[] heights;
+
+        int[] code = new int[256];
+        long[] imm = new long[64];
+        int[] origin = new int[64];
+        int size;
+
+        private int[] kind = new int[16];
+        private long[] value = new long[16];
+        /** 模拟栈的高度，-1 表示这里执行不到 */
+        private int depth;
+        private int locSlots;
+        /** 当前翻译的栈式指令位置 */
+        private int pc;
+
+        Translator(Module module, int[] heights) {
+            this.module = module;
+            this.heights = heights;
+        }
+
+        void function(int id, int maxStack) {
+            int begin = module.entry[id];
+            int end = module.end(id);
+            int[] code = module.code;
+            long[] operands = module.operands;
+            locSlots = module.locSlots[id];
+            int argBase = -MiniVm.FRAME_HEADER - module.argSlots(id);
+            if (kind.length < maxStack) {
+                kind = new int[maxStack];
+                value = new long[maxStack];
+            }
+
+            boolean[] isTarget = new boolean[end - begin];
+            for (int p = begin; p < end; p++) {
+                if (Opcode.isBranch(code[p])) {
+                    isTarget[(int) operands[p] - begin] = true;
+                }
+            }
+            // 每条栈式指令翻译后的第一条指令，用来回填跳转目标
+            int[] map = new int[end - begin];
+            int first = size;
+
+            depth = -1;
+            for (pc = begin; pc < end; pc++) {
+                if (isTarget[pc - begin] || depth < 0) {
+                    if (depth >= 0) {
+                        flush();
+                    }
+                    depth = heights[pc];
+                    for (int k = 0; k < depth; k++) {
+                        kind[k] = REG;
+                        value[k] = home(k);
+                    }
+                }
+                map[pc - begin] = size * 4;
+                if (depth < 0) {
+                    continue;
+                }
+                instruction(code[pc], operands[pc], argBase);
+            }
+
+            // 回填跳转目标
+            for (int i = first; i < size; i++) {
+                int op = this.code[i * 4];
+                if (op >= BR && op <= JLTK) {
+                    this.code[i * 4 + 3] = map[this.code[i * 4 + 3] - begin];
+                }
+            }
+        }
+
+        private void instruction(int op, long x, int argBase) {
+            int top = depth - 1;
+            switch (op) {
+                case Opcode.NOP:
+                    return;
+                case Opcode.PUSH:
+                    push(CONST, x);
+                    return;
+                case Opcode.POP:
+                    depth--;
+                    return;
+                case Opcode.POPN:
+                    depth -= (int) x;
+                    return;
+                case Opcode.DUP:
+                    push(kind[top], value[top]);
+                    return;
+                case Opcode.STACKALLOC:
+                    for (int n = (int) x; n > 0; n--) {
+                        push(CONST, 0);
+                    }
+                    return;
+                case Opcode.LOCA:
+                    push(SLOT_ADDR, x);
+                    return;
+                case Opcode.ARGA:
+                    push(SLOT_ADDR, argBase + x);
+                    return;
+                case Opcode.GLOBA:
+                    push(GLOBAL_ADDR, x);
+                    return;
+                case Opcode.LOCA_LOAD:
+                    push(REG, x);
+                    return;
+                case Opcode.ARGA_LOAD:
+                    push(REG, argBase + x);
+                    return;
+                case Opcode.GLOBA_LOAD:
+                    emit(GLOAD, home(depth), (int) x, 0, 0);
+                    push(REG, home(depth));
+                    return;
+                case Opcode.LOAD64:
+                    if (kind[top] == SLOT_ADDR) {
+                        kind[top] = REG;
+                        return;
+                    }
+                    if (kind[top] == GLOBAL_ADDR) {
+                        emit(GLOAD, home(top), (int) value[top], 0, 0);
+                        set(top, REG, home(top));
+                        return;
+                    }
+                    break;
+                case Opcode.STORE64:
+                    if (kind[top - 1] == SLOT_ADDR) {
+                        int slot = (int) value[top - 1];
+                        // 还没读出的这个变量的旧值先写到各自的槽里
+                        for (int k = 0; k < depth; k++) {
+                            if (kind[k] == REG && value[k] == slot) {
+                                materialize(k);
+                            }
+                        }
+                        assign(slot, top);
+                        depth -= 2;
+                        return;
+                    }
+                    if (kind[top - 1] == GLOBAL_ADDR) {
+                        if (kind[top] == CONST) {
+                            emit(GSTOREI, (int) value[top - 1], 0, 0, value[top]);
+                        } else {
+                            emit(GSTORE, (int) value[top - 1], reg(top), 0, 0);
+                        }
+                        depth -= 2;
+                        return;
+                    }
+                    break;
+                case Opcode.ALLOC:
+                    emit(ALLOC, home(top), reg(top), 0, 0);
+                    set(top, REG, home(top));
+                    return;
+                case Opcode.FREE:
+                    emit(FREE, reg(top), 0, 0, 0);
+                    depth--;
+                    return;
+                case Opcode.BR:
+                    flush();
+                    emit(BR, 0, 0, (int) x, 0);
+                    depth = -1;
+                    return;
+                case Opcode.BRTRUE:
+                case Opcode.BRFALSE: {
+                    int r = reg(top);
+                    depth--;
+                    flush();
+                    emit(op == Opcode.BRTRUE ? BRTRUE : BRFALSE, r, 0, (int) x, 0);
+                    return;
+                }
+                case Opcode.CALL: {
+                    flush();
+                    int callee = (int) x;
+                    emit(CALL, callee, home(depth), 0, 0);
+                    depth -= module.argSlots(callee);
+                    for (int n = module.retSlots[callee]; n > 0; n--) {
+                        push(REG, home(depth));
+                    }
+                    return;
+                }
+                case Opcode.CALLNAME: {
+                    flush();
+                    emit(CALLNAME, (int) x, home(depth), 0, 0);
+                    switch ((int) x) {
+                        case Builtins.PUTINT:
+                        case Builtins.PUTDOUBLE:
+                        case Builtins.PUTCHAR:
+                        case Builtins.PUTSTR:
+                            depth--;
+                            break;
+                        default:
+                            // get* 的返回值写在原来的槽里，putln 不改变栈
+                            break;
+                    }
+                    return;
+                }
+                case Opcode.RET:
+                    emit(RET, 0, 0, 0, 0);
+                    depth = -1;
+                    return;
+                default:
+                    break;
+            }
+
+            if (LOAD[op] >= 0) {
+                emit(LOAD[op], home(top), reg(top), 0, 0);
+                set(top, REG, home(top));
+            } else if (STORE[op] >= 0) {
+                // 地址可能指向任何变量，还没读出的变量值先写到各自的槽里
+                for (int k = 0; k < top - 1; k++) {
+                    if (kind[k] == REG) {
+                        materialize(k);
+                    }
+                }
+                emit(STORE[op], reg(top - 1), reg(top), 0, 0);
+                depth -= 2;
+            } else if (UNARY[op] >= 0) {
+                emit(UNARY[op], home(top), reg(top), 0, 0);
+                set(top, REG, home(top));
+            } else if (BINARY[op] >= 0) {
+                int r = BINARY[op];
+                int a = reg(top - 1);
+                if (kind[top] == CONST && WITH_IMMEDIATE[r] >= 0) {
+                    emit(WITH_IMMEDIATE[r], home(top - 1), a, 0, value[top]);
+                } else {
+                    emit(r, home(top - 1), a, reg(top), 0);
+                }
+                depth--;
+                set(top - 1, REG, home(top - 1));
+            } else if (JUMP[op] >= 0) {
+                int r = JUMP[op];
+                int a = reg(top - 1);
+                boolean immediate = kind[top] == CONST;
+                int b = immediate ? 0 : reg(top);
+                depth -= 2;
+                flush();
+                if (immediate) {
+                    emit(WITH_IMMEDIATE[r], a, 0, (int) x, value[top]);
+                } else {
+                    emit(r, a, b, (int) x, 0);
+                }
+            } else {
+                throw new Bail("unsupported instruction " + Opcode.name(op));
+            }
+        }
+
+        /**
+         * 操作数栈第 k 层固定使用的槽
+         */
+        private int home(int k) {
+            return locSlots + k;
+        }
+
+        private void push(int kind, long value) {
+            set(depth++, kind, value);
+        }
+
+        private void set(int k, int kind, long value) {
+            this.kind[k] = kind;
+            this.value[k] = value;
+        }
+
+        /**
+         * 第 k 层的值所在的槽，不在槽里的先写到第 k 层的槽
+         */
+        private int reg(int k) {
+            if (kind[k] == REG) {
+                return (int) value[k];
+            }
+            materialize(k);
+            return home(k);
+        }
+
+        private void materialize(int k) {
+            if (kind[k] != REG || value[k] != home(k)) {
+                assign(home(k), k);
+                set(k, REG, home(k));
+            }
+        }
+
+        /**
+         * 把第 k 层的值写进槽 fp + slot
+         */
+        private void assign(int slot, int k) {
+            long v = value[k];
+            switch (kind[k]) {
+                case REG:
+                    if (v != slot) {
+                        emit(MOV, slot, (int) v, 0, 0);
+                    }
+                    break;
+                case CONST:
+                    emit(MOVI, slot, 0, 0, v);
+                    break;
+                case SLOT_ADDR:
+                    emit(ADDR, slot, (int) v, 0, 0);
+                    break;
+                default:
+                    emit(MOVI, slot, 0, 0, Memory.global((int) v));
+                    break;
+            }
+        }
+
+        /**
+         * 基本块结束前把所有值写到各自的槽里
+         */
+        private void flush() {
+            for (int k = 0; k < depth; k++) {
+                materialize(k);
+            }
+        }
+
+        private void emit(int op, int a, int b, int c, long immediate) {
+            if (size == imm.length) {
+                code = Arrays.copyOf(code, size * 8);
+                imm = Arrays.copyOf(imm, size * 2);
+                origin = Arrays.copyOf(origin, size * 2);
+            }
+            code[size * 4] = op;
+            code[size * 4 + 1] = a;
+            code[size * 4 + 2] = b;
+            code[size * 4 + 3] = c;
+            imm[size] = immediate;
+            origin[size] = pc;
+            size++;
+        }
+    }
+}
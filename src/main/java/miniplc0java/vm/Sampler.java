@@ -0,0 +1,124 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 采样分析器：后台线程定时抓取 MiniVm 的 c0 调用栈，输出 Brendan Gregg 的 folded stack 格式，
+ * 可以直接交给 flamegraph.pl 画火焰图
+ *
+ * 解释器只在调用和返回时写一次 MiniVm.position，采样线程据此沿栈上保存的旧 fp 回溯，解释器主循环
+ * 不做额外检查。读取不加同步，偶尔读到不完整的栈时丢弃这次采样。编译执行的函数不在解释器栈上，
+ * 时间记在进入编译代码的解释器栈帧上。
+ */
+public class Sampler implements Runnable {
+    /** 回溯的最大深度，超过时认为读到了不一致的栈 */
+    private static final int MAX_DEPTH = 4096;
+
+    private final MiniVm vm;
+    private final long intervalNanos;
+    private final HashMap<String, Long> folded = new HashMap<>();
+    private final StringBuilder key = new StringBuilder();
+    private final int[] frames = new int[MAX_DEPTH];
+    private long samples;
+    private long dropped;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param intervalMicros 采样间隔，微秒
+     */
+    public Sampler(MiniVm vm, long intervalMicros) {
+        if (intervalMicros <= 0) {
+            throw new IllegalArgumentException("sampling interval must be positive");
+        }
+        this.vm = vm;
+        this.intervalNanos = intervalMicros * 1000;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "c0-sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+            sample();
+        }
+    }
+
+    private void sample() {
+        long position = vm.position;
+        if (position == 0) {
+            // 还没开始执行
+            return;
+        }
+        Module module = vm.module;
+        long[] stack = vm.stack;
+        int fp = (int) (position >>> 32);
+        int pc = (int) position;
+        int depth = 0;
+        while (true) {
+            if (depth == MAX_DEPTH || fp < MiniVm.FRAME_HEADER || fp > stack.length || pc < 0
+                    || pc >= module.code.length) {
+                dropped++;
+                return;
+            }
+            frames[depth++] = module.functionAt(pc);
+            long returnPc = stack[fp - 1];
+            if (returnPc < 0) {
+                break;
+            }
+            pc = (int) returnPc;
+            fp = (int) stack[fp - 3];
+        }
+        key.setLength(0);
+        for (int i = depth - 1; i >= 0; i--) {
+            key.append(module.functionName(frames[i]));
+            if (i > 0) {
+                key.append(';');
+            }
+        }
+        folded.merge(key.toString(), 1L, Long::sum);
+        samples++;
+    }
+
+    /**
+     * 每行一条调用栈，从最外层到最内层以分号分隔，后跟采样次数；应在 stop 之后调用
+     */
+    public void writeFolded(PrintStream out) {
+        var entries = new ArrayList<>(folded.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        for (var entry : entries) {
+            out.print(entry.getKey());
+            out.print(' ');
+            out.println(entry.getValue());
+        }
+        out.flush();
+    }
+
+    public long samples() {
+        return samples;
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,1133 @@
+package miniplc0java.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import miniplc0java.vm.ClassWriter.Bail;
+import miniplc0java.vm.ClassWriter.Code;
+import miniplc0java.vm.ClassWriter.Label;
+
+/**
+ * 热循环的踪迹编译
+ *
+ * 循环头被跳到足够多次后，record 用一个单独的解释循环执行一圈，记下经过的每条指令，调用的函数也跟进去
+ * 记录。compile 把这条路径翻译成一个 JVM 方法：路径上的栈帧布局在编译时完全确定，每个栈槽（包括内联
+ * 函数的栈帧和操作数栈）和每个用到的全局变量都放在 JVM 局部变量里，进入时从栈和全局变量区读入；路径上的
+ * 条件跳转变成检查，走向和记录时不同就从这里退出，把改过的值写回并返回退出编号，解释器按编号恢复栈帧
+ * 接着执行。回到循环头时直接跳回方法开头，整个循环都在编译后的代码里转。
+ *
+ * o0 指令本身带有类型，整数和浮点运算在记录时已经分开，不需要另外的类型检查。全局变量只能通过 globa
+ * 访问，不会和栈槽重叠，所以整圈都可以放在局部变量里，只在退出时写回。用到计算出的地址、alloc、
+ * free 或者窄访存指令的路径不编译。
+ */
+final class Tracer {
+    /** 一条踪迹最多记录的指令数 */
+    private static final int MAX_LENGTH = 2000;
+    /** 最多跟进的调用层数 */
+    private static final int MAX_DEPTH = 8;
+
+    private static final String CLASS_NAME = "miniplc0java/vm/Trace";
+    private static final String VM = "miniplc0java/vm/MiniVm";
+    private static final String MEMORY = "miniplc0java/vm/Memory";
+    private static final String BUILTINS = "miniplc0java/vm/Builtins";
+    private static final String BYTE_BUFFER = "java/nio/ByteBuffer";
+
+    /**
+     * 编译后的踪迹，生成的类实现这个接口
+     */
+    interface Loop {
+        /**
+         * 从循环头开始执行，fp 是循环所在栈帧的 fp
+         *
+         * @return 退出编号
+         */
+        int run(long[] stack, int fp, MiniVm vm);
+    }
+
+    /**
+     * 一条踪迹和它的退出表，退出表中的位置都是相对进入时 fp 的偏移
+     */
+    static final class Trace {
+        final Loop loop;
+        /** 进入前要求栈上 fp 之后至少有这么多槽 */
+        final int slots;
+        final int[] exitPc;
+        final int[] exitFp;
+        final int[] exitArgBase;
+        final int[] exitSp;
+
+        private Trace(Loop loop, int slots, int[] exitPc, int[] exitFp, int[] exitArgBase, int[] exitSp) {
+            this.loop = loop;
+            this.slots = slots;
+            this.exitPc = exitPc;
+            this.exitFp = exitFp;
+            this.exitArgBase = exitArgBase;
+            this.exitSp = exitSp;
+        }
+    }
+
+    /** 记录或编译失败的循环头，之后不再尝试 */
+    static final Trace FAILED = new Trace(null, 0, null, null, null, null);
+
+    private Tracer() {
+    }
+
+    /**
+     * 从循环头 header 开始解释执行并记录经过的指令，直到回到同一个栈帧的 header。路径太长、调用太深、
+     * 栈不够放下被调函数、遇到其它循环或者从这个栈帧返回时放弃，停在还没有执行的那条指令上。
+     *
+     * 无论成功与否，vm 的 resume 系列字段都是解释器接下来的状态。
+     *
+     * @return 记录下的指令位置，不含最后回到的 header；放弃时为 null
+     */
+    static int[] record(MiniVm vm, int header, int fp, int argBase, int sp) {
+        final Module module = vm.module;
+        final int[] code = module.code;
+        final long[] operands = module.operands;
+        final long[] stack = vm.stack;
+        final Memory memory = vm.memory;
+        final int[] frameSlots = vm.image.frameSlots;
+
+        int[] path = new int[64];
+        int length = 0;
+        int depth = 0;
+        int pc = header;
+        long a, b;
+        while (true) {
+            final int op = code[pc];
+            final long x = operands[pc];
+            if (length == MAX_LENGTH
+                    || op == Opcode.RET && depth == 0
+                    || op == Opcode.CALL && (depth == MAX_DEPTH
+                            || sp + MiniVm.FRAME_HEADER + frameSlots[(int) x] > stack.length)
+                    || isBranch(op) && x <= pc && (depth > 0 || x != header)) {
+                vm.resume(pc, fp, argBase, sp);
+                return null;
+            }
+            if (length == path.length) {
+                path = Arrays.copyOf(path, length * 2);
+            }
+            path[length++] = pc;
+            int next = pc + 1;
+            switch (op) {
+                case Opcode.NOP:
+                    break;
+                case Opcode.PUSH:
+                    stack[sp++] = x;
+                    break;
+                case Opcode.POP:
+                    sp--;
+                    break;
+                case Opcode.POPN:
+                    sp -= (int) x;
+                    break;
+                case Opcode.DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case Opcode.LOCA:
+                    stack[sp++] = Memory.slot(fp + (int) x);
+                    break;
+                case Opcode.ARGA:
+                    stack[sp++] = Memory.slot(argBase + (int) x);
+                    break;
+                case Opcode.GLOBA:
+                    stack[sp++] = Memory.global((int) x);
+                    break;
+                case Opcode.LOAD8:
+                    stack[sp - 1] = memory.load8(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD16:
+                    stack[sp - 1] = memory.load16(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD32:
+                    stack[sp - 1] = memory.load32(stack[sp - 1]);
+                    break;
+                case Opcode.LOAD64:
+                    stack[sp - 1] = memory.load64(stack[sp - 1]);
+                    break;
+                case Opcode.STORE8:
+                    sp -= 2;
+                    memory.store8(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE16:
+                    sp -= 2;
+                    memory.store16(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE32:
+                    sp -= 2;
+                    memory.store32(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.STORE64:
+                    sp -= 2;
+                    memory.store64(stack[sp], stack[sp + 1]);
+                    break;
+                case Opcode.ALLOC:
+                    stack[sp - 1] = memory.alloc(stack[sp - 1]);
+                    break;
+                case Opcode.FREE:
+                    memory.free(stack[--sp]);
+                    break;
+                case Opcode.STACKALLOC:
+                    for (int n = (int) x; n > 0; n--) {
+                        stack[sp++] = 0L;
+                    }
+                    break;
+                case Opcode.ADDI:
+                    b = stack[--sp];
+                    stack[sp - 1] += b;
+                    break;
+                case Opcode.SUBI:
+                    b = stack[--sp];
+                    stack[sp - 1] -= b;
+                    break;
+                case Opcode.MULI:
+                    b = stack[--sp];
+                    stack[sp - 1] *= b;
+                    break;
+                case Opcode.DIVI:
+                    b = stack[--sp];
+                    if (b == 0) {
+                        throw new Error("division by zero");
+                    }
+                    stack[sp - 1] /= b;
+                    break;
+                case Opcode.DIVU:
+                    b = stack[--sp];
+                    if (b == 0) {
+                        throw new Error("division by zero");
+                    }
+                    stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], b);
+                    break;
+                case Opcode.ADDF:
+                    b = stack[--sp];
+                    stack[sp - 1] = MiniVm.bits(MiniVm.f(stack[sp - 1]) + MiniVm.f(b));
+                    break;
+                case Opcode.SUBF:
+                    b = stack[--sp];
+                    stack[sp - 1] = MiniVm.bits(MiniVm.f(stack[sp - 1]) - MiniVm.f(b));
+                    break;
+                case Opcode.MULF:
+                    b = stack[--sp];
+                    stack[sp - 1] = MiniVm.bits(MiniVm.f(stack[sp - 1]) * MiniVm.f(b));
+                    break;
+                case Opcode.DIVF:
+                    b = stack[--sp];
+                    stack[sp - 1] = MiniVm.bits(MiniVm.f(stack[sp - 1]) / MiniVm.f(b));
+                    break;
+                case Opcode.SHL:
+                    b = stack[--sp];
+                    stack[sp - 1] <<= b;
+                    break;
+                case Opcode.SHR:
+                    b = stack[--sp];
+                    stack[sp - 1] >>= b;
+                    break;
+                case Opcode.SHRL:
+                    b = stack[--sp];
+                    stack[sp - 1] >>>= b;
+                    break;
+                case Opcode.AND:
+                    b = stack[--sp];
+                    stack[sp - 1] &= b;
+                    break;
+                case Opcode.OR:
+                    b = stack[--sp];
+                    stack[sp - 1] |= b;
+                    break;
+                case Opcode.XOR:
+                    b = stack[--sp];
+                    stack[sp - 1] ^= b;
+                    break;
+                case Opcode.NOT:
+                    stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                    break;
+                case Opcode.CMPI:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compare(stack[sp - 1], b);
+                    break;
+                case Opcode.CMPU:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], b);
+                    break;
+                case Opcode.CMPF:
+                    b = stack[--sp];
+                    stack[sp - 1] = Double.compare(MiniVm.f(stack[sp - 1]), MiniVm.f(b));
+                    break;
+                case Opcode.NEGI:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case Opcode.NEGF:
+                    stack[sp - 1] = MiniVm.bits(-MiniVm.f(stack[sp - 1]));
+                    break;
+                case Opcode.ITOF:
+                    stack[sp - 1] = MiniVm.bits((double) stack[sp - 1]);
+                    break;
+                case Opcode.FTOI:
+                    stack[sp - 1] = (long) MiniVm.f(stack[sp - 1]);
+                    break;
+                case Opcode.SETLT:
+                    stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                    break;
+                case Opcode.SETGT:
+                    stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                    break;
+                case Opcode.BR:
+                    next = (int) x;
+                    break;
+                case Opcode.BRTRUE:
+                    if (stack[--sp] != 0) {
+                        next = (int) x;
+                    }
+                    break;
+                case Opcode.BRFALSE:
+                    if (stack[--sp] == 0) {
+                        next = (int) x;
+                    }
+                    break;
+                case Opcode.CALL: {
+                    int callee = (int) x;
+                    stack[sp] = fp;
+                    stack[sp + 1] = argBase;
+                    stack[sp + 2] = next;
+                    argBase = sp - module.argSlots(callee);
+                    fp = sp + MiniVm.FRAME_HEADER;
+                    sp = fp + module.locSlots[callee];
+                    Arrays.fill(stack, fp, sp, 0L);
+                    next = module.entry[callee];
+                    depth++;
+                    break;
+                }
+                case Opcode.RET:
+                    next = (int) stack[fp - 1];
+                    sp = argBase + (int) x;
+                    argBase = (int) stack[fp - 2];
+                    fp = (int) stack[fp - 3];
+                    depth--;
+                    break;
+                case Opcode.CALLNAME:
+                    sp = vm.builtins.call((int) x, stack, sp);
+                    break;
+                case Opcode.LOCA_LOAD:
+                    stack[sp++] = stack[fp + (int) x];
+                    break;
+                case Opcode.ARGA_LOAD:
+                    stack[sp++] = stack[argBase + (int) x];
+                    break;
+                case Opcode.GLOBA_LOAD:
+                    stack[sp++] = memory.buffer.getLong(Memory.GLOBALS_BASE + 8 * (int) x);
+                    break;
+                case Opcode.CMPI_LT:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] < b ? 1 : 0;
+                    break;
+                case Opcode.CMPI_GT:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] > b ? 1 : 0;
+                    break;
+                case Opcode.CMPI_EQ:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] == b ? 1 : 0;
+                    break;
+                case Opcode.CMPI_LE:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] <= b ? 1 : 0;
+                    break;
+                case Opcode.CMPI_GE:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1] >= b ? 1 : 0;
+                    break;
+                case Opcode.JGE:
+                case Opcode.JLE:
+                case Opcode.JNE:
+                case Opcode.JEQ:
+                case Opcode.JGT:
+                case Opcode.JLT:
+                    b = stack[--sp];
+                    a = stack[--sp];
+                    if (jump(op, Long.compare(a, b))) {
+                        next = (int) x;
+                    }
+                    break;
+                default:
+                    throw new Error("Illegal instruction " + Opcode.name(op) + " at " + pc);
+            }
+            pc = next;
+            if (pc == header && depth == 0) {
+                vm.resume(pc, fp, argBase, sp);
+                return Arrays.copyOf(path, length);
+            }
+        }
+    }
+
+    private static boolean isBranch(int op) {
+        return op == Opcode.BR || op == Opcode.BRTRUE || op == Opcode.BRFALSE
+                || op >= Opcode.JGE && op <= Opcode.JLT;
+    }
+
+    /**
+     * 融合的条件跳转在 a 与 b 比较结果为 cmp 时是否跳转
+     */
+    private static boolean jump(int op, int cmp) {
+        switch (op) {
+            case Opcode.JGE:
+                return cmp >= 0;
+            case Opcode.JLE:
+                return cmp <= 0;
+            case Opcode.JNE:
+                return cmp != 0;
+            case Opcode.JEQ:
+                return cmp == 0;
+            case Opcode.JGT:
+                return cmp > 0;
+            default:
+                return cmp < 0;
+        }
+    }
+
+    /**
+     * 把 record 得到的路径编译成 Trace，进入时循环所在栈帧的操作数栈必须为空
+     *
+     * @return 不能编译时为 FAILED
+     */
+    static Trace compile(MiniVm vm, int header, int[] path) {
+        try {
+            return new Tracer.Compiler(vm, header).compile(path);
+        } catch (Bail e) {
+            return FAILED;
+        }
+    }
+
+    /**
+     * 编译时的栈帧，位置都是相对进入时 fp 的偏移
+     */
+    private static final class Frame {
+        final int fp;
+        final int argBase;
+
+        Frame(int fp, int argBase) {
+            this.fp = fp;
+            this.argBase = argBase;
+        }
+    }
+
+    /**
+     * 一个退出点：恢复到的位置和当时每个操作数栈槽里是什么
+     */
+    private static final class Exit {
+        final Label label = new Label();
+        final int pc;
+        final int fp;
+        final int argBase;
+        final int sp;
+        /** 循环所在栈帧的局部变量之后、sp 之前每个槽的 kind，见 Compiler.sym */
+        final long[] syms;
+
+        Exit(int pc, int fp, int argBase, int sp, long[] syms) {
+            this.pc = pc;
+            this.fp = fp;
+            this.argBase = argBase;
+            this.sp = sp;
+            this.syms = syms;
+        }
+    }
+
+    private static final class Compiler {
+        // 栈槽内容的种类：普通值在对应的局部变量里，地址只在编译时记录，用到时才算出来
+        private static final long VAL = 0;
+        private static final long SLOT = 1L << 32;
+        private static final long GLOB = 2L << 32;
+        private static final long KIND = 3L << 32;
+
+        // 方法参数：this, stack, fp, vm，之后是全局变量区的 ByteBuffer
+        private static final int STACK_LOCAL = 1;
+        private static final int FP_LOCAL = 2;
+        private static final int VM_LOCAL = 3;
+        private static final int BUFFER_LOCAL = 4;
+
+        private final Module module;
+        private final int[] frameSlots;
+        private final int header;
+        private final ClassWriter cw = new ClassWriter(CLASS_NAME, "java/lang/Object");
+        private final Code c = new Code();
+
+        /** 每个栈槽（相对 fp 的偏移）和全局变量对应的 JVM 局部变量 */
+        private final HashMap<Integer, Integer> cells = new HashMap<>();
+        private final HashMap<Integer, Integer> globalCells = new HashMap<>();
+        private int nextLocal = BUFFER_LOCAL + 1;
+        /** 循环所在栈帧中用到和写过的槽，进入时读入、退出时写回；更高处的槽在每圈里都先写后读 */
+        private final TreeSet<Integer> rootUsed = new TreeSet<>();
+        private final TreeSet<Integer> rootWritten = new TreeSet<>();
+        private final TreeSet<Integer> globalsUsed = new TreeSet<>();
+        private final TreeSet<Integer> globalsWritten = new TreeSet<>();
+
+        /** 循环所在栈帧局部变量的末尾，也是循环头处的 sp */
+        private final int rootEnd;
+        /** sym 下标 0 对应的偏移 */
+        private final int symBase;
+        private long[] sym = new long[64];
+        private final ArrayList<Frame> frames = new ArrayList<>();
+        private final ArrayList<Exit> exits = new ArrayList<>();
+        private int sp;
+        private int maxSlots;
+
+        Compiler(MiniVm vm, int header) {
+            this.module = vm.module;
+            this.frameSlots = vm.image.frameSlots;
+            this.header = header;
+            int id = module.functionAt(header);
+            this.rootEnd = module.locSlots[id];
+            this.symBase = -MiniVm.FRAME_HEADER - module.argSlots(id);
+            frames.add(new Frame(0, symBase));
+            this.sp = rootEnd;
+            this.maxSlots = frameSlots[id];
+        }
+
+        Trace compile(int[] path) {
+            Label top = new Label();
+            Label entry = new Label();
+            c.jump(0xa7, entry); // goto
+            c.bind(top);
+            for (int i = 0; i < path.length; i++) {
+                int next = i + 1 < path.length ? path[i + 1] : header;
+                instruction(path[i], next);
+            }
+            if (frames.size() != 1 || sp != rootEnd) {
+                throw new Bail("unbalanced trace");
+            }
+            c.jump(0xa7, top);
+            for (int i = 0; i < exits.size(); i++) {
+                exit(i, exits.get(i));
+            }
+            c.bind(entry);
+            enter();
+            c.jump(0xa7, top);
+            c.maxStack = 8;
+            c.maxLocals = nextLocal;
+
+            cw.addInterface("miniplc0java/vm/Tracer$Loop");
+            constructor();
+            cw.addMethod(ClassWriter.ACC_PUBLIC, "run", "([JIL" + VM + ";)I", c);
+            Loop loop;
+            try {
+                var lookup = MethodHandles.lookup().defineHiddenClass(cw.toByteArray(), true);
+                loop = (Loop) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                        .invoke();
+            } catch (Throwable e) {
+                throw new Error("failed to define trace", e);
+            }
+            int n = exits.size();
+            int[] pc = new int[n];
+            int[] fp = new int[n];
+            int[] argBase = new int[n];
+            int[] exitSp = new int[n];
+            for (int i = 0; i < n; i++) {
+                Exit e = exits.get(i);
+                pc[i] = e.pc;
+                fp[i] = e.fp;
+                argBase[i] = e.argBase;
+                exitSp[i] = e.sp;
+            }
+            return new Trace(loop, maxSlots, pc, fp, argBase, exitSp);
+        }
+
+        private void constructor() {
+            Code init = new Code();
+            init.u1(0x2a); // aload_0
+            init.op(0xb7, cw.methodRef("java/lang/Object", "<init>", "()V"));
+            init.u1(0xb1); // return
+            init.maxStack = 1;
+            init.maxLocals = 1;
+            cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", init);
+        }
+
+        /**
+         * 翻译 pc 处的指令，记录时下一条执行的是 next
+         */
+        private void instruction(int pc, int next) {
+            final int op = module.code[pc];
+            final long x = module.operands[pc];
+            final Frame frame = frames.get(frames.size() - 1);
+            switch (op) {
+                case Opcode.NOP:
+                    break;
+                case Opcode.PUSH:
+                    lconst(x);
+                    define(sp++);
+                    break;
+                case Opcode.POP:
+                    sp--;
+                    break;
+                case Opcode.POPN:
+                    sp -= (int) x;
+                    break;
+                case Opcode.DUP:
+                    if (sym(sp - 1) == VAL) {
+                        read(sp - 1);
+                        define(sp);
+                    } else {
+                        setSym(sp, sym(sp - 1));
+                    }
+                    sp++;
+                    break;
+                case Opcode.LOCA:
+                    setSym(sp++, SLOT | frame.fp + (int) x - symBase);
+                    break;
+                case Opcode.ARGA:
+                    setSym(sp++, SLOT | frame.argBase + (int) x - symBase);
+                    break;
+                case Opcode.GLOBA:
+                    setSym(sp++, GLOB | x);
+                    break;
+                case Opcode.LOAD64:
+                    loadFrom(sym(sp - 1));
+                    define(sp - 1);
+                    break;
+                case Opcode.STORE64: {
+                    sp -= 2;
+                    long address = sym(sp);
+                    value(sp + 1);
+                    read(sp + 1);
+                    if ((address & KIND) == SLOT) {
+                        write((int) address + symBase);
+                    } else if ((address & KIND) == GLOB) {
+                        c.local(0x37, globalCell((int) address)); // lstore
+                        globalsUsed.add((int) address);
+                        globalsWritten.add((int) address);
+                    } else {
+                        throw new Bail("store to computed address");
+                    }
+                    break;
+                }
+                case Opcode.STACKALLOC:
+                    for (int n = (int) x; n > 0; n--) {
+                        c.u1(0x09); // lconst_0
+                        define(sp++);
+                    }
+                    break;
+                case Opcode.ADDI:
+                    binary(0x61);
+                    break;
+                case Opcode.SUBI:
+                    binary(0x65);
+                    break;
+                case Opcode.MULI:
+                    binary(0x69);
+                    break;
+                case Opcode.DIVI:
+                    // 除数为 0 时的 ArithmeticException 由 Run 转成同样的错误
+                    binary(0x6d);
+                    break;
+                case Opcode.DIVU:
+                    operands(2);
+                    c.op(0xb8, cw.methodRef("java/lang/Long", "divideUnsigned", "(JJ)J"));
+                    result();
+                    break;
+                case Opcode.ADDF:
+                    binaryDouble(0x63);
+                    break;
+                case Opcode.SUBF:
+                    binaryDouble(0x67);
+                    break;
+                case Opcode.MULF:
+                    binaryDouble(0x6b);
+                    break;
+                case Opcode.DIVF:
+                    binaryDouble(0x6f);
+                    break;
+                case Opcode.SHL:
+                    shift(0x79);
+                    break;
+                case Opcode.SHR:
+                    shift(0x7b);
+                    break;
+                case Opcode.SHRL:
+                    shift(0x7d);
+                    break;
+                case Opcode.AND:
+                    binary(0x7f);
+                    break;
+                case Opcode.OR:
+                    binary(0x81);
+                    break;
+                case Opcode.XOR:
+                    binary(0x83);
+                    break;
+                case Opcode.NOT:
+                    operands(1);
+                    c.u1(0x09); // lconst_0
+                    c.u1(0x94); // lcmp
+                    bool(0x99); // ifeq
+                    break;
+                case Opcode.CMPI:
+                    operands(2);
+                    c.u1(0x94); // lcmp
+                    c.u1(0x85); // i2l
+                    result();
+                    break;
+                case Opcode.CMPU:
+                    operands(2);
+                    c.op(0xb8, cw.methodRef("java/lang/Long", "compareUnsigned", "(JJ)I"));
+                    c.u1(0x85); // i2l
+                    result();
+                    break;
+                case Opcode.CMPF:
+                    value(sp - 2);
+                    value(sp - 1);
+                    read(sp - 2);
+                    toDouble();
+                    read(sp - 1);
+                    toDouble();
+                    sp -= 2;
+                    c.op(0xb8, cw.methodRef("java/lang/Double", "compare", "(DD)I"));
+                    c.u1(0x85); // i2l
+                    result();
+                    break;
+                case Opcode.NEGI:
+                    operands(1);
+                    c.u1(0x75); // lneg
+                    result();
+                    break;
+                case Opcode.NEGF:
+                    operands(1);
+                    toDouble();
+                    c.u1(0x77); // dneg
+                    fromDouble();
+                    result();
+                    break;
+                case Opcode.ITOF:
+                    operands(1);
+                    c.u1(0x8a); // l2d
+                    fromDouble();
+                    result();
+                    break;
+                case Opcode.FTOI:
+                    operands(1);
+                    toDouble();
+                    c.u1(0x8f); // d2l
+                    result();
+                    break;
+                case Opcode.SETLT:
+                    operands(1);
+                    c.u1(0x09); // lconst_0
+                    c.u1(0x94); // lcmp
+                    bool(0x9b); // iflt
+                    break;
+                case Opcode.SETGT:
+                    operands(1);
+                    c.u1(0x09); // lconst_0
+                    c.u1(0x94); // lcmp
+                    bool(0x9d); // ifgt
+                    break;
+                case Opcode.BR:
+                    break;
+                case Opcode.BRTRUE:
+                case Opcode.BRFALSE: {
+                    operands(1);
+                    if (x != pc + 1) {
+                        c.u1(0x09); // lconst_0
+                        c.u1(0x94); // lcmp
+                        boolean taken = next == x;
+                        // 条件不成立时 ifeq，成立时 ifne，跳到退出点的是和记录时相反的情况
+                        boolean exitWhenNonZero = taken == (op == Opcode.BRFALSE);
+                        guard(exitWhenNonZero ? 0x9a : 0x99, taken ? pc + 1 : (int) x);
+                    } else {
+                        c.u1(0x58); // pop2
+                    }
+                    break;
+                }
+                case Opcode.JGE:
+                case Opcode.JLE:
+                case Opcode.JNE:
+                case Opcode.JEQ:
+                case Opcode.JGT:
+                case Opcode.JLT: {
+                    operands(2);
+                    c.u1(0x94); // lcmp
+                    if (x != pc + 1) {
+                        boolean taken = next == x;
+                        guard(taken ? negate(ifOpcode(op)) : ifOpcode(op), taken ? pc + 1 : (int) x);
+                    } else {
+                        c.u1(0x57); // pop
+                    }
+                    break;
+                }
+                case Opcode.CALL:
+                    call(pc, (int) x, frame);
+                    break;
+                case Opcode.RET:
+                    frames.remove(frames.size() - 1);
+                    sp = frame.argBase + (int) x;
+                    break;
+                case Opcode.CALLNAME:
+                    callName((int) x);
+                    break;
+                case Opcode.LOCA_LOAD:
+                    loadFrom(SLOT | frame.fp + (int) x - symBase);
+                    define(sp++);
+                    break;
+                case Opcode.ARGA_LOAD:
+                    loadFrom(SLOT | frame.argBase + (int) x - symBase);
+                    define(sp++);
+                    break;
+                case Opcode.GLOBA_LOAD:
+                    loadFrom(GLOB | x);
+                    define(sp++);
+                    break;
+                case Opcode.CMPI_LT:
+                    compare(0x9b); // iflt
+                    break;
+                case Opcode.CMPI_GT:
+                    compare(0x9d); // ifgt
+                    break;
+                case Opcode.CMPI_EQ:
+                    compare(0x99); // ifeq
+                    break;
+                case Opcode.CMPI_LE:
+                    compare(0x9e); // ifle
+                    break;
+                case Opcode.CMPI_GE:
+                    compare(0x9c); // ifge
+                    break;
+                default:
+                    throw new Bail("unsupported instruction " + Opcode.name(op));
+            }
+        }
+
+        /**
+         * 调用 callee：写好栈帧头，清零局部变量，之后的指令属于新的栈帧
+         */
+        private void call(int pc, int callee, Frame caller) {
+            int argBase = sp - module.argSlots(callee);
+            for (int at = argBase; at < sp; at++) {
+                value(at);
+            }
+            c.local(0x15, FP_LOCAL); // iload
+            iconst(caller.fp);
+            c.u1(0x60); // iadd
+            c.u1(0x85); // i2l
+            define(sp);
+            c.local(0x15, FP_LOCAL);
+            iconst(caller.argBase);
+            c.u1(0x60);
+            c.u1(0x85);
+            define(sp + 1);
+            lconst(pc + 1);
+            define(sp + 2);
+            int fp = sp + MiniVm.FRAME_HEADER;
+            for (int i = 0; i < module.locSlots[callee]; i++) {
+                c.u1(0x09); // lconst_0
+                define(fp + i);
+            }
+            frames.add(new Frame(fp, argBase));
+            sp = fp + module.locSlots[callee];
+            maxSlots = Math.max(maxSlots, fp + frameSlots[callee]);
+        }
+
+        private void callName(int builtin) {
+            String name = Builtins.NAMES[builtin];
+            switch (builtin) {
+                case Builtins.GETINT:
+                case Builtins.GETDOUBLE:
+                case Builtins.GETCHAR:
+                    builtins();
+                    c.op(0xb6, cw.methodRef(BUILTINS, name, "()J"));
+                    define(sp - 1);
+                    break;
+                case Builtins.PUTINT:
+                case Builtins.PUTDOUBLE:
+                case Builtins.PUTCHAR:
+                case Builtins.PUTSTR:
+                    value(sp - 1);
+                    builtins();
+                    read(--sp);
+                    c.op(0xb6, cw.methodRef(BUILTINS, name, "(J)V"));
+                    break;
+                case Builtins.PUTLN:
+                    builtins();
+                    c.op(0xb6, cw.methodRef(BUILTINS, name, "()V"));
+                    break;
+                default:
+                    throw new Bail("unknown function " + name);
+            }
+        }
+
+        private void builtins() {
+            c.local(0x19, VM_LOCAL); // aload
+            c.op(0xb4, cw.fieldRef(VM, "builtins", "L" + BUILTINS + ";"));
+        }
+
+        /**
+         * 条件成立时退出到 pc，当前栈帧和 sp 就是退出后解释器的状态
+         */
+        private void guard(int opcode, int pc) {
+            Frame frame = frames.get(frames.size() - 1);
+            long[] syms = new long[sp - rootEnd];
+            for (int at = rootEnd; at < sp; at++) {
+                syms[at - rootEnd] = sym(at);
+            }
+            Exit exit = new Exit(pc, frame.fp, frame.argBase, sp, syms);
+            exits.add(exit);
+            c.jump(opcode, exit.label);
+        }
+
+        /**
+         * 退出点：写回改过的值，返回退出编号
+         */
+        private void exit(int id, Exit exit) {
+            c.bind(exit.label);
+            for (int at : rootWritten) {
+                storeSlot(at);
+                c.local(0x16, cell(at)); // lload
+                c.u1(0x50); // lastore
+            }
+            for (int at = rootEnd; at < exit.sp; at++) {
+                long s = exit.syms[at - rootEnd];
+                storeSlot(at);
+                if ((s & KIND) == VAL) {
+                    c.local(0x16, cell(at));
+                } else if ((s & KIND) == SLOT) {
+                    c.local(0x15, FP_LOCAL);
+                    iconst((int) s + symBase);
+                    c.u1(0x60); // iadd
+                    c.op(0xb8, cw.methodRef(MEMORY, "slot", "(I)J"));
+                } else {
+                    lconst(Memory.global((int) s));
+                }
+                c.u1(0x50); // lastore
+            }
+            for (int global : globalsWritten) {
+                c.local(0x19, BUFFER_LOCAL);
+                iconst((int) Memory.global(global));
+                c.local(0x16, globalCell(global));
+                c.op(0xb6, cw.methodRef(BYTE_BUFFER, "putLong", "(IJ)L" + BYTE_BUFFER + ";"));
+                c.u1(0x57); // pop
+            }
+            iconst(id);
+            c.u1(0xac); // ireturn
+        }
+
+        /**
+         * 进入时读入循环所在栈帧中用到的槽和用到的全局变量
+         */
+        private void enter() {
+            c.local(0x19, VM_LOCAL);
+            c.op(0xb4, cw.fieldRef(VM, "memory", "L" + MEMORY + ";"));
+            c.op(0xb4, cw.fieldRef(MEMORY, "buffer", "L" + BYTE_BUFFER + ";"));
+            c.local(0x3a, BUFFER_LOCAL); // astore
+            for (int at : rootUsed) {
+                storeSlot(at);
+                c.u1(0x2f); // laload
+                c.local(0x37, cell(at));
+            }
+            for (int global : globalsUsed) {
+                c.local(0x19, BUFFER_LOCAL);
+                iconst((int) Memory.global(global));
+                c.op(0xb6, cw.methodRef(BYTE_BUFFER, "getLong", "(I)J"));
+                c.local(0x37, globalCell(global));
+            }
+        }
+
+        /**
+         * 压入 stack 和 fp + at，之后可以 laload 或压入值再 lastore
+         */
+        private void storeSlot(int at) {
+            c.local(0x19, STACK_LOCAL);
+            c.local(0x15, FP_LOCAL);
+            iconst(at);
+            c.u1(0x60); // iadd
+        }
+
+        /**
+         * 从编译时已知的地址读一个值压到 JVM 操作数栈上
+         */
+        private void loadFrom(long address) {
+            if ((address & KIND) == SLOT) {
+                read((int) address + symBase);
+            } else if ((address & KIND) == GLOB) {
+                int global = (int) address;
+                globalsUsed.add(global);
+                c.local(0x16, globalCell(global));
+            } else {
+                throw new Bail("load from computed address");
+            }
+        }
+
+        private void operands(int n) {
+            for (int i = n; i > 0; i--) {
+                value(sp - i);
+                read(sp - i);
+            }
+            sp -= n;
+        }
+
+        private void result() {
+            define(sp++);
+        }
+
+        private void binary(int opcode) {
+            operands(2);
+            c.u1(opcode);
+            result();
+        }
+
+        private void shift(int opcode) {
+            operands(2);
+            c.u1(0x88); // l2i
+            c.u1(opcode);
+            result();
+        }
+
+        private void binaryDouble(int opcode) {
+            value(sp - 2);
+            value(sp - 1);
+            read(sp - 2);
+            toDouble();
+            read(sp - 1);
+            toDouble();
+            sp -= 2;
+            c.u1(opcode);
+            fromDouble();
+            result();
+        }
+
+        private void compare(int opcode) {
+            operands(2);
+            c.u1(0x94); // lcmp
+            bool(opcode);
+        }
+
+        /**
+         * 栈顶的 int 满足 opcode 的条件时结果为 1，否则为 0
+         */
+        private void bool(int opcode) {
+            Label one = new Label();
+            Label done = new Label();
+            c.jump(opcode, one);
+            c.u1(0x09); // lconst_0
+            c.jump(0xa7, done);
+            c.bind(one);
+            c.u1(0x0a); // lconst_1
+            c.bind(done);
+            result();
+        }
+
+        private static int ifOpcode(int op) {
+            switch (op) {
+                case Opcode.JGE:
+                    return 0x9c;
+                case Opcode.JLE:
+                    return 0x9e;
+                case Opcode.JNE:
+                    return 0x9a;
+                case Opcode.JEQ:
+                    return 0x99;
+                case Opcode.JGT:
+                    return 0x9d;
+                default:
+                    return 0x9b;
+            }
+        }
+
+        /**
+         * ifeq..ifle 中条件相反的一个
+         */
+        private static int negate(int opcode) {
+            return ((opcode - 0x99) ^ 1) + 0x99;
+        }
+
+        private void toDouble() {
+            c.op(0xb8, cw.methodRef("java/lang/Double", "longBitsToDouble", "(J)D"));
+        }
+
+        private void fromDouble() {
+            c.op(0xb8, cw.methodRef("java/lang/Double", "doubleToRawLongBits", "(D)J"));
+        }
+
+        private void value(int at) {
+            if (sym(at) != VAL) {
+                throw new Bail("address used as value");
+            }
+        }
+
+        private void read(int at) {
+            if (at < rootEnd) {
+                rootUsed.add(at);
+            }
+            c.local(0x16, cell(at)); // lload
+        }
+
+        private void write(int at) {
+            if (at < rootEnd) {
+                rootUsed.add(at);
+                rootWritten.add(at);
+            }
+            c.local(0x37, cell(at)); // lstore
+        }
+
+        /**
+         * JVM 操作数栈顶的值成为 at 处的操作数
+         */
+        private void define(int at) {
+            write(at);
+            setSym(at, VAL);
+        }
+
+        private int cell(int at) {
+            return cells.computeIfAbsent(at, k -> allocate());
+        }
+
+        private int globalCell(int global) {
+            return globalCells.computeIfAbsent(global, k -> allocate());
+        }
+
+        private int allocate() {
+            int local = nextLocal;
+            nextLocal += 2;
+            if (nextLocal > 0xffff) {
+                throw new Bail("too many locals");
+            }
+            return local;
+        }
+
+        private long sym(int at) {
+            return sym[at - symBase];
+        }
+
+        private void setSym(int at, long kind) {
+            int i = at - symBase;
+            if (i >= sym.length) {
+                sym = Arrays.copyOf(sym, Math.max(sym.length * 2, i + 1));
+            }
+            sym[i] = kind;
+        }
+
+        private void lconst(long x) {
+            if (x == 0) {
+                c.u1(0x09);
+            } else if (x == 1) {
+                c.u1(0x0a);
+            } else {
+                c.op(0x14, cw.longConst(x)); // ldc2_w
+            }
+        }
+
+        private void iconst(int x) {
+            if (x >= -1 && x <= 5) {
+                c.u1(0x03 + x);
+            } else if (x >= Byte.MIN_VALUE && x <= Byte.MAX_VALUE) {
+                c.u1(0x10);
+                c.u1(x);
+            } else if (x >= Short.MIN_VALUE && x <= Short.MAX_VALUE) {
+                c.u1(0x11);
+                c.u2(x);
+            } else {
+                c.op(0x13, cw.intConst(x)); // ldc_w
+            }
+        }
+    }
+}
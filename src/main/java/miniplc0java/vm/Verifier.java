@@ -0,0 +1,266 @@
+package miniplc0java.vm;
+
+/**
+ * 加载时对 Module 做的检查，通过之后解释器执行时不会读写到栈帧之外
+ *
+ * 对每个函数按控制流模拟操作数栈的高度：每条指令弹出的槽不能超过当前高度，各条路径到达同一位置时
+ * 高度必须相同；跳转目标必须在本函数之内，call 只能调用模块里的函数；loca、arga、globa 的下标不能越过
+ * 局部变量、参数和全局变量的个数；callname 只能调用已知的标准库函数。这些检查不依赖 Loader 解码时做过的
+ * 检查，直接构造的 Module 同样适用。同时得到每个函数操作数栈的最大深度，解释器据此在调用时一次检查整个
+ * 栈帧是否放得下。
+ * 槽数、栈深度和整个栈帧都不能超过 Memory.MAX_STACK_SLOTS，这样解释器算栈帧位置时不会溢出 int。
+ */
+final class Verifier {
+    private Verifier() {
+    }
+
+    /**
+     * @return 每个函数操作数栈的最大深度，不含局部变量
+     */
+    static int[] verify(Module module) {
+        return verify(module, new int[module.code.length]);
+    }
+
+    /**
+     * @param heights 填入每条指令执行前操作数栈的高度，执行不到的指令为 -1
+     * @return 每个函数操作数栈的最大深度，不含局部变量
+     */
+    static int[] verify(Module module, int[] heights) {
+        int[] maxStack = new int[module.functionCount()];
+        int[] work = new int[module.code.length];
+        // call 会用到被调函数的槽数，先全部检查
+        for (int id = 0; id < maxStack.length; id++) {
+            checkSlots(module, id, module.retSlots[id], "return");
+            checkSlots(module, id, module.paramSlots[id], "parameter");
+            checkSlots(module, id, module.locSlots[id], "local");
+        }
+        for (int id = 0; id < maxStack.length; id++) {
+            maxStack[id] = verify(module, id, heights, work);
+        }
+        return maxStack;
+    }
+
+    private static int verify(Module module, int id, int[] heights, int[] work) {
+        int[] code = module.code;
+        long[] operands = module.operands;
+        int begin = module.entry[id];
+        int end = module.end(id);
+        for (int pc = begin; pc < end; pc++) {
+            heights[pc] = -1;
+        }
+
+        int max = 0;
+        int count = 0;
+        heights[begin] = 0;
+        work[count++] = begin;
+        while (count > 0) {
+            int pc = work[--count];
+            int op = code[pc];
+            long x = operands[pc];
+            int height = heights[pc];
+            int pop;
+            int push;
+            switch (op) {
+                case Opcode.NOP:
+                case Opcode.BR:
+                case Opcode.RET:
+                    pop = push = 0;
+                    break;
+                case Opcode.PUSH:
+                    pop = 0;
+                    push = 1;
+                    break;
+                case Opcode.POP:
+                case Opcode.FREE:
+                case Opcode.BRTRUE:
+                case Opcode.BRFALSE:
+                    pop = 1;
+                    push = 0;
+                    break;
+                case Opcode.POPN:
+                    pop = checkCount(module, id, pc, x);
+                    push = 0;
+                    break;
+                case Opcode.STACKALLOC:
+                    pop = 0;
+                    push = checkCount(module, id, pc, x);
+                    break;
+                case Opcode.DUP:
+                    pop = 1;
+                    push = 2;
+                    break;
+                case Opcode.LOCA:
+                case Opcode.LOCA_LOAD:
+                    checkIndex(module, id, pc, x, module.locSlots[id], "local");
+                    pop = 0;
+                    push = 1;
+                    break;
+                case Opcode.ARGA:
+                case Opcode.ARGA_LOAD:
+                    checkIndex(module, id, pc, x, module.argSlots(id), "argument");
+                    pop = 0;
+                    push = 1;
+                    break;
+                case Opcode.GLOBA:
+                case Opcode.GLOBA_LOAD:
+                    checkIndex(module, id, pc, x, module.globals.length, "global");
+                    pop = 0;
+                    push = 1;
+                    break;
+                case Opcode.LOAD8:
+                case Opcode.LOAD16:
+                case Opcode.LOAD32:
+                case Opcode.LOAD64:
+                case Opcode.ALLOC:
+                case Opcode.NOT:
+                case Opcode.NEGI:
+                case Opcode.NEGF:
+                case Opcode.ITOF:
+                case Opcode.FTOI:
+                case Opcode.SETLT:
+                case Opcode.SETGT:
+                    pop = push = 1;
+                    break;
+                case Opcode.STORE8:
+                case Opcode.STORE16:
+                case Opcode.STORE32:
+                case Opcode.STORE64:
+                case Opcode.JGE:
+                case Opcode.JLE:
+                case Opcode.JNE:
+                case Opcode.JEQ:
+                case Opcode.JGT:
+                case Opcode.JLT:
+                    pop = 2;
+                    push = 0;
+                    break;
+                case Opcode.ADDI:
+                case Opcode.SUBI:
+                case Opcode.MULI:
+                case Opcode.DIVI:
+                case Opcode.ADDF:
+                case Opcode.SUBF:
+                case Opcode.MULF:
+                case Opcode.DIVF:
+                case Opcode.DIVU:
+                case Opcode.SHL:
+                case Opcode.SHR:
+                case Opcode.SHRL:
+                case Opcode.AND:
+                case Opcode.OR:
+                case Opcode.XOR:
+                case Opcode.CMPI:
+                case Opcode.CMPU:
+                case Opcode.CMPF:
+                case Opcode.CMPI_LT:
+                case Opcode.CMPI_GT:
+                case Opcode.CMPI_EQ:
+                case Opcode.CMPI_LE:
+                case Opcode.CMPI_GE:
+                    pop = 2;
+                    push = 1;
+                    break;
+                case Opcode.CALL: {
+                    // 返回值槽和参数由调用者压栈，返回后只留下返回值槽
+                    checkIndex(module, id, pc, x, module.functionCount(), "function");
+                    int callee = (int) x;
+                    pop = module.argSlots(callee);
+                    push = module.retSlots[callee];
+                    break;
+                }
+                case Opcode.CALLNAME:
+                    switch ((int) x) {
+                        case Builtins.GETINT:
+                        case Builtins.GETDOUBLE:
+                        case Builtins.GETCHAR:
+                            // 返回值写进调用者预先分配的槽
+                            pop = push = 1;
+                            break;
+                        case Builtins.PUTINT:
+                        case Builtins.PUTDOUBLE:
+                        case Builtins.PUTCHAR:
+                        case Builtins.PUTSTR:
+                            pop = 1;
+                            push = 0;
+                            break;
+                        case Builtins.PUTLN:
+                            pop = push = 0;
+                            break;
+                        default:
+                            throw fail(module, id, pc, "unknown function " + x);
+                    }
+                    break;
+                default:
+                    throw fail(module, id, pc, "illegal instruction " + Opcode.name(op));
+            }
+            if (pop > height) {
+                throw fail(module, id, pc, "operand stack underflow");
+            }
+            height = height - pop + push;
+            if (height > Memory.MAX_STACK_SLOTS) {
+                throw fail(module, id, pc, "operand stack deeper than " + Memory.MAX_STACK_SLOTS + " slots");
+            }
+            max = Math.max(max, height);
+
+            if (op == Opcode.RET) {
+                continue;
+            }
+            if (Opcode.isBranch(op)) {
+                if (x < begin || x >= end) {
+                    throw fail(module, id, pc, "branch target " + (x - begin) + " out of range");
+                }
+                count = flow(module, id, pc, (int) x, height, heights, work, count);
+            }
+            if (op != Opcode.BR) {
+                // 函数末尾补的 ret 保证 pc + 1 不会越过函数
+                count = flow(module, id, pc, pc + 1, height, heights, work, count);
+            }
+        }
+        // 调用者压的返回值和参数、控制信息、局部变量和操作数栈
+        long frame = (long) module.retSlots[id] + module.paramSlots[id] + MiniVm.FRAME_HEADER
+                + module.locSlots[id] + max;
+        if (frame > Memory.MAX_STACK_SLOTS) {
+            throw fail(module, id, begin, "frame of " + frame + " slots exceeds " + Memory.MAX_STACK_SLOTS);
+        }
+        return max;
+    }
+
+    private static void checkSlots(Module module, int id, int slots, String kind) {
+        if (slots < 0 || slots > Memory.MAX_STACK_SLOTS) {
+            throw fail(module, id, module.entry[id], "invalid " + kind + " slot count " + slots);
+        }
+    }
+
+    /**
+     * 以 height 的高度到达 target，第一次到达时加入工作表
+     */
+    private static int flow(Module module, int id, int pc, int target, int height, int[] heights, int[] work,
+                            int count) {
+        if (heights[target] < 0) {
+            heights[target] = height;
+            work[count++] = target;
+        } else if (heights[target] != height) {
+            throw fail(module, id, pc, "operand stack height " + height + " differs from " + heights[target]
+                    + " at " + (target - module.entry[id]));
+        }
+        return count;
+    }
+
+    private static int checkCount(Module module, int id, int pc, long x) {
+        if (x < 0 || x > Memory.MAX_STACK_SLOTS) {
+            throw fail(module, id, pc, "invalid slot count " + x);
+        }
+        return (int) x;
+    }
+
+    private static void checkIndex(Module module, int id, int pc, long x, int limit, String kind) {
+        if (x < 0 || x >= limit) {
+            throw fail(module, id, pc, kind + " index " + x + " out of range");
+        }
+    }
+
+    private static Error fail(Module module, int id, int pc, String message) {
+        return new Error("verification failed in function " + module.functionName(id) + " at "
+                + (pc - module.entry[id]) + ": " + message);
+    }
+}
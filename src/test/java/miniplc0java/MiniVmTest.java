@@ -1,116 +1,154 @@
-//package miniplc0java;
-//
-//import static org.junit.Assert.assertEquals;
-//
-//import java.io.ByteArrayOutputStream;
-//import java.io.PrintStream;
-//import java.util.ArrayList;
-//import java.util.List;
-//
-//import org.junit.Test;
-//
-//import miniplc0java.instruction.Instruction;
-//import miniplc0java.instruction.Operation;
-//import miniplc0java.vm.MiniVm;
-//
-//public class MiniVmTest {
-//
-//    private String RunVm(List<Instruction> instructions) {
-//        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
-//        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-//        var output = new PrintStream(ostream, true, utf8);
-//
-//        var vm = new MiniVm(instructions, output);
-//        vm.Run();
-//        output.close();
-//
-//        var outString = ostream.toString(utf8);
-//        return outString;
-//    }
-//
-//    @Test
-//    public void testPlus() {
-//        var instructions = new ArrayList<Instruction>();
-//        instructions.add(new Instruction(Operation.LIT, 1));
-//        instructions.add(new Instruction(Operation.LIT, 2));
-//        instructions.add(new Instruction(Operation.ADD));
-//        instructions.add(new Instruction(Operation.WRT));
-//
-//        var outString = RunVm(instructions);
-//
-//        assertEquals(String.format("1 + 2 should equal to 3", outString), "3\n", outString);
-//    }
-//
-//    @Test
-//    public void testMinus() {
-//        var instructions = new ArrayList<Instruction>();
-//        instructions.add(new Instruction(Operation.LIT, 1));
-//        instructions.add(new Instruction(Operation.LIT, 2));
-//        instructions.add(new Instruction(Operation.SUB));
-//        instructions.add(new Instruction(Operation.WRT));
-//
-//        var outString = RunVm(instructions);
-//
-//        assertEquals(String.format("1 - 2 should equal to -1", outString), "-1\n", outString);
-//    }
-//
-//    @Test
-//    public void testMult() {
-//        var instructions = new ArrayList<Instruction>();
-//        instructions.add(new Instruction(Operation.LIT, 3));
-//        instructions.add(new Instruction(Operation.LIT, 4));
-//        instructions.add(new Instruction(Operation.MUL));
-//        instructions.add(new Instruction(Operation.WRT));
-//
-//        var outString = RunVm(instructions);
-//
-//        assertEquals(String.format("3 * 4 should equal to 12", outString), "12\n", outString);
-//    }
-//
-//    @Test
-//    public void testDiv() {
-//        var instructions = new ArrayList<Instruction>();
-//        instructions.add(new Instruction(Operation.LIT, 60));
-//        instructions.add(new Instruction(Operation.LIT, 4));
-//        instructions.add(new Instruction(Operation.DIV));
-//        instructions.add(new Instruction(Operation.WRT));
-//
-//        var outString = RunVm(instructions);
-//
-//        assertEquals(String.format("60 / 4 should equal to 15", outString), "15\n", outString);
-//    }
-//
-//    @Test
-//    public void testStore() {
-//        var instructions = new ArrayList<Instruction>();
-//        instructions.add(new Instruction(Operation.LIT, 1));
-//        instructions.add(new Instruction(Operation.LIT, 2));
-//        instructions.add(new Instruction(Operation.LIT, 3));
-//        instructions.add(new Instruction(Operation.LIT, 4));
-//        instructions.add(new Instruction(Operation.LIT, 5)); // 1 2 3 4 5
-//        instructions.add(new Instruction(Operation.STO, 0)); // 5 2 3 4
-//        instructions.add(new Instruction(Operation.STO, 1)); // 5 4 3
-//        instructions.add(new Instruction(Operation.WRT));
-//        instructions.add(new Instruction(Operation.WRT));
-//        instructions.add(new Instruction(Operation.WRT));
-//
-//        var outString = RunVm(instructions);
-//
-//        assertEquals(String.format("Stack top should be 3, 4, 5", outString), "3\n4\n5\n", outString);
-//    }
-//
-//    @Test
-//    public void testLoad() {
-//        var instructions = new ArrayList<Instruction>();
-//        instructions.add(new Instruction(Operation.LIT, 1));
-//        instructions.add(new Instruction(Operation.LIT, 2)); // 1 2
-//        instructions.add(new Instruction(Operation.LOD, 1)); // 1 2 2
-//        instructions.add(new Instruction(Operation.LOD, 0)); // 1 2 2 1
-//        instructions.add(new Instruction(Operation.WRT));
-//        instructions.add(new Instruction(Operation.WRT));
-//
-//        var outString = RunVm(instructions);
-//
-//        assertEquals(String.format("Stack top should be 1, 2", outString), "1\n2\n", outString);
-//    }
-//}
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Scanner;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+
+public class MiniVmTest {
+    private final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+
+    private MiniVm compile(String source, String input) throws CompileError {
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        var analyser = new Analyser(new Tokenizer(new StringIter(new Scanner(source))));
+        analyser.analyseProgram();
+        return new MiniVm(analyser.getGlobalVariable(), analyser.getFnLists(),
+                new ByteArrayInputStream(input.getBytes(utf8)), new PrintStream(ostream, true, utf8));
+    }
+
+    private String RunVm(String source, String input) throws CompileError {
+        compile(source, input).Run();
+        return ostream.toString(java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private String RunVm(String source) throws CompileError {
+        return RunVm(source, "");
+    }
+
+    private String RunMain(String body) throws CompileError {
+        return RunVm("fn main() -> void {\n" + body + "\n}");
+    }
+
+    @Test
+    public void testArithmetic() throws CompileError {
+        assertEquals("3 -1 12 15 -3 2\n",
+                RunMain("putint(1 + 2); putchar(32); putint(1 - 2); putchar(32); putint(3 * 4); putchar(32);"
+                        + "putint(60 / 4); putchar(32); putint(-7 / 2); putchar(32); putint(7 - 2 * 3 + 1); putln();"));
+    }
+
+    @Test
+    public void testIntegerOverflowWraps() throws CompileError {
+        assertEquals("-9223372036854775808\n", RunMain("let x: int = 9223372036854775807; putint(x + 1); putln();"));
+    }
+
+    @Test
+    public void testComparison() throws CompileError {
+        assertEquals("101010\n", RunMain(
+                "if 1 < 2 { putint(1); } else { putint(0); }"
+                        + "if 1 > 2 { putint(1); } else { putint(0); }"
+                        + "if 2 <= 2 { putint(1); } else { putint(0); }"
+                        + "if 2 >= 3 { putint(1); } else { putint(0); }"
+                        + "if 3 == 3 { putint(1); } else { putint(0); }"
+                        + "if 3 != 3 { putint(1); } else { putint(0); } putln();"));
+    }
+
+    @Test
+    public void testDouble() throws CompileError {
+        assertEquals("0.75 -2.5 1\n", RunMain(
+                "let d: double = 1.5; putdouble(d / 2.0); putchar(32); putdouble((-d) - 1.0); putchar(32);"
+                        + "if d > 1.25 { putint(1); } else { putint(0); } putln();"));
+    }
+
+    @Test
+    public void testLoop() throws CompileError {
+        assertEquals("1 2 4 5 \n", RunMain(
+                "let i: int = 0;"
+                        + "while i < 10 { i = i + 1; if i == 3 { continue; } if i > 5 { break; } putint(i); putchar(32); }"
+                        + "putln();"));
+    }
+
+    @Test
+    public void testRecursion() throws CompileError {
+        assertEquals("6765\n", RunVm(
+                "fn fib(n: int) -> int { if n < 2 { return n; } return fib(n - 1) + fib(n - 2); }\n"
+                        + "fn main() -> void { putint(fib(20)); putln(); }"));
+    }
+
+    @Test
+    public void testDeepRecursion() throws CompileError {
+        // 超过初始栈大小，栈需要增长
+        assertEquals("200000\n", RunVm(
+                "fn depth(n: int) -> int { if n == 0 { return 0; } return depth(n - 1) + 1; }\n"
+                        + "fn main() -> void { putint(depth(200000)); putln(); }"));
+    }
+
+    @Test
+    public void testDeepRecursionCompiled() throws CompileError {
+        // 编译后的代码递归占用 Java 栈，和解释执行一样能到这个深度，结果不取决于是否编译
+        String source = "fn depth(n: int) -> int { if n == 0 { return 0; } return depth(n - 1) + 1; }\n"
+                + "fn main() -> void { putint(depth(200000)); putln(); }";
+        var setups = new LinkedHashMap<String, Consumer<MiniVm>>();
+        setups.put("jit", MiniVm::compileAll);
+        setups.put("tier", vm -> vm.setTierThreshold(1000));
+        setups.put("closures", vm -> vm.setClosureCompilation(true));
+        for (var setup : setups.entrySet()) {
+            ostream.reset();
+            MiniVm vm = compile(source, "");
+            setup.getValue().accept(vm);
+            vm.Run();
+            assertEquals(setup.getKey(), "200000\n", ostream.toString(java.nio.charset.StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testInfiniteRecursion() throws CompileError {
+        MiniVm vm = compile("fn f(n: int) -> int { return f(n + 1); }\nfn main() -> void { putint(f(0)); }", "");
+
+        Error e = assertThrows(Error.class, vm::Run);
+        assertEquals("stack overflow", e.getMessage());
+    }
+
+    @Test
+    public void testGlobals() throws CompileError {
+        assertEquals("3 10\n", RunVm(
+                "let counter: int;\nconst step: int = 1 + 2;\n"
+                        + "fn bump() -> void { counter = counter + step; }\n"
+                        + "fn main() -> void { bump(); putint(counter); putchar(32); bump(); bump(); putint(counter + 1); putln(); }"));
+    }
+
+    @Test
+    public void testInput() throws CompileError {
+        assertEquals("42 A -0.5\n", RunVm(
+                "fn main() -> void { let c: int = getchar(); let x: int = getint(); let d: double = getdouble();"
+                        + "putint(x); putchar(32); putchar(c); putchar(32); putdouble(d); putln(); }",
+                "A42 -0.5"));
+    }
+
+    @Test
+    public void testPutstr() throws CompileError {
+        assertEquals("hello, world\n", RunMain("putstr(\"hello, \"); putstr(\"world\\n\");"));
+    }
+
+    @Test
+    public void testDivisionByZero() throws CompileError {
+        MiniVm vm = compile("fn main() -> void { let z: int = 0; putint(42); putint(1 / z); }", "");
+
+        Error e = assertThrows(Error.class, vm::Run);
+        assertEquals("division by zero", e.getMessage());
+        // 出错前的输出仍然写出
+        assertEquals("42", ostream.toString(java.nio.charset.StandardCharsets.UTF_8));
+    }
+}
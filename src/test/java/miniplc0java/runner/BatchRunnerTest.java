@@ -0,0 +1,122 @@
+package miniplc0java.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import miniplc0java.vm.MiniVm;
+
+public class BatchRunnerTest {
+    private static final String PRINT_ONE = "fn main() -> void { putint(1); putln(); }";
+
+    private final Path directory;
+
+    public BatchRunnerTest() throws IOException {
+        directory = Files.createTempDirectory("batch");
+        directory.toFile().deleteOnExit();
+    }
+
+    private void write(String file, String content) throws IOException {
+        Path path = directory.resolve(file);
+        Files.writeString(path, content);
+        path.toFile().deleteOnExit();
+    }
+
+    private String run(boolean expectPassed) throws IOException {
+        return run(expectPassed, MiniVm.UNLIMITED);
+    }
+
+    private String run(boolean expectPassed, long fuel) throws IOException {
+        var report = new ByteArrayOutputStream();
+        boolean passed = new BatchRunner(directory.toFile(), 2, false, fuel)
+                .run(new PrintStream(report, true, StandardCharsets.UTF_8));
+        String text = report.toString(StandardCharsets.UTF_8);
+        assertEquals(text, expectPassed, passed);
+        return text;
+    }
+
+    private static void assertStatus(String report, String name, String status) {
+        assertTrue(report, Pattern.compile("(?m)^" + name + " +" + status + " ").matcher(report).find());
+    }
+
+    @Test
+    public void testStatuses() throws IOException {
+        write("pass.c0", PRINT_ONE);
+        write("pass.out", "1\n");
+        write("wrong.c0", PRINT_ONE);
+        write("wrong.out", "2\n");
+        write("syntax.c0", "fn main( -> void {");
+        write("divide.c0", "fn main() -> void { let z: int = 0; putint(1 / z); }");
+        // 没有 .out 时只检查能否正常运行
+        write("unchecked.c0", PRINT_ONE);
+
+        String report = run(false);
+        assertStatus(report, "pass", "PASS");
+        assertStatus(report, "wrong", "WRONG_ANSWER");
+        assertStatus(report, "syntax", "COMPILE_ERROR");
+        assertStatus(report, "divide", "RUNTIME_ERROR");
+        assertTrue(report, Pattern.compile("(?m)^divide +RUNTIME_ERROR .*division by zero$").matcher(report).find());
+        assertStatus(report, "unchecked", "PASS");
+        assertTrue(report, report.contains("cases: 5, passed: 2, failed: 3"));
+    }
+
+    @Test
+    public void testOutOfFuel() throws IOException {
+        write("spin.c0", "fn main() -> void { let i: int = 0; putint(7); while 1 > 0 { i = i + 1; } }");
+        write("quick.c0", PRINT_ONE);
+        write("quick.out", "1\n");
+
+        String report = run(false, 100000);
+        assertTrue(report, Pattern.compile("(?m)^spin +OUT_OF_FUEL .*fuel exhausted: \\d+ of 100000 instructions "
+                + "used, stopped in function main$").matcher(report).find());
+        assertStatus(report, "quick", "PASS");
+        assertTrue(report, report.contains("cases: 2, passed: 1, failed: 1"));
+    }
+
+    @Test
+    public void testTrailingWhitespaceIgnored() throws IOException {
+        write("spaces.c0", "fn main() -> void { putint(1); putchar(32); putchar(32); putln(); putint(2); }");
+        write("spaces.out", "1\n2  \n\n\n");
+        write("crlf.c0", PRINT_ONE);
+        write("crlf.out", "1\r\n");
+        // 行首和行中间的空白不忽略
+        write("leading.c0", PRINT_ONE);
+        write("leading.out", " 1\n");
+
+        String report = run(false);
+        assertStatus(report, "spaces", "PASS");
+        assertStatus(report, "crlf", "PASS");
+        assertStatus(report, "leading", "WRONG_ANSWER");
+    }
+
+    @Test
+    public void testLatencyPercentiles() throws IOException {
+        for (int i = 0; i < 12; i++) {
+            write("case" + i + ".c0", PRINT_ONE);
+            write("case" + i + ".out", "1\n");
+        }
+
+        String report = run(true);
+        assertTrue(report, report.contains("cases: 12, passed: 12, failed: 0"));
+        Matcher m = Pattern.compile("(?m)^latency: p50 ([\\d.]+) ms, p90 ([\\d.]+) ms, p99 ([\\d.]+) ms, "
+                + "max ([\\d.]+) ms$").matcher(report);
+        assertTrue(report, m.find());
+        double p50 = Double.parseDouble(m.group(1));
+        double p90 = Double.parseDouble(m.group(2));
+        double p99 = Double.parseDouble(m.group(3));
+        double max = Double.parseDouble(m.group(4));
+        assertTrue(report, p50 <= p90 && p90 <= p99 && p99 <= max);
+        // 12 个用例时 p99 的秩是 12，就是最大值
+        assertEquals(report, m.group(4), m.group(3));
+    }
+}
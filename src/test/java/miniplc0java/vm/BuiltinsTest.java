@@ -0,0 +1,202 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class BuiltinsTest {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private Builtins builtins(String input, String... globals) {
+        return new Builtins(globals, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), output);
+    }
+
+    private String flushed(Builtins builtins) {
+        builtins.flush();
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private static double getdouble(String input) {
+        return Double.longBitsToDouble(new Builtins(new String[0],
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), OutputStream.nullOutputStream())
+                .getdouble());
+    }
+
+    private static String putdouble(double d) {
+        var out = new ByteArrayOutputStream();
+        var builtins = new Builtins(new String[0], new ByteArrayInputStream(new byte[0]), out);
+        builtins.putdouble(Double.doubleToRawLongBits(d));
+        builtins.flush();
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testIndex() {
+        for (int i = 0; i < Builtins.NAMES.length; i++) {
+            assertEquals(i, Builtins.index(Builtins.NAMES[i]));
+        }
+        assertEquals(Builtins.PUTLN, Builtins.index("putln"));
+        assertEquals(-1, Builtins.index("printf"));
+    }
+
+    @Test
+    public void testGetint() {
+        Builtins builtins = builtins("  42\n-7\t+5\r\n0 007");
+        assertEquals(42, builtins.getint());
+        assertEquals(-7, builtins.getint());
+        assertEquals(5, builtins.getint());
+        assertEquals(0, builtins.getint());
+        assertEquals(7, builtins.getint());
+    }
+
+    @Test
+    public void testGetintLimits() {
+        Builtins builtins = builtins("9223372036854775807 -9223372036854775808");
+        assertEquals(Long.MAX_VALUE, builtins.getint());
+        assertEquals(Long.MIN_VALUE, builtins.getint());
+    }
+
+    @Test
+    public void testGetintOutOfRange() {
+        assertEquals("integer input out of range",
+                assertThrows(Error.class, () -> builtins("9223372036854775808").getint()).getMessage());
+        assertEquals("integer input out of range",
+                assertThrows(Error.class, () -> builtins("-9223372036854775809").getint()).getMessage());
+    }
+
+    @Test
+    public void testGetintInvalid() {
+        assertEquals("invalid integer input", assertThrows(Error.class, () -> builtins("abc").getint()).getMessage());
+        assertEquals("invalid integer input", assertThrows(Error.class, () -> builtins("- 1").getint()).getMessage());
+        assertEquals("unexpected end of input", assertThrows(Error.class, () -> builtins(" \n").getint()).getMessage());
+    }
+
+    @Test
+    public void testGetintStopsAtNonDigit() {
+        Builtins builtins = builtins("12abc");
+        assertEquals(12, builtins.getint());
+        assertEquals('a', builtins.getchar());
+    }
+
+    @Test
+    public void testGetdouble() {
+        assertEquals(3.25, getdouble("3.25"), 0);
+        assertEquals(-0.5, getdouble(" -0.5"), 0);
+        assertEquals(0.1, getdouble("0.1"), 0);
+        assertEquals(0.5, getdouble(".5"), 0);
+        assertEquals(5.0, getdouble("5."), 0);
+        assertEquals(1000.0, getdouble("1e3"), 0);
+        assertEquals(0.015, getdouble("1.5E-2"), 0);
+        assertEquals(42.0, getdouble("+42"), 0);
+    }
+
+    @Test
+    public void testGetdoubleFallsBackToParseDouble() {
+        // 有效数字或指数超出快速路径的范围时与 Double.parseDouble 一致
+        for (String s : new String[]{"3.14159265358979323846", "123456789012345678901234567890", "1e-300",
+                "2.2250738585072014E-308", "0.000000000000000000000000001", "1e23"}) {
+            assertEquals(s, Double.parseDouble(s), getdouble(s), 0);
+        }
+        assertEquals(Double.POSITIVE_INFINITY, getdouble("1e400"), 0);
+    }
+
+    @Test
+    public void testGetdoubleInvalid() {
+        assertEquals("invalid double input", assertThrows(Error.class, () -> getdouble("abc")).getMessage());
+        assertEquals("invalid double input", assertThrows(Error.class, () -> getdouble("1e")).getMessage());
+        assertEquals("invalid double input", assertThrows(Error.class, () -> getdouble(".")).getMessage());
+    }
+
+    @Test
+    public void testGetchar() {
+        Builtins builtins = builtins("a\né中😀");
+        assertEquals('a', builtins.getchar());
+        assertEquals('\n', builtins.getchar());
+        assertEquals(0xe9, builtins.getchar());
+        assertEquals(0x4e2d, builtins.getchar());
+        assertEquals(0x1f600, builtins.getchar());
+        assertEquals(-1, builtins.getchar());
+    }
+
+    @Test
+    public void testPutint() {
+        Builtins builtins = builtins("");
+        for (long x : new long[]{0, 7, -1, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            builtins.putint(x);
+            builtins.putln();
+        }
+        assertEquals("0\n7\n-1\n1234567890123\n9223372036854775807\n-9223372036854775808\n", flushed(builtins));
+    }
+
+    @Test
+    public void testPutdouble() {
+        assertEquals("0.0", putdouble(0.0));
+        assertEquals("-0.0", putdouble(-0.0));
+        assertEquals("1.0", putdouble(1.0));
+        assertEquals("-3.0", putdouble(-3.0));
+        assertEquals("12.25", putdouble(12.25));
+        assertEquals("9999999.0", putdouble(9999999.0));
+        assertEquals("1.0E7", putdouble(1e7));
+        assertEquals("1.0E-5", putdouble(1e-5));
+        assertEquals("NaN", putdouble(Double.NaN));
+        assertEquals("-Infinity", putdouble(Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void testPutcharAndPutstr() {
+        Builtins builtins = builtins("", "main", "héllo");
+        builtins.putchar('a');
+        builtins.putchar(0xe9);
+        builtins.putchar(0x4e2d);
+        builtins.putchar(0x1f600);
+        builtins.putstr(1);
+        assertEquals("aé中😀héllo", flushed(builtins));
+    }
+
+    @Test
+    public void testOutputLargerThanBuffer() {
+        Builtins builtins = builtins("");
+        var expected = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            builtins.putint(i);
+            builtins.putln();
+            expected.append(i).append('\n');
+        }
+        assertEquals(expected.toString(), flushed(builtins));
+    }
+
+    @Test
+    public void testReadFlushesPendingOutput() {
+        Builtins builtins = builtins("5");
+        builtins.putint(1);
+        builtins.getint();
+        assertEquals("1", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFinishKeepsOriginalFailure() {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        var builtins = new Builtins(new String[0], new ByteArrayInputStream(new byte[0]), broken);
+        builtins.putint(1);
+        var failure = new Error("division by zero");
+        builtins.finish(failure);
+        assertEquals(1, failure.getSuppressed().length);
+        assertEquals("failed to write output", failure.getSuppressed()[0].getMessage());
+
+        builtins.putint(1);
+        Error e = assertThrows(Error.class, () -> builtins.finish(null));
+        assertEquals("failed to write output", e.getMessage());
+    }
+}
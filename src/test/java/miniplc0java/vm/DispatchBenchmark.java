@@ -0,0 +1,69 @@
+package miniplc0java.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import miniplc0java.error.CompileError;
+
+/**
+ * 比较解释器各个分派循环的速度
+ *
+ * 用法：DispatchBenchmark 程序.c0 [输入文件] [轮数]。每种方式先预热再计时，程序的输出丢弃，
+ * 报告每轮的平均时间和相对普通循环的加速比。不开启 JIT，寄存器形式翻译不了的函数仍由普通循环执行。
+ * 同一种方式的各轮共享一个 CodeImage，翻译和闭包编译只在第一轮预热时进行一次。
+ *
+ * 放在测试源码里，不进入发布的 JAR，从 IDE 或者用测试的 classpath 直接运行 main。
+ */
+public class DispatchBenchmark {
+    private static final int WARMUP = 5;
+
+    private DispatchBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, CompileError {
+        if (args.length < 1) {
+            System.err.println("usage: DispatchBenchmark <file.c0> [input] [rounds]");
+            System.exit(2);
+            return;
+        }
+        Module module = Programs.load(Files.readString(Path.of(args[0])));
+        byte[] input = args.length > 1 ? Files.readAllBytes(Path.of(args[1])) : new byte[0];
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        double plain = measure(module, input, rounds, vm -> { });
+        double cached = measure(module, input, rounds, vm -> vm.setTopOfStackCaching(true));
+        double registers = measure(module, input, rounds, vm -> vm.setRegisterForm(true));
+        double closures = measure(module, input, rounds, vm -> vm.setClosureCompilation(true));
+        System.out.printf("plain:            %10.3f ms/round%n", plain);
+        System.out.printf("top-of-stack:     %10.3f ms/round  (%.2fx)%n", cached, plain / cached);
+        System.out.printf("registers:        %10.3f ms/round  (%.2fx)%n", registers, plain / registers);
+        System.out.printf("closures:         %10.3f ms/round  (%.2fx)%n", closures, plain / closures);
+    }
+
+    /**
+     * @param setup 运行前对 MiniVm 的设置，选择执行方式
+     */
+    private static double measure(Module module, byte[] input, int rounds, Consumer<MiniVm> setup) {
+        var out = new PrintStream(OutputStream.nullOutputStream());
+        var image = new CodeImage(module);
+        for (int i = 0; i < WARMUP; i++) {
+            run(image, input, out, setup);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            run(image, input, out, setup);
+        }
+        return (System.nanoTime() - start) / 1e6 / rounds;
+    }
+
+    private static void run(CodeImage image, byte[] input, PrintStream out, Consumer<MiniVm> setup) {
+        var vm = new MiniVm(image, new ByteArrayInputStream(input), out);
+        setup.accept(vm);
+        vm.Run();
+    }
+}
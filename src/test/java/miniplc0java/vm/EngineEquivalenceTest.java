@@ -0,0 +1,109 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import miniplc0java.error.CompileError;
+
+/**
+ * 同一个程序在每种执行方式下的输出都应该相同
+ */
+public class EngineEquivalenceTest {
+    private static final String[] PROGRAMS = {"misc", "loops", "snap", "deep"};
+
+    private static Map<String, Consumer<MiniVm>> engines() {
+        var engines = new LinkedHashMap<String, Consumer<MiniVm>>();
+        engines.put("plain", vm -> { });
+        engines.put("tos", vm -> vm.setTopOfStackCaching(true));
+        engines.put("registers", vm -> vm.setRegisterForm(true));
+        engines.put("closures", vm -> vm.setClosureCompilation(true));
+        engines.put("jit", MiniVm::compileAll);
+        // 阈值很小，让函数和循环在运行中途切换到编译后的代码
+        engines.put("tier", vm -> vm.setTierThreshold(2));
+        engines.put("trace", vm -> vm.setTracing(2));
+        engines.put("fuel", vm -> vm.setFuel(Long.MAX_VALUE));
+        return engines;
+    }
+
+    @Test
+    public void testInterpreters() throws CompileError {
+        for (String name : PROGRAMS) {
+            Module module = Programs.load(Programs.source(name));
+            for (var engine : engines().entrySet()) {
+                // 每种方式用一份新的 CodeImage，不共用编译结果
+                assertEquals(name + " on " + engine.getKey(), Programs.expected(name),
+                        Programs.run(new CodeImage(module), Programs.input(name), engine.getValue()));
+            }
+        }
+    }
+
+    @Test
+    public void testUnfused() throws CompileError {
+        for (String name : PROGRAMS) {
+            Module module = Programs.decode(Programs.source(name));
+            for (var engine : engines().entrySet()) {
+                assertEquals(name + " on " + engine.getKey(), Programs.expected(name),
+                        Programs.run(new CodeImage(module), Programs.input(name), engine.getValue()));
+            }
+        }
+    }
+
+    @Test
+    public void testSharedImage() throws CompileError {
+        // 多个 MiniVm 共用一个 CodeImage，后运行的直接用先运行的编译结果
+        CodeImage image = new CodeImage(Programs.load(Programs.source("loops")));
+        for (var engine : engines().entrySet()) {
+            assertEquals("loops on " + engine.getKey(), Programs.expected("loops"),
+                    Programs.run(image, Programs.input("loops"), engine.getValue()));
+        }
+    }
+
+    @Test
+    public void testAot() throws CompileError, IOException, InterruptedException {
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        for (String name : PROGRAMS) {
+            Path jar = Files.createTempFile(name, ".jar");
+            try {
+                try (OutputStream out = Files.newOutputStream(jar)) {
+                    AotCompiler.compile(Programs.load(Programs.source(name)), out);
+                }
+                Process process = new ProcessBuilder(java.toString(), "-jar", jar.toString())
+                        .redirectErrorStream(true).start();
+                try (OutputStream in = process.getOutputStream()) {
+                    in.write(Programs.input(name).getBytes(StandardCharsets.UTF_8));
+                }
+                String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                assertEquals(name + " on aot", 0, process.waitFor());
+                assertEquals(name + " on aot", Programs.expected(name), output);
+            } finally {
+                Files.deleteIfExists(jar);
+            }
+        }
+    }
+
+    @Test
+    public void testProfiler() throws CompileError {
+        for (String name : PROGRAMS) {
+            var output = new ByteArrayOutputStream();
+            var profiler = new Profiler(Programs.decode(Programs.source(name)),
+                    new ByteArrayInputStream(Programs.input(name).getBytes(StandardCharsets.UTF_8)),
+                    new PrintStream(output));
+            profiler.Run();
+            assertEquals(name + " on profiler", Programs.expected(name), output.toString(StandardCharsets.UTF_8));
+        }
+    }
+}
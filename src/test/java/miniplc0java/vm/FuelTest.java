@@ -0,0 +1,130 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import miniplc0java.error.CompileError;
+
+public class FuelTest {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private MiniVm vm(Module module, String input) {
+        return new MiniVm(module, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(output));
+    }
+
+    /**
+     * Profiler 报告的执行指令数，Profiler 执行的是同一个没有融合的模块
+     */
+    private static long profiledInstructions(Module module, String input) {
+        var profiler = new Profiler(module, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(new ByteArrayOutputStream()));
+        profiler.Run();
+        var report = new ByteArrayOutputStream();
+        profiler.report(new PrintStream(report, true, StandardCharsets.UTF_8));
+        Matcher m = Pattern.compile("instructions: (\\d+)").matcher(report.toString(StandardCharsets.UTF_8));
+        assertTrue(m.find());
+        return Long.parseLong(m.group(1));
+    }
+
+    @Test
+    public void testExhaustion() throws CompileError {
+        MiniVm vm = vm(Programs.load(Programs.source("spin")), "");
+        vm.setFuel(1000);
+        FuelExhaustedError e = assertThrows(FuelExhaustedError.class, vm::Run);
+
+        assertEquals(1000, e.getBudget());
+        assertTrue(e.getUsed() <= 1000);
+        assertTrue(e.getUsed() > 900);
+        assertEquals(e.getUsed(), vm.fuelUsed());
+        assertEquals("main", e.getFunction());
+        assertEquals("fuel exhausted: " + e.getUsed() + " of 1000 instructions used, stopped in function main",
+                e.getMessage());
+        // 停下前的输出没有丢
+        assertEquals("7\n", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testExactBudget() throws CompileError {
+        // 没有融合的模块上，计量的指令数就是 o0 的指令数
+        Module module = Programs.decode(Programs.source("misc"));
+        String input = Programs.input("misc");
+        long instructions = profiledInstructions(module, input);
+
+        MiniVm vm = vm(module, input);
+        vm.setFuel(instructions);
+        vm.Run();
+        assertEquals(instructions, vm.fuelUsed());
+        assertEquals(Programs.expected("misc"), output.toString(StandardCharsets.UTF_8));
+
+        MiniVm tooShort = vm(module, input);
+        tooShort.setFuel(instructions - 1);
+        assertThrows(FuelExhaustedError.class, tooShort::Run);
+    }
+
+    @Test
+    public void testFusedProgramUsesLessFuel() throws CompileError {
+        String input = Programs.input("misc");
+        MiniVm plain = vm(Programs.decode(Programs.source("misc")), input);
+        plain.setFuel(MiniVm.UNLIMITED - 1);
+        plain.Run();
+        MiniVm fused = vm(Programs.load(Programs.source("misc")), input);
+        fused.setFuel(MiniVm.UNLIMITED - 1);
+        fused.Run();
+        assertTrue(fused.fuelUsed() < plain.fuelUsed());
+    }
+
+    @Test
+    public void testBudgetAppliesWithJit() throws CompileError {
+        // 设置了预算时编译过的函数也回到解释执行
+        MiniVm vm = vm(Programs.load(Programs.source("spin")), "");
+        vm.compileAll();
+        vm.setTierThreshold(2);
+        vm.setTracing(2);
+        vm.setFuel(5000);
+        assertThrows(FuelExhaustedError.class, vm::Run);
+        assertTrue(vm.fuelUsed() <= 5000);
+    }
+
+    @Test
+    public void testBudgetKeepsConfiguration() throws CompileError {
+        // 有预算的 Run 之后，不限预算的 Run 仍然使用编译过的代码和分层执行
+        Module module = Programs.load("fn next(n: int) -> int { return n + 1; }\n"
+                + "fn main() -> void { let i: int = 0; while i < 10 { i = next(i); } putint(i); }");
+        MiniVm jit = vm(module, "");
+        int compiled = jit.compileAll();
+        jit.setTierThreshold(5);
+        jit.setFuel(MiniVm.UNLIMITED - 1);
+        jit.Run();
+        jit.setFuel(MiniVm.UNLIMITED);
+        jit.Run();
+        assertEquals(compiled, jit.compiledCount());
+
+        MiniVm tier = vm(module, "");
+        tier.setTierThreshold(2);
+        tier.setFuel(MiniVm.UNLIMITED - 1);
+        tier.Run();
+        assertEquals(0, tier.compiledCount());
+        tier.setFuel(MiniVm.UNLIMITED);
+        tier.Run();
+        assertTrue(tier.compiledCount() > 0);
+        assertEquals("10101010", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testNegativeBudget() {
+        MiniVm vm = new MiniVm(new ArrayList<>(), new ArrayList<>());
+        assertThrows(IllegalArgumentException.class, () -> vm.setFuel(-1));
+    }
+}
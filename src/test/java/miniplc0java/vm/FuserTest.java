@@ -0,0 +1,109 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import miniplc0java.error.CompileError;
+
+public class FuserTest {
+    /**
+     * 两个函数 _start 和 main 的模块，_start 是 instructions 加上一条 ret，main 只有一条 ret
+     *
+     * @param instructions 依次是操作码和操作数，跳转的操作数是绝对位置
+     */
+    private static Module module(long... instructions) {
+        int n = instructions.length / 2;
+        int[] code = new int[n + 2];
+        long[] operands = new long[n + 2];
+        for (int i = 0; i < n; i++) {
+            code[i] = (int) instructions[2 * i];
+            operands[i] = instructions[2 * i + 1];
+        }
+        code[n] = Opcode.RET;
+        code[n + 1] = Opcode.RET;
+        return new Module(code, operands, new int[]{0, n + 1}, new int[]{0, 1}, new int[]{0, 0},
+                new int[]{0, 0}, new int[]{2, 0}, new String[]{"_start", "main"});
+    }
+
+    private static void assertFused(Module fused, long... instructions) {
+        int n = instructions.length / 2;
+        assertEquals(n + 2, fused.code.length);
+        for (int i = 0; i < n; i++) {
+            assertEquals("opcode at " + i, Opcode.name((int) instructions[2 * i]), Opcode.name(fused.code[i]));
+            assertEquals("operand at " + i, instructions[2 * i + 1], fused.operands[i]);
+        }
+        assertArrayEquals(new int[]{0, n + 1}, fused.entry);
+    }
+
+    @Test
+    public void testLoads() {
+        Module fused = Fuser.fuse(module(Opcode.LOCA, 1, Opcode.LOAD64, 0, Opcode.GLOBA, 3, Opcode.LOAD64, 0,
+                Opcode.ADDI, 0, Opcode.ARGA, 0, Opcode.LOAD64, 0, Opcode.ADDI, 0, Opcode.POP, 0));
+        assertFused(fused, Opcode.LOCA_LOAD, 1, Opcode.GLOBA_LOAD, 3, Opcode.ADDI, 0, Opcode.ARGA_LOAD, 0,
+                Opcode.ADDI, 0, Opcode.POP, 0);
+    }
+
+    @Test
+    public void testComparisons() {
+        Module fused = Fuser.fuse(module(Opcode.PUSH, 1, Opcode.PUSH, 2, Opcode.CMPI, 0, Opcode.SETGT, 0,
+                Opcode.NOT, 0, Opcode.PUSH, 3, Opcode.CMPI, 0, Opcode.SETLT, 0, Opcode.PUSH, 4, Opcode.CMPI, 0,
+                Opcode.NOT, 0, Opcode.POP, 0));
+        assertFused(fused, Opcode.PUSH, 1, Opcode.PUSH, 2, Opcode.CMPI_LE, 0, Opcode.PUSH, 3, Opcode.CMPI_LT, 0,
+                Opcode.PUSH, 4, Opcode.CMPI_EQ, 0, Opcode.POP, 0);
+    }
+
+    @Test
+    public void testConditionalJumps() {
+        // while a < b 的条件：不满足时跳出循环，跳转目标随之换算
+        Module fused = Fuser.fuse(module(Opcode.LOCA, 0, Opcode.LOAD64, 0, Opcode.LOCA, 1, Opcode.LOAD64, 0,
+                Opcode.CMPI, 0, Opcode.SETLT, 0, Opcode.NOT, 0, Opcode.BRTRUE, 9, Opcode.BR, 10, Opcode.BR, 0));
+        assertFused(fused, Opcode.LOCA_LOAD, 0, Opcode.LOCA_LOAD, 1, Opcode.JLT, 4, Opcode.BR, 0);
+
+        fused = Fuser.fuse(module(Opcode.PUSH, 1, Opcode.PUSH, 2, Opcode.CMPI, 0, Opcode.BRTRUE, 5,
+                Opcode.BR, 0, Opcode.NOP, 0));
+        assertFused(fused, Opcode.PUSH, 1, Opcode.PUSH, 2, Opcode.JEQ, 0, Opcode.NOP, 0);
+
+        fused = Fuser.fuse(module(Opcode.PUSH, 1, Opcode.BRTRUE, 3, Opcode.BR, 4, Opcode.NOP, 0, Opcode.NOP, 0));
+        assertFused(fused, Opcode.PUSH, 1, Opcode.BRFALSE, 3, Opcode.NOP, 0, Opcode.NOP, 0);
+    }
+
+    @Test
+    public void testJumpTargetInsidePattern() {
+        // load64 是跳转目标，loca; load64 不能合成
+        Module fused = Fuser.fuse(module(Opcode.LOCA, 0, Opcode.LOAD64, 0, Opcode.POP, 0, Opcode.LOCA, 0,
+                Opcode.BR, 1));
+        assertFused(fused, Opcode.LOCA, 0, Opcode.LOAD64, 0, Opcode.POP, 0, Opcode.LOCA, 0, Opcode.BR, 1);
+    }
+
+    @Test
+    public void testBrtrueNotSkippingBr() {
+        // brtrue 没有正好跳过后面的 br，不是 Analyser 的条件跳转
+        Module fused = Fuser.fuse(module(Opcode.PUSH, 1, Opcode.BRTRUE, 4, Opcode.BR, 3, Opcode.NOP, 0,
+                Opcode.NOP, 0));
+        assertFused(fused, Opcode.PUSH, 1, Opcode.BRTRUE, 4, Opcode.BR, 3, Opcode.NOP, 0, Opcode.NOP, 0);
+    }
+
+    @Test
+    public void testPatternAcrossFunctions() {
+        // 函数入口也是跳转目标，_start 末尾的 loca 和 main 开头的 load64 不合成
+        int[] code = {Opcode.LOCA, Opcode.LOAD64, Opcode.RET};
+        var module = new Module(code, new long[3], new int[]{0, 1}, new int[]{0, 1}, new int[]{0, 0},
+                new int[]{0, 0}, new int[]{1, 0}, new String[]{"_start", "main"});
+        assertArrayEquals(code, Fuser.fuse(module).code);
+    }
+
+    @Test
+    public void testSameBehaviour() throws CompileError {
+        for (String name : new String[]{"misc", "snap"}) {
+            Module decoded = Programs.decode(Programs.source(name));
+            Module fused = Programs.load(Programs.source(name));
+            assertTrue(fused.code.length < decoded.code.length);
+            Verifier.verify(fused);
+            assertEquals(Programs.expected(name), Programs.run(decoded, Programs.input(name)));
+            assertEquals(Programs.expected(name), Programs.run(fused, Programs.input(name)));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class MemoryTest {
+    private final Memory memory = new Memory(3, new long[16]);
+
+    private void assertInvalidFree(long address) {
+        Error e = assertThrows(Error.class, () -> memory.free(address));
+        assertEquals("invalid free of address " + address, e.getMessage());
+    }
+
+    @Test
+    public void testGlobalsAndStack() {
+        memory.store64(Memory.global(2), 42);
+        assertEquals(42, memory.load64(Memory.global(2)));
+        memory.store64(Memory.slot(3), -1);
+        assertEquals(-1, memory.stack[3]);
+        // 栈上的窄访问只改对应的字节
+        memory.store8(Memory.slot(4) + 1, 0xab);
+        assertEquals(0xab00L, memory.stack[4]);
+        assertEquals(0xab, memory.load8(Memory.slot(4) + 1));
+        memory.store32(Memory.slot(4) + 4, 0x12345678);
+        assertEquals(0x1234567800000000L | 0xab00L, memory.stack[4]);
+        assertEquals(0x1234, memory.load16(Memory.slot(4) + 6));
+    }
+
+    @Test
+    public void testInvalidAddresses() {
+        assertThrows(Error.class, () -> memory.load64(0));
+        assertThrows(Error.class, () -> memory.load64(Memory.slot(16)));
+        // 跨过槽边界
+        assertThrows(Error.class, () -> memory.load32(Memory.slot(1) + 6));
+    }
+
+    @Test
+    public void testAllocReturnsZeroedDistinctBlocks() {
+        var seen = new HashSet<Long>();
+        for (int size = 0; size < 2000; size += 7) {
+            long p = memory.alloc(size);
+            assertTrue(seen.add(p));
+            for (int i = 0; i + 8 <= size; i += 8) {
+                assertEquals(0, memory.load64(p + i));
+                memory.store64(p + i, -1);
+            }
+        }
+    }
+
+    @Test
+    public void testFreedBlockIsReusedAndCleared() {
+        long p = memory.alloc(100);
+        memory.store64(p, 123);
+        memory.free(p);
+        assertEquals(p, memory.alloc(100));
+        assertEquals(0, memory.load64(p));
+    }
+
+    @Test
+    public void testLargeBlocksGrowTheHeap() {
+        long p = memory.alloc(1 << 20);
+        memory.store64(p + (1 << 20) - 8, 7);
+        long q = memory.alloc(1 << 20);
+        assertNotEquals(p, q);
+        assertEquals(7, memory.load64(p + (1 << 20) - 8));
+        memory.free(p);
+        assertEquals(p, memory.alloc((1 << 20) + 100));
+    }
+
+    @Test
+    public void testFreeNullIsIgnored() {
+        memory.free(0);
+    }
+
+    @Test
+    public void testInvalidFree() {
+        long p = memory.alloc(100);
+        assertInvalidFree(p + 1);
+        assertInvalidFree(Memory.global(0));
+        assertInvalidFree(p + 4096 * 16);
+        assertInvalidFree(-8);
+    }
+
+    @Test
+    public void testDoubleFree() {
+        long p = memory.alloc(100);
+        memory.free(p);
+        assertInvalidFree(p);
+    }
+
+    @Test
+    public void testFreeInsideLiveBlock() {
+        // 块内 16 的倍数处的地址和块起点对齐方式相同，块头位置是程序自己的数据，不能当作块大小
+        long p = memory.alloc(100);
+        memory.store64(p + 8, 48);
+        assertInvalidFree(p + 16);
+        memory.store64(p + 8, 0);
+        assertInvalidFree(p + 16);
+        // 堆没有被破坏：之后的分配不会落在 p 的块里
+        for (int i = 0; i < 100; i++) {
+            long q = memory.alloc(30);
+            assertTrue(q + 30 <= p - 8 || q >= p + 100);
+        }
+        memory.free(p);
+    }
+
+    @Test
+    public void testInvalidAllocationSize() {
+        assertThrows(Error.class, () -> memory.alloc(-1));
+        assertThrows(Error.class, () -> memory.alloc(1L << 40));
+    }
+
+    @Test
+    public void testReport() {
+        long p = memory.alloc(100);
+        memory.alloc(10);
+        memory.free(p);
+        var out = new ByteArrayOutputStream();
+        memory.report(new PrintStream(out, true, StandardCharsets.UTF_8));
+        String report = out.toString(StandardCharsets.UTF_8);
+        assertTrue(report, report.startsWith("heap: 2 allocs (0 large), 1 frees\nheap: in use 10 bytes, peak 110 bytes"));
+    }
+
+    @Test
+    public void testEnsureStack() {
+        long[] stack = memory.stack;
+        stack[15] = 9;
+        long[] grown = memory.ensureStack(100);
+        assertTrue(grown.length >= 100);
+        assertEquals(9, grown[15]);
+        assertEquals(grown, memory.stack);
+        assertEquals(grown, memory.ensureStack(50));
+        memory.store64(Memory.slot(99), 5);
+        assertEquals(5, grown[99]);
+        assertEquals("stack overflow",
+                assertThrows(Error.class, () -> memory.ensureStack(Memory.MAX_STACK_SLOTS + 1)).getMessage());
+    }
+}
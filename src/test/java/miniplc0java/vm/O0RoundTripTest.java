@@ -0,0 +1,128 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.out;
+import miniplc0java.error.CompileError;
+
+/**
+ * out.Out 写出的 o0 文件由 Loader 读回后与直接从分析结果解码的模块相同，运行结果也相同
+ */
+public class O0RoundTripTest {
+    private static Path emit(Analyser analyser) throws IOException {
+        Path file = Files.createTempFile("roundtrip", ".o0");
+        file.toFile().deleteOnExit();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            out.Out(channel, analyser.getGlobalVariable(), analyser.getFnLists());
+        }
+        return file;
+    }
+
+    private static void assertSameModule(Module expected, Module actual) {
+        assertArrayEquals(expected.code, actual.code);
+        assertArrayEquals(expected.operands, actual.operands);
+        assertArrayEquals(expected.entry, actual.entry);
+        assertArrayEquals(expected.names, actual.names);
+        assertArrayEquals(expected.retSlots, actual.retSlots);
+        assertArrayEquals(expected.paramSlots, actual.paramSlots);
+        assertArrayEquals(expected.locSlots, actual.locSlots);
+        // 分析结果里变量记作 "0"/"1"，o0 里是 8 个零字节，只比较函数名和字符串常量
+        assertEquals(expected.globals.length, actual.globals.length);
+        for (int i = 0; i < expected.globals.length; i++) {
+            if (!expected.globals[i].equals("0") && !expected.globals[i].equals("1")) {
+                assertEquals(expected.globals[i], actual.globals[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeEmittedFile() throws CompileError, IOException {
+        Analyser analyser = Programs.analyse(Programs.source("misc"));
+        Path file = emit(analyser);
+
+        assertSameModule(Loader.decode(analyser.getGlobalVariable(), analyser.getFnLists()), Loader.decode(file));
+        assertSameModule(Loader.load(analyser.getGlobalVariable(), analyser.getFnLists()), Loader.load(file));
+    }
+
+    @Test
+    public void testRunEmittedFile() throws CompileError, IOException {
+        Path file = emit(Programs.analyse(Programs.source("misc")));
+
+        assertEquals(Programs.expected("misc"), Programs.run(Loader.load(file), Programs.input("misc")));
+        assertEquals(Programs.expected("misc"), Programs.run(Loader.decode(file), Programs.input("misc")));
+    }
+
+    @Test
+    public void testHeader() throws CompileError, IOException {
+        Analyser analyser = Programs.analyse("fn main() -> void { putint(1); }");
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(emit(analyser)));
+
+        assertEquals(0x72303b3e, bytes.getInt());
+        assertEquals(1, bytes.getInt());
+        assertEquals(analyser.getGlobalVariable().size(), bytes.getInt());
+    }
+
+    @Test
+    public void testStreamAndFileOutputAgree() throws CompileError, IOException {
+        Analyser analyser = Programs.analyse(Programs.source("misc"));
+        var stream = new ByteArrayOutputStream();
+        out.Out(Channels.newChannel(stream), analyser.getGlobalVariable(), analyser.getFnLists());
+
+        assertArrayEquals(Files.readAllBytes(emit(analyser)), stream.toByteArray());
+    }
+
+    /**
+     * 只有一个全局变量 _start 和一个函数的 o0 文件，函数体是一条指令
+     *
+     * @param operand 为 null 时指令没有操作数
+     */
+    private static Path single(int op, Integer operand) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(64);
+        bytes.putInt(0x72303b3e).putInt(1);
+        bytes.putInt(1).put((byte) 1).putInt(6).put("_start".getBytes(StandardCharsets.UTF_8));
+        bytes.putInt(1).putInt(0).putInt(0).putInt(0).putInt(0).putInt(1).put((byte) op);
+        if (operand != null) {
+            bytes.putInt(operand);
+        }
+        Path file = Files.createTempFile("corrupted", ".o0");
+        file.toFile().deleteOnExit();
+        Files.write(file, Arrays.copyOf(bytes.array(), bytes.position()));
+        return file;
+    }
+
+    @Test
+    public void testCorruptedFile() throws IOException {
+        // 结构完整但操作数不合法，和截断的文件一样报告
+        Path file = single(Opcode.CALLNAME, 60932);
+        IOException e = assertThrows(IOException.class, () -> Loader.load(file));
+        assertEquals(file + " is truncated or corrupted", e.getMessage());
+        assertEquals("callname to unknown global 60932 in function 0", e.getCause().getMessage());
+
+        // 操作数都合法，但通不过 Verifier
+        Path underflow = single(Opcode.POP, null);
+        e = assertThrows(IOException.class, () -> Loader.decode(underflow));
+        assertEquals(underflow + " is truncated or corrupted", e.getMessage());
+        assertEquals("verification failed in function _start at 0: operand stack underflow",
+                e.getCause().getMessage());
+
+        Path truncated = single(Opcode.CALLNAME, null);
+        e = assertThrows(IOException.class, () -> Loader.load(truncated));
+        assertEquals(truncated + " is truncated or corrupted", e.getMessage());
+    }
+}
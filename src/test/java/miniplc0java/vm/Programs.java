@@ -0,0 +1,93 @@
+package miniplc0java.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.function.Consumer;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 测试和基准共用的辅助方法：编译 c0 源程序，在 MiniVm 上运行并取得输出
+ *
+ * 测试用的程序在 src/test/resources/programs 下，name.c0 是源程序，name.in 是输入（可以没有），
+ * name.out 是期望的输出。
+ */
+final class Programs {
+    private Programs() {
+    }
+
+    /**
+     * programs 下的文件，不存在时为 null
+     */
+    static String resource(String file) {
+        try (InputStream in = Programs.class.getResourceAsStream("/programs/" + file)) {
+            return in == null ? null : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new Error("failed to read " + file, e);
+        }
+    }
+
+    static String source(String name) {
+        String source = resource(name + ".c0");
+        if (source == null) {
+            throw new Error("missing program " + name);
+        }
+        return source;
+    }
+
+    static String input(String name) {
+        String input = resource(name + ".in");
+        return input == null ? "" : input;
+    }
+
+    static String expected(String name) {
+        return resource(name + ".out");
+    }
+
+    static Analyser analyse(String source) throws CompileError {
+        var analyser = new Analyser(new Tokenizer(new StringIter(new Scanner(source))));
+        analyser.analyseProgram();
+        return analyser;
+    }
+
+    /**
+     * 编译并融合，同 --run
+     */
+    static Module load(String source) throws CompileError {
+        Analyser analyser = analyse(source);
+        return Loader.load(analyser.getGlobalVariable(), analyser.getFnLists());
+    }
+
+    /**
+     * 编译，不融合，同 --profile
+     */
+    static Module decode(String source) throws CompileError {
+        Analyser analyser = analyse(source);
+        return Loader.decode(analyser.getGlobalVariable(), analyser.getFnLists());
+    }
+
+    /**
+     * @param setup 运行前对 MiniVm 的设置，选择执行方式
+     * @return 程序的输出
+     */
+    static String run(CodeImage image, String input, Consumer<MiniVm> setup) {
+        var output = new ByteArrayOutputStream();
+        var vm = new MiniVm(image, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(output));
+        setup.accept(vm);
+        vm.Run();
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    static String run(Module module, String input) {
+        return run(new CodeImage(module), input, vm -> { });
+    }
+}
@@ -0,0 +1,59 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import miniplc0java.error.CompileError;
+
+public class SamplerTest {
+    /** folded stack 格式的一行：从最外层的 _start 开始以分号分隔的函数名，空格，采样次数 */
+    private static final Pattern LINE = Pattern.compile("(_start(?:;\\w+)*) (\\d+)");
+
+    @Test
+    public void testFoldedStacks() throws CompileError {
+        var vm = new MiniVm(Programs.load(Programs.source("loops")),
+                new ByteArrayInputStream(Programs.input("loops").getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(OutputStream.nullOutputStream()));
+        var sampler = new Sampler(vm, 20);
+        sampler.start();
+        try {
+            vm.Run();
+        } finally {
+            sampler.stop();
+        }
+        assertTrue(sampler.samples() + sampler.dropped() > 0);
+
+        var output = new ByteArrayOutputStream();
+        sampler.writeFolded(new PrintStream(output, true, StandardCharsets.UTF_8));
+        String folded = output.toString(StandardCharsets.UTF_8);
+        long total = 0;
+        boolean inMain = false;
+        for (String line : folded.split("\n")) {
+            Matcher m = LINE.matcher(line);
+            assertTrue(line, m.matches());
+            inMain |= m.group(1).startsWith("_start;main");
+            total += Long.parseLong(m.group(2));
+        }
+        // 程序的时间几乎都花在 main 和它调用的函数里
+        assertTrue(folded, inMain);
+        assertEquals(sampler.samples(), total);
+    }
+
+    @Test
+    public void testInvalidInterval() {
+        var vm = new MiniVm(new ArrayList<>(), new ArrayList<>());
+        assertThrows(IllegalArgumentException.class, () -> new Sampler(vm, 0));
+    }
+}
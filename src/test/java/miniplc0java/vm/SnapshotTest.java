@@ -0,0 +1,137 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import miniplc0java.error.CompileError;
+
+public class SnapshotTest {
+    private static Path tempFile() throws IOException {
+        Path file = Files.createTempFile("snapshot", ".bin");
+        file.toFile().deleteOnExit();
+        Files.delete(file);
+        return file;
+    }
+
+    private static String run(MiniVm vm) {
+        var output = new ByteArrayOutputStream();
+        vm.builtins = new Builtins(vm.module.globals, new ByteArrayInputStream("5".getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(output));
+        vm.Run();
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRunFromSnapshot() throws CompileError, IOException {
+        Module module = Programs.load(Programs.source("snap"));
+        Path file = tempFile();
+        var vm = new MiniVm(module, null, null);
+        vm.saveSnapshot(file);
+        vm.useSnapshot(file);
+
+        // main 对全局变量的修改不写回快照，每次都从同样的状态开始
+        assertEquals(Programs.expected("snap"), run(vm));
+        assertEquals(Programs.expected("snap"), run(vm));
+        var other = new MiniVm(new CodeImage(module), null, null);
+        other.useSnapshot(file);
+        other.compileAll();
+        assertEquals(Programs.expected("snap"), run(other));
+
+        vm.useSnapshot(null);
+        assertEquals(Programs.expected("snap"), run(vm));
+    }
+
+    @Test
+    public void testSnapshotOfAnotherProgram() throws CompileError, IOException {
+        Path file = tempFile();
+        new MiniVm(Programs.load(Programs.source("snap")), null, null).saveSnapshot(file);
+        var vm = new MiniVm(Programs.load(Programs.source("misc")), null, null);
+
+        IOException e = assertThrows(IOException.class, () -> vm.useSnapshot(file));
+        assertEquals(file + " is a snapshot of a different program", e.getMessage());
+    }
+
+    @Test
+    public void testNotASnapshot() throws CompileError, IOException {
+        Path file = tempFile();
+        Files.writeString(file, "not a snapshot");
+        var vm = new MiniVm(Programs.load(Programs.source("snap")), null, null);
+
+        IOException e = assertThrows(IOException.class, () -> vm.useSnapshot(file));
+        assertEquals(file + " is not a snapshot", e.getMessage());
+    }
+
+    @Test
+    public void testTruncatedSnapshot() throws CompileError, IOException {
+        Path file = tempFile();
+        new MiniVm(Programs.load(Programs.source("snap")), null, null).saveSnapshot(file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, java.util.Arrays.copyOf(bytes, bytes.length - 1));
+        var vm = new MiniVm(Programs.load(Programs.source("snap")), null, null);
+
+        IOException e = assertThrows(IOException.class, () -> vm.useSnapshot(file));
+        assertEquals(file + " is corrupted", e.getMessage());
+    }
+
+    @Test
+    public void testInitializationWithIo() throws CompileError, IOException {
+        var vm = new MiniVm(Programs.load("let a: int = getint();\nfn main() -> void { putint(a); }"), null, null);
+
+        Error e = assertThrows(Error.class, () -> vm.saveSnapshot(tempFile()));
+        assertEquals("global initialization performs I/O, cannot take a snapshot", e.getMessage());
+    }
+
+    @Test
+    public void testHeapState() throws IOException {
+        var memory = new Memory(2, new long[16]);
+        long kept = memory.alloc(100);
+        long freed = memory.alloc(100);
+        long large = memory.alloc(5000);
+        memory.store64(kept, 11);
+        memory.store64(large + 4000, 12);
+        memory.free(freed);
+        Path file = tempFile();
+        memory.save(file, 42);
+
+        Memory restored = Memory.restore(file, 2, new long[16], 42);
+        assertEquals(11, restored.load64(kept));
+        assertEquals(12, restored.load64(large + 4000));
+        // 分配器的状态也恢复了：释放过的块被重用，已释放和块中间的地址不能释放
+        assertEquals(freed, restored.alloc(100));
+        assertThrows(Error.class, () -> restored.free(kept + 16));
+        restored.free(kept);
+        restored.free(large);
+
+        // 恢复后的修改不写回文件
+        restored.store64(Memory.global(1), 99);
+        assertEquals(0, Memory.restore(file, 2, new long[16], 42).load64(Memory.global(1)));
+        assertEquals(11, Memory.restore(file, 2, new long[16], 42).load64(kept));
+    }
+
+    @Test
+    public void testReadOnlySnapshot() throws IOException {
+        var memory = new Memory(1, new long[16]);
+        long p = memory.alloc(10);
+        memory.store64(p, 5);
+        Path file = tempFile();
+        memory.save(file, 7);
+        assertTrue(file.toFile().setWritable(false, false));
+
+        // 以 root 运行时仍可写，这时走的是映射，否则读进内存
+        Memory restored = Memory.restore(file, 1, new long[16], 7);
+        assertEquals(5, restored.load64(p));
+        restored.store64(p, 6);
+        assertEquals(5, Memory.restore(file, 1, new long[16], 7).load64(p));
+    }
+}
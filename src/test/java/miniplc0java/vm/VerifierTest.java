@@ -0,0 +1,162 @@
+package miniplc0java.vm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import miniplc0java.error.CompileError;
+
+public class VerifierTest {
+    /**
+     * 只有一个函数 _start 的模块，没有参数和返回值，有一个全局变量
+     *
+     * @param instructions 依次是操作码和操作数，跳转的操作数是绝对位置；末尾自动补 ret
+     */
+    private static Module module(int locSlots, long... instructions) {
+        int n = instructions.length / 2;
+        int[] code = new int[n + 1];
+        long[] operands = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            code[i] = (int) instructions[2 * i];
+            operands[i] = instructions[2 * i + 1];
+        }
+        code[n] = Opcode.RET;
+        return new Module(code, operands, new int[]{0}, new int[]{1}, new int[]{0}, new int[]{0},
+                new int[]{locSlots}, new String[]{"0", "_start"});
+    }
+
+    private static void assertRejected(String message, Module module) {
+        Error e = assertThrows(Error.class, () -> Verifier.verify(module));
+        assertEquals(message, e.getMessage());
+    }
+
+    @Test
+    public void testMaxStack() {
+        // push push addi stackalloc 3 popn 4
+        Module module = module(0, Opcode.PUSH, 1, Opcode.PUSH, 2, Opcode.ADDI, 0, Opcode.STACKALLOC, 3,
+                Opcode.POPN, 4);
+        assertArrayEquals(new int[]{4}, Verifier.verify(module));
+    }
+
+    @Test
+    public void testHeights() {
+        Module module = module(1, Opcode.PUSH, 1, Opcode.BRTRUE, 4, Opcode.PUSH, 2, Opcode.POP, 0,
+                Opcode.NOP, 0);
+        int[] heights = new int[module.code.length];
+        Verifier.verify(module, heights);
+        assertArrayEquals(new int[]{0, 1, 0, 1, 0, 0}, heights);
+    }
+
+    @Test
+    public void testUnreachableCode() {
+        Module module = module(0, Opcode.BR, 2, Opcode.ADDI, 0, Opcode.NOP, 0);
+        int[] heights = new int[module.code.length];
+        Verifier.verify(module, heights);
+        assertEquals(-1, heights[1]);
+    }
+
+    @Test
+    public void testCompiledProgramsVerify() throws CompileError {
+        Verifier.verify(Programs.load(Programs.source("misc")));
+        Verifier.verify(Programs.decode(Programs.source("misc")));
+    }
+
+    @Test
+    public void testUnderflow() {
+        assertRejected("verification failed in function _start at 1: operand stack underflow",
+                module(0, Opcode.PUSH, 1, Opcode.ADDI, 0));
+        assertRejected("verification failed in function _start at 0: operand stack underflow",
+                module(0, Opcode.POPN, 1));
+    }
+
+    @Test
+    public void testHeightMismatch() {
+        // 从 3 落到 4 时栈上比从 2 跳过来多一个槽
+        assertRejected("verification failed in function _start at 3: operand stack height 1 differs from 0 at 4",
+                module(0, Opcode.PUSH, 1, Opcode.BRTRUE, 3, Opcode.BR, 4, Opcode.PUSH, 1, Opcode.NOP, 0));
+    }
+
+    @Test
+    public void testIndexOutOfRange() {
+        assertRejected("verification failed in function _start at 0: local index 2 out of range",
+                module(2, Opcode.LOCA, 2));
+        assertRejected("verification failed in function _start at 0: argument index 0 out of range",
+                module(0, Opcode.ARGA, 0));
+        assertRejected("verification failed in function _start at 0: global index 2 out of range",
+                module(0, Opcode.GLOBA, 2));
+        assertRejected("verification failed in function _start at 0: local index -1 out of range",
+                module(1, Opcode.LOCA_LOAD, -1));
+    }
+
+    @Test
+    public void testUnknownInstruction() {
+        assertRejected("verification failed in function _start at 0: unknown function 99",
+                module(0, Opcode.CALLNAME, 99));
+        assertRejected("verification failed in function _start at 0: illegal instruction " + Opcode.name(0x99),
+                module(0, 0x99, 0));
+    }
+
+    @Test
+    public void testBranchOutOfFunction() {
+        // _start 跳进 main 的函数体
+        Module module = new Module(new int[]{Opcode.BR, Opcode.RET, Opcode.NOP, Opcode.NOP, Opcode.RET},
+                new long[]{3, 0, 0, 0, 0}, new int[]{0, 2}, new int[]{0, 1}, new int[]{0, 0}, new int[]{0, 0},
+                new int[]{0, 0}, new String[]{"_start", "main"});
+        assertRejected("verification failed in function _start at 0: branch target 3 out of range", module);
+        assertRejected("verification failed in function _start at 2: branch target -1 out of range",
+                module(0, Opcode.PUSH, 1, Opcode.PUSH, 2, Opcode.JEQ, -1));
+        // 目标可以是末尾补的 ret，不能再往后
+        assertRejected("verification failed in function _start at 1: branch target 3 out of range",
+                module(0, Opcode.PUSH, 1, Opcode.BRTRUE, 3));
+    }
+
+    @Test
+    public void testCallOutOfRange() {
+        assertRejected("verification failed in function _start at 0: function index 7 out of range",
+                module(0, Opcode.CALL, 7));
+        assertRejected("verification failed in function _start at 0: function index -1 out of range",
+                module(0, Opcode.CALL, -1));
+    }
+
+    @Test
+    public void testSlotCounts() {
+        assertRejected("verification failed in function _start at 0: invalid slot count -1",
+                module(0, Opcode.STACKALLOC, -1));
+        assertRejected("verification failed in function _start at 0: invalid slot count " + Integer.MAX_VALUE,
+                module(0, Opcode.STACKALLOC, Integer.MAX_VALUE));
+        assertRejected("verification failed in function _start at 0: invalid slot count "
+                + (Memory.MAX_STACK_SLOTS + 1L), module(0, Opcode.POPN, Memory.MAX_STACK_SLOTS + 1L));
+    }
+
+    @Test
+    public void testOperandStackTooDeep() {
+        long[] instructions = new long[2 * 200];
+        for (int i = 0; i < 200; i++) {
+            instructions[2 * i] = Opcode.STACKALLOC;
+            instructions[2 * i + 1] = Memory.MAX_STACK_SLOTS;
+        }
+        assertRejected("verification failed in function _start at 1: operand stack deeper than "
+                + Memory.MAX_STACK_SLOTS + " slots", module(0, instructions));
+    }
+
+    @Test
+    public void testFrameTooLarge() {
+        assertRejected("verification failed in function _start at 0: invalid local slot count " + Integer.MAX_VALUE,
+                module(Integer.MAX_VALUE));
+        assertRejected("verification failed in function _start at 0: frame of " + (Memory.MAX_STACK_SLOTS + 3)
+                        + " slots exceeds " + Memory.MAX_STACK_SLOTS,
+                module(Memory.MAX_STACK_SLOTS / 2, Opcode.STACKALLOC, Memory.MAX_STACK_SLOTS / 2));
+    }
+
+    @Test
+    public void testCalleeSlotCountsCheckedFirst() {
+        // 0 号函数调用 1 号函数，1 号函数声明的槽数相加会溢出 int
+        Module module = new Module(new int[]{Opcode.CALL, Opcode.RET, Opcode.RET}, new long[]{1, 0, 0},
+                new int[]{0, 2}, new int[]{0, 0}, new int[]{0, Integer.MAX_VALUE}, new int[]{0, Integer.MAX_VALUE},
+                new int[]{0, 0}, new String[]{"f"});
+        assertRejected("verification failed in function f at 0: invalid return slot count " + Integer.MAX_VALUE,
+                module);
+    }
+}